@@ -0,0 +1,37 @@
+package android.os;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plain JVM stand-in for android.os.Handler, posting to the executor behind a {@link Looper}.
+ */
+public class Handler {
+    private final Looper mLooper;
+
+    public Handler(Looper looper) {
+        mLooper = looper;
+    }
+
+    public final boolean post(Runnable r) {
+        try {
+            mLooper.mExecutor.execute(r);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        try {
+            mLooper.mExecutor.schedule(r, delayMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    public final Looper getLooper() {
+        return mLooper;
+    }
+}
@@ -0,0 +1,41 @@
+package android.os;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Plain JVM stand-in for android.os.HandlerThread.
+ */
+public class HandlerThread {
+    private final String mName;
+    private       Looper mLooper;
+
+    public HandlerThread(String name) {
+        mName = name;
+    }
+
+    public synchronized void start() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, mName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        mLooper = new Looper(executor);
+    }
+
+    public synchronized Looper getLooper() {
+        return mLooper;
+    }
+
+    public synchronized boolean quit() {
+        if (mLooper == null) {
+            return false;
+        }
+        mLooper.quit();
+        return true;
+    }
+}
@@ -0,0 +1,19 @@
+package android.os;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * Plain JVM stand-in for android.os.Looper. Messages are run by a single thread executor owned by the
+ * {@link HandlerThread}.
+ */
+public class Looper {
+    final ScheduledThreadPoolExecutor mExecutor;
+
+    Looper(ScheduledThreadPoolExecutor executor) {
+        mExecutor = executor;
+    }
+
+    public void quit() {
+        mExecutor.shutdown();
+    }
+}
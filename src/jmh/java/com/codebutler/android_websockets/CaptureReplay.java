@@ -0,0 +1,517 @@
+package com.codebutler.android_websockets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Replays a {@link FrameCapture} against the client, at the recorded pace or faster, and reports how late messages
+ * were delivered compared to when they were recorded. By default a {@link LoopbackServer} sends the received frames
+ * of the capture's first connection to a connected client, while the client sends the messages it sent. With
+ * {@code --parser} the received frames are decoded by a {@link HybiParser} directly, connection after connection,
+ * which measures decoding alone.
+ *
+ * <pre>gradle replay -PreplayArgs="traffic.capture --speed 10 --engine 1"</pre>
+ *
+ * <ul>
+ *   <li>{@code --speed}: how many times faster than recorded, 1 by default. 0 replays as fast as possible.</li>
+ *   <li>{@code --parser}: decode the received frames without a connection. Pings and closes are skipped since
+ *       they would need an answer.</li>
+ *   <li>{@code --engine}: run the client on a {@link WebSocketEngine} with this many threads instead of threads of
+ *       its own.</li>
+ * </ul>
+ *
+ * Payloads that were cut short in the capture are padded to their recorded length, with spaces for text. Compressed
+ * messages can only be replayed if they were captured whole.
+ */
+public class CaptureReplay {
+    private File    mFile;
+    private double  mSpeed = 1;
+    private boolean mParser;
+    private int     mEngineThreads;
+
+    private final Histogram  mLag      = new Histogram();
+    private final AtomicLong mMessages = new AtomicLong();
+    private final AtomicLong mBytes    = new AtomicLong();
+    private final AtomicLong mErrors   = new AtomicLong();
+
+    private volatile boolean mClosing;
+
+    // Frames skipped by the parser replay, and the frames of later connections skipped by the server replay.
+    private long mSkipped;
+
+    public static void main(String[] args) throws Exception {
+        CaptureReplay replay = new CaptureReplay();
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("--parser")) {
+                replay.mParser = true;
+                continue;
+            }
+            if (!option.startsWith("--")) {
+                replay.mFile = new File(option);
+                continue;
+            }
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args[++i];
+            if (option.equals("--speed")) {
+                replay.mSpeed = Double.parseDouble(value);
+            } else if (option.equals("--engine")) {
+                replay.mEngineThreads = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+        if (replay.mFile == null) {
+            throw new IllegalArgumentException("Missing capture file");
+        }
+        long started = System.nanoTime();
+        if (replay.mParser) {
+            replay.replayToParser();
+        } else {
+            replay.replayToClient();
+        }
+        replay.report(System.nanoTime() - started);
+        System.exit(0);
+    }
+
+    /**
+     * Decodes the received frames of every connection with one parser, restarting it for each connection.
+     */
+    private void replayToParser() throws IOException {
+        Pacer           pacer  = new Pacer();
+        WebSocketClient client = new WebSocketClient(URI.create("ws://127.0.0.1/"), new CountingListener(pacer));
+        HybiParser      parser = client.getParser();
+
+        ByteArrayOutputStream frame  = new ByteArrayOutputStream();
+        FrameCapture.Reader   reader = new FrameCapture.Reader(mFile);
+        try {
+            boolean text = false;
+            FrameCapture.Record record;
+            while ((record = reader.read()) != null) {
+                if (record.getType() == FrameCapture.Record.CONNECTED) {
+                    parser.restart();
+                    parser.setDeflate(record.isDeflate() ? newSession(record) : null);
+                    text = false;
+                    continue;
+                }
+                int opcode = record.getOpcode();
+                if (record.getType() != FrameCapture.Record.INBOUND) {
+                    continue;
+                }
+                if (opcode == LoopbackServer.OP_PING || opcode == LoopbackServer.OP_CLOSE) {
+                    mSkipped++;
+                    continue;
+                }
+                if (opcode != LoopbackServer.OP_CONTINUATION && opcode < LoopbackServer.OP_CLOSE) {
+                    text = opcode == LoopbackServer.OP_TEXT;
+                }
+                byte[] payload = payload(record, text);
+
+                frame.reset();
+                ParserBenchmark.writeFrame(frame, record.isFinal(), opcode, payload, 0, payload.length, false);
+                byte[] data = frame.toByteArray();
+                data[0] = (byte) record.getHead();
+
+                pacer.await(record.getTimeMicros());
+                if (record.isFinal() && opcode < LoopbackServer.OP_CLOSE) {
+                    pacer.expectMessage(record.getTimeMicros());
+                }
+                parser.decode(data, 0, data.length);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Connects a client to a server that sends the received frames of the first connection in the capture, while
+     * the client sends the data messages it sent.
+     */
+    private void replayToClient() throws Exception {
+        final FrameCapture.Record connected = firstConnection();
+        final Pacer               pacer     = new Pacer();
+
+        LoopbackServer server = new LoopbackServer() {
+            @Override
+            protected List<String> responseHeaders(Connection connection) {
+                List<String> headers = new ArrayList<String>();
+                if (connected != null && connected.isDeflate()) {
+                    headers.add("Sec-WebSocket-Extensions: permessage-deflate; client_no_context_takeover"
+                            + (connected.isServerNoContextTakeover() ? "; server_no_context_takeover" : ""));
+                }
+                return headers;
+            }
+
+            @Override
+            protected void serve(final Connection connection) throws IOException {
+                Thread sender = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            sendFrames(connection, pacer);
+                        } catch (IOException e) {
+                            mErrors.incrementAndGet();
+                            e.printStackTrace();
+                        }
+                    }
+                }, "replay-sender");
+                sender.start();
+
+                // Answer pings and closes, drop the rest.
+                while (true) {
+                    Frame frame = connection.readFrame();
+                    if (frame.opcode == OP_PING) {
+                        synchronized (connection) {
+                            connection.writeFrame(true, OP_PONG, frame.payload);
+                        }
+                    } else if (frame.opcode == OP_CLOSE) {
+                        synchronized (connection) {
+                            connection.writeFrame(true, OP_CLOSE, frame.payload);
+                        }
+                        return;
+                    }
+                }
+            }
+        };
+
+        final CountDownLatch  open   = new CountDownLatch(1);
+        final WebSocketClient client = new WebSocketClient(server.getURI(), new CountingListener(pacer) {
+            @Override
+            public void onConnect() {
+                open.countDown();
+            }
+        });
+        WebSocketEngine engine = (mEngineThreads > 0) ? new WebSocketEngine(mEngineThreads) : null;
+        client.setEngine(engine);
+        if (connected != null && connected.isDeflate()) {
+            client.setPerMessageDeflate(new PerMessageDeflate());
+        }
+
+        pacer.hold();
+        client.connect();
+        if (!open.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Could not connect to the replay server");
+        }
+        pacer.release();
+        sendMessages(client, pacer);
+
+        // Let the server finish, then wait for the messages in flight.
+        pacer.awaitDone();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pacer.pending() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        mClosing = true;
+        client.disconnect();
+        server.close();
+        if (engine != null) {
+            engine.shutdown();
+        }
+    }
+
+    // Runs on the server, writes the received frames of the first connection at their recorded times.
+    private void sendFrames(LoopbackServer.Connection connection, Pacer pacer) throws IOException {
+        pacer.awaitRelease();
+        FrameCapture.Reader reader = new FrameCapture.Reader(mFile);
+        try {
+            int     connections = 0;
+            boolean text        = false;
+            FrameCapture.Record record;
+            while ((record = reader.read()) != null) {
+                if (record.getType() == FrameCapture.Record.CONNECTED) {
+                    connections++;
+                    continue;
+                }
+                if (record.getType() != FrameCapture.Record.INBOUND) {
+                    continue;
+                }
+                if (connections > 1) {
+                    mSkipped++;
+                    continue;
+                }
+                int opcode = record.getOpcode();
+                if (opcode != LoopbackServer.OP_CONTINUATION && opcode < LoopbackServer.OP_CLOSE) {
+                    text = opcode == LoopbackServer.OP_TEXT;
+                }
+                byte[] payload = payload(record, text);
+
+                pacer.await(record.getTimeMicros());
+                synchronized (connection) {
+                    if (record.isFinal() && opcode < LoopbackServer.OP_CLOSE) {
+                        pacer.expectMessage(record.getTimeMicros());
+                    }
+                    connection.writeFrame(record.isFinal(), (record.getHead() >> 4) & 7, opcode, payload, 0,
+                            payload.length);
+                    connection.flush();
+                }
+                if (opcode == LoopbackServer.OP_CLOSE) {
+                    break;
+                }
+            }
+        } finally {
+            reader.close();
+            pacer.done();
+        }
+    }
+
+    // Sends the data messages the client sent on the first connection, at the time of their last frame.
+    private void sendMessages(WebSocketClient client, Pacer pacer) throws IOException {
+        FrameCapture.Reader reader = new FrameCapture.Reader(mFile);
+        try {
+            int                   connections = 0;
+            boolean               text        = false;
+            boolean               compressed  = false;
+            ByteArrayOutputStream message     = new ByteArrayOutputStream();
+            FrameCapture.Record   record;
+            while ((record = reader.read()) != null) {
+                if (record.getType() == FrameCapture.Record.CONNECTED) {
+                    connections++;
+                    continue;
+                }
+                int opcode = record.getOpcode();
+                if (connections > 1 || record.getType() != FrameCapture.Record.OUTBOUND
+                        || opcode >= LoopbackServer.OP_CLOSE) {
+                    continue;
+                }
+                if (opcode != LoopbackServer.OP_CONTINUATION) {
+                    text       = opcode == LoopbackServer.OP_TEXT;
+                    compressed = record.isCompressed();
+                    message.reset();
+                }
+                message.write(payload(record, text));
+                if (!record.isFinal()) {
+                    continue;
+                }
+                byte[] data = compressed ? inflate(message.toByteArray()) : message.toByteArray();
+                pacer.await(record.getTimeMicros());
+                if (text) {
+                    client.send(new String(data, "UTF-8"));
+                } else {
+                    client.send(data);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private FrameCapture.Record firstConnection() throws IOException {
+        FrameCapture.Reader reader = new FrameCapture.Reader(mFile);
+        try {
+            FrameCapture.Record record;
+            while ((record = reader.read()) != null) {
+                if (record.getType() == FrameCapture.Record.CONNECTED) {
+                    return record;
+                }
+            }
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Inflates a message the client compressed, which never depends on earlier messages since the client always
+     * resets its context.
+     */
+    private static byte[] inflate(byte[] compressed) throws IOException {
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(compressed);
+        ByteArrayOutputStream out    = new ByteArrayOutputStream();
+        byte[]                buffer = new byte[16 * 1024];
+        try {
+            while (!inflater.finished() && !inflater.needsInput()) {
+                out.write(buffer, 0, inflater.inflate(buffer));
+            }
+            // The sync flush marker that was stripped from the end of the message.
+            inflater.setInput(new byte[] { 0, 0, (byte) 0xFF, (byte) 0xFF });
+            while (!inflater.finished() && !inflater.needsInput()) {
+                out.write(buffer, 0, inflater.inflate(buffer));
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Bad compressed message in capture", e);
+        } finally {
+            inflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    private static PerMessageDeflate.Session newSession(FrameCapture.Record connected) {
+        return new PerMessageDeflate.Session(connected.isServerNoContextTakeover(), 15, 6, 256);
+    }
+
+    /**
+     * Returns the payload padded to its recorded length. A cut text payload loses a character that was cut in half
+     * and is padded with spaces, so that it is still valid UTF-8.
+     */
+    private static byte[] payload(FrameCapture.Record record, boolean text) {
+        byte[] kept = record.getPayload();
+        if (!record.isTruncated()) {
+            return kept;
+        }
+        if (record.isCompressed()) {
+            throw new IllegalStateException("Compressed frame at " + record.getTimeMicros()
+                    + " us was not captured whole, capture with a larger FrameCapture.setMaxPayload()");
+        }
+        byte[] payload = new byte[(int) record.getLength()];
+        System.arraycopy(kept, 0, payload, 0, kept.length);
+        if (text && record.getOpcode() < LoopbackServer.OP_CLOSE) {
+            int end = kept.length;
+            int start = end;
+            while (start > 0 && start > end - 4 && (payload[start - 1] & 0xC0) == 0x80) {
+                start--;
+            }
+            if (start > 0 && (payload[start - 1] & 0x80) != 0) {
+                // start - 1 is a lead byte, complete only if it announces exactly the bytes after it.
+                int lead   = payload[start - 1] & 0xFF;
+                int needed = (lead >= 0xF0) ? 3 : (lead >= 0xE0) ? 2 : 1;
+                if (end - start < needed) {
+                    end = start - 1;
+                }
+            }
+            for (int i = end; i < payload.length; i++) {
+                payload[i] = ' ';
+            }
+        }
+        return payload;
+    }
+
+    private void report(long elapsed) {
+        double seconds = elapsed / 1e9;
+        System.out.printf("%s, %s, %d messages received, %d errors, %d frames skipped%n",
+                mParser ? "parser" : "client" + (mEngineThreads > 0 ? " on engine" : ""),
+                (mSpeed > 0) ? mSpeed + "x speed" : "full speed", mMessages.get(), mErrors.get(), mSkipped);
+        System.out.printf("took %.2f s, %.0f messages/s, %.1f MB/s%n", seconds, mMessages.get() / seconds,
+                mBytes.get() / seconds / (1024 * 1024));
+        System.out.printf("delivered late us: mean %d, p50 %d, p90 %d, p99 %d, p99.9 %d, max %d%n",
+                mLag.getMean(), mLag.getPercentile(50), mLag.getPercentile(90), mLag.getPercentile(99),
+                mLag.getPercentile(99.9), mLag.getMax());
+    }
+
+    /**
+     * Waits for the recorded time of each frame, scaled by the speed, and tracks when each message was due so that
+     * its lateness can be recorded once it is delivered.
+     */
+    private class Pacer {
+        private final ConcurrentLinkedQueue<Long> mDue     = new ConcurrentLinkedQueue<Long>();
+        private final CountDownLatch              mRelease = new CountDownLatch(1);
+        private final CountDownLatch              mDone    = new CountDownLatch(1);
+
+        private long             mStarted;
+        private long             mFirst = -1;
+        private volatile boolean mHeld;
+
+        void hold() {
+            mHeld = true;
+        }
+
+        void release() {
+            mRelease.countDown();
+        }
+
+        void awaitRelease() {
+            if (!mHeld) {
+                return;
+            }
+            try {
+                mRelease.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void await(long timeMicros) {
+            long deadline = deadline(timeMicros);
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+        }
+
+        void expectMessage(long timeMicros) {
+            mDue.add(deadline(timeMicros));
+        }
+
+        void messageReceived() {
+            Long due = mDue.poll();
+            if (due != null) {
+                mLag.record(Math.max(0, System.nanoTime() - due) / 1000);
+            }
+        }
+
+        long pending() {
+            return mDue.size();
+        }
+
+        void done() {
+            mDone.countDown();
+        }
+
+        void awaitDone() throws InterruptedException {
+            mDone.await();
+        }
+
+        // The first frame sets the clock going, whichever side it is on.
+        private synchronized long deadline(long timeMicros) {
+            if (mFirst < 0) {
+                mFirst   = timeMicros;
+                mStarted = System.nanoTime();
+            }
+            if (mSpeed <= 0) {
+                return System.nanoTime();
+            }
+            return mStarted + (long) ((timeMicros - mFirst) * 1000 / mSpeed);
+        }
+    }
+
+    private class CountingListener implements WebSocketClient.Listener {
+        private final Pacer mPacer;
+
+        CountingListener(Pacer pacer) {
+            mPacer = pacer;
+        }
+
+        @Override
+        public void onConnect() {
+        }
+
+        @Override
+        public void onMessage(String message) {
+            mPacer.messageReceived();
+            mMessages.incrementAndGet();
+            mBytes.addAndGet(message.length());
+        }
+
+        @Override
+        public void onMessage(byte[] data) {
+            mPacer.messageReceived();
+            mMessages.incrementAndGet();
+            mBytes.addAndGet(data.length);
+        }
+
+        @Override
+        public void onDisconnect(int code, String reason) {
+        }
+
+        @Override
+        public void onError(Exception error) {
+            if (!mClosing) {
+                mErrors.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,691 @@
+package com.codebutler.android_websockets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RFC 6455 conformance cases modelled on the categories of the Autobahn TestSuite, run against
+ * {@link WebSocketClient} over a {@link LoopbackServer}. Like Autobahn's test client, the client echoes every message
+ * it receives, while each case scripts the server: it writes frames, some of them invalid or in small pieces, and
+ * checks what the client sends back.
+ *
+ * <pre>gradle conformance -PconformanceArgs="--engine 5."</pre>
+ *
+ * runs the cases whose id starts with "5." on a {@link WebSocketEngine} instead of the client's own threads. Exits
+ * with status 1 if any case fails.
+ */
+public class ConformanceSuite {
+    private static final int CASE_TIMEOUT_SECONDS = 10;
+
+    private static final int CLOSE_NORMAL         = 1000;
+    private static final int CLOSE_PROTOCOL_ERROR = 1002;
+    private static final int CLOSE_INVALID_DATA   = 1007;
+    private static final int CLOSE_TOO_LARGE      = 1009;
+
+    private static final int OP_CONTINUATION = LoopbackServer.OP_CONTINUATION;
+    private static final int OP_TEXT         = LoopbackServer.OP_TEXT;
+    private static final int OP_BINARY       = LoopbackServer.OP_BINARY;
+    private static final int OP_CLOSE        = LoopbackServer.OP_CLOSE;
+    private static final int OP_PING         = LoopbackServer.OP_PING;
+    private static final int OP_PONG         = LoopbackServer.OP_PONG;
+
+    private final Map<String, Case> mCases = new LinkedHashMap<String, Case>();
+
+    public static void main(String[] args) throws Exception {
+        boolean engine = false;
+        String  prefix = "";
+        for (String arg : args) {
+            if (arg.equals("--engine")) {
+                engine = true;
+            } else {
+                prefix = arg;
+            }
+        }
+        int failed = new ConformanceSuite().run(prefix, engine);
+        System.exit((failed == 0) ? 0 : 1);
+    }
+
+    public ConformanceSuite() {
+        addFramingCases();
+        addPingCases();
+        addReservedBitCases();
+        addOpcodeCases();
+        addFragmentationCases();
+        addUtf8Cases();
+        addCloseCases();
+        addLimitCases();
+    }
+
+    /**
+     * Runs the cases whose id starts with {@code prefix} and prints a line for each.
+     *
+     * @return the number of failed cases.
+     */
+    public int run(String prefix, boolean useEngine) throws Exception {
+        final Map<String, BlockingQueue<String>> results = new LinkedHashMap<String, BlockingQueue<String>>();
+        for (String id : mCases.keySet()) {
+            results.put(id, new LinkedBlockingQueue<String>());
+        }
+
+        LoopbackServer server = new LoopbackServer() {
+            @Override
+            protected void serve(Connection connection) throws IOException {
+                // GET /1.1.1 HTTP/1.1
+                String id = connection.getRequestLine().split(" ")[1].substring(1);
+                String result;
+                try {
+                    mCases.get(id).mScript.run(new Peer(connection));
+                    result = null;
+                } catch (AssertionError e) {
+                    result = e.getMessage();
+                } catch (Exception e) {
+                    result = e.toString();
+                }
+                results.get(id).add((result == null) ? "" : result);
+            }
+        };
+        WebSocketEngine engine = useEngine ? new WebSocketEngine(1) : null;
+
+        int passed = 0;
+        int failed = 0;
+        try {
+            for (Case testCase : mCases.values()) {
+                if (!testCase.mId.startsWith(prefix)) {
+                    continue;
+                }
+
+                long            started = System.nanoTime();
+                WebSocketClient client  = connect(server.getURI().resolve(testCase.mId), engine);
+                String          result  = results.get(testCase.mId).poll(CASE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                long            millis  = (System.nanoTime() - started) / 1000000;
+                client.disconnect();
+
+                if (result == null) {
+                    result = "Timed out";
+                }
+                if (result.length() == 0) {
+                    passed++;
+                    System.out.printf("%-8s %-6s %6d ms  %s%n", testCase.mId, "OK", millis, testCase.mDescription);
+                } else {
+                    failed++;
+                    System.out.printf("%-8s %-6s %6d ms  %s%n", testCase.mId, "FAILED", millis, testCase.mDescription);
+                    System.out.printf("%-25s %s%n", "", result);
+                }
+            }
+        } finally {
+            server.close();
+            if (engine != null) {
+                engine.shutdown();
+            }
+        }
+
+        System.out.printf("%d passed, %d failed%n", passed, failed);
+        return failed;
+    }
+
+    /**
+     * Connects a client that echoes every message it receives.
+     */
+    private static WebSocketClient connect(URI uri, WebSocketEngine engine) {
+        final WebSocketClient[] client = new WebSocketClient[1];
+        client[0] = new WebSocketClient(uri, new WebSocketClient.Listener() {
+            @Override
+            public void onConnect() {
+            }
+
+            @Override
+            public void onMessage(String message) {
+                client[0].send(message);
+            }
+
+            @Override
+            public void onMessage(byte[] data) {
+                client[0].send(data);
+            }
+
+            @Override
+            public void onDisconnect(int code, String reason) {
+            }
+
+            @Override
+            public void onError(Exception error) {
+            }
+        });
+        client[0].setEngine(engine);
+        client[0].connect();
+        return client[0];
+    }
+
+    // 1.x: payload lengths around the 7, 16 and 64 bit length encodings.
+    private void addFramingCases() {
+        int[] lengths = { 0, 125, 126, 127, 128, 65535, 65536, 65537 };
+        for (int i = 0; i < lengths.length; i++) {
+            addEcho("1.1." + (i + 1), "Text message of " + lengths[i] + " bytes",
+                    OP_TEXT, text(lengths[i]), 0, 0);
+        }
+        for (int i = 0; i < lengths.length; i++) {
+            addEcho("1.2." + (i + 1), "Binary message of " + lengths[i] + " bytes",
+                    OP_BINARY, binary(lengths[i]), 0, 0);
+        }
+        addEcho("1.3.1", "Text message of 65536 bytes, written 997 bytes at a time",
+                OP_TEXT, text(65536), 0, 997);
+        addEcho("1.3.2", "Binary message of 130 bytes, written 1 byte at a time",
+                OP_BINARY, binary(130), 0, 1);
+    }
+
+    // 2.x: pings must be answered with a pong carrying the same payload.
+    private void addPingCases() {
+        add("2.1", "Ping without payload", new Script() {
+            @Override
+            public void run(Peer peer) throws IOException {
+                peer.send(OP_PING, new byte[0]);
+                peer.expectFrame(OP_PONG, new byte[0]);
+            }
+        });
+        add("2.2", "Ping with 125 bytes of binary payload", new Script() {
+            @Override
+            public void run(Peer peer) throws IOException {
+                peer.send(OP_PING, binary(125));
+                peer.expectFrame(OP_PONG, binary(125));
+            }
+        });
+        add("2.3", "Ping with 126 bytes of payload", new Script() {
+            @Override
+            public void run(Peer peer) throws IOException {
+                peer.send(OP_PING, binary(126));
+                peer.expectClose(CLOSE_PROTOCOL_ERROR);
+            }
+        });
+        add("2.4", "Unsolicited pong is ignored", new Script() {
+            @Override
+            public void run(Peer peer) throws IOException {
+                peer.send(OP_PONG, text(10));
+                peer.send(OP_TEXT, text(3));
+                peer.expectFrame(OP_TEXT, text(3));
+            }
+        });
+        add("2.5", "Ten pings in a row are all answered in order", new Script() {
+            @Override
+            public void run(Peer peer) throws IOException {
+                for (int i = 0; i < 10; i++) {
+                    peer.send(OP_PING, utf8("ping " + i));
+                }
+                for (int i = 0; i < 10; i++) {
+                    peer.expectFrame(OP_PONG, utf8("ping " + i));
+                }
+            }
+        });
+        add("2.6", "Ping written 1 byte at a time", new Script() {
+            @Override
+            public void run(Peer peer) throws IOException {
+                peer.write(frame(true, 0, OP_PING, text(60)), 1);
+                peer.expectFrame(OP_PONG, text(60));
+            }
+        });
+    }
+
+    // 3.x: without a negotiated extension, any reserved bit fails the connection.
+    private void addReservedBitCases() {
+        final int[]    rsv     = { 4, 2, 1, 4 };
+        final int[]    opcodes = { OP_TEXT, OP_TEXT, OP_BINARY, OP_PING };
+        final String[] names   = { "RSV1 on text", "RSV2 on text", "RSV3 on binary", "RSV1 on ping" };
+        for (int i = 0; i < rsv.length; i++) {
+            final int index = i;
+            add("3." + (i + 1), names[i] + ", after a valid message", new Script() {
+                @Override
+                public void run(Peer peer) throws IOException {
+                    peer.send(OP_TEXT, text(5));
+                    peer.write(frame(true, rsv[index], opcodes[index], text(5)), 0);
+                    peer.expectFrame(OP_TEXT, text(5));
+                    peer.expectClose(CLOSE_PROTOCOL_ERROR);
+                }
+            });
+        }
+    }
+
+    // 4.x: reserved opcodes fail the connection.
+    private void addOpcodeCases() {
+        int[] opcodes = { 3, 4, 5, 6, 7, 11, 12, 13, 14, 15 };
+        for (int i = 0; i < opcodes.length; i++) {
+            addFailure((opcodes[i] < 8 ? "4.1." : "4.2.") + (opcodes[i] < 8 ? opcodes[i] - 2 : opcodes[i] - 10),
+                    "Reserved opcode " + opcodes[i], CLOSE_PROTOCOL_ERROR, frame(true, 0, opcodes[i], text(4)));
+        }
+    }
+
+    // 5.x: fragmented messages, control frames in between and broken fragment sequences.
+    private void addFragmentationCases() {
+        addFailure("5.1", "Fragmented ping", CLOSE_PROTOCOL_ERROR,
+                frame(false, 0, OP_PING, text(2)), frame(true, 0, OP_CONTINUATION, text(2)));
+        addFailure("5.2", "Fragmented pong", CLOSE_PROTOCOL_ERROR,
+                frame(false, 0, OP_PONG, text(2)), frame(true, 0, OP_CONTINUATION, text(2)));
+        addEcho("5.3", "Text message in two fragments", OP_TEXT, text(20), 10, 0);
+        addEcho("5.4", "Binary message in 1000 fragments of 1 byte", OP_BINARY, binary(1000), 1, 0);
+        addEcho("5.5", "Text message in 100 fragments, written 1 byte at a time", OP_TEXT, text(200), 2, 1);
+        add("5.6", "Pings between the fragments of a text message", new Script() {
+            @Override
+            public void run(Peer peer) throws IOException {
+                peer.write(frame(false, 0, OP_TEXT, text(4)), 0);
+                peer.send(OP_PING, utf8("one"));
+                peer.write(frame(false, 0, OP_CONTINUATION, text(4)), 0);
+                peer.send(OP_PING, utf8("two"));
+                peer.write(frame(true, 0, OP_CONTINUATION, text(4)), 0);
+                peer.expectFrame(OP_PONG, utf8("one"));
+                peer.expectFrame(OP_PONG, utf8("two"));
+                peer.expectFrame(OP_TEXT, repeat(text(4), 3));
+            }
+        });
+        add("5.7", "Empty fragments", new Script() {
+            @Override
+            public void run(Peer peer) throws IOException {
+                peer.write(frame(false, 0, OP_BINARY, new byte[0]), 0);
+                peer.write(frame(false, 0, OP_CONTINUATION, binary(3)), 0);
+                peer.write(frame(true, 0, OP_CONTINUATION, new byte[0]), 0);
+                peer.expectFrame(OP_BINARY, binary(3));
+            }
+        });
+        addFailure("5.8", "Continuation without a message", CLOSE_PROTOCOL_ERROR,
+                frame(true, 0, OP_CONTINUATION, text(4)));
+        addFailure("5.9", "New text message before the fragmented one ended", CLOSE_PROTOCOL_ERROR,
+                frame(false, 0, OP_TEXT, text(4)), frame(true, 0, OP_TEXT, text(4)));
+        add("5.10", "Continuation after the message ended", new Script() {
+            @Override
+            public void run(Peer peer) throws IOException {
+                peer.send(OP_TEXT, text(4));
+                peer.write(frame(true, 0, OP_CONTINUATION, text(4)), 0);
+                peer.expectFrame(OP_TEXT, text(4));
+                peer.expectClose(CLOSE_PROTOCOL_ERROR);
+            }
+        });
+    }
+
+    // 6.x: text must be valid UTF-8, and invalid text fails the connection as soon as it is seen.
+    private void addUtf8Cases() {
+        byte[] kosme = hex("ce ba e1 bd b9 cf 83 ce bc ce b5");
+        addEcho("6.1", "Valid UTF-8 text", OP_TEXT, kosme, 0, 0);
+        addEcho("6.2", "Valid UTF-8 split inside characters across fragments", OP_TEXT, kosme, 1, 0);
+        addEcho("6.3", "Highest code point, U+10FFFF", OP_TEXT, hex("f4 8f bf bf"), 0, 0);
+        addEcho("6.4", "Empty text message", OP_TEXT, new byte[0], 0, 0);
+
+        String[] invalid = {
+                "c0 af",          // overlong '/'
+                "ed a0 80",       // surrogate
+                "f4 90 80 80",    // above U+10FFFF
+                "80",             // continuation byte
+                "ce ba e1",       // truncated at the end
+                "fe",             // never valid
+        };
+        for (int i = 0; i < invalid.length; i++) {
+            addFailure("6.5." + (i + 1), "Invalid UTF-8: " + invalid[i], CLOSE_INVALID_DATA,
+                    frame(true, 0, OP_TEXT, hex(invalid[i])));
+        }
+        add("6.6", "Invalid UTF-8 in the first fragment fails before the message ends", new Script() {
+            @Override
+            public void run(Peer peer) throws IOException {
+                peer.write(frame(false, 0, OP_TEXT, hex("ce ba c0 af")), 0);
+                peer.expectClose(CLOSE_INVALID_DATA);
+            }
+        });
+    }
+
+    // 7.x: the closing handshake.
+    private void addCloseCases() {
+        add("7.1", "Close without a body is answered", new Script() {
+            @Override
+            public void run(Peer peer) throws IOException {
+                peer.send(OP_CLOSE, new byte[0]);
+                peer.expectCloseReply();
+            }
+        });
+        add("7.2", "Close with code and reason is answered", new Script() {
+            @Override
+            public void run(Peer peer) throws IOException {
+                peer.send(OP_CLOSE, closeBody(CLOSE_NORMAL, "bye"));
+                peer.expectCloseReply();
+            }
+        });
+        add("7.3", "Data after a close is ignored", new Script() {
+            @Override
+            public void run(Peer peer) throws IOException {
+                peer.send(OP_CLOSE, closeBody(CLOSE_NORMAL, ""));
+                peer.send(OP_TEXT, text(5));
+                peer.expectCloseReply();
+            }
+        });
+        addFailure("7.4", "Close with a 1 byte body", CLOSE_PROTOCOL_ERROR, frame(true, 0, OP_CLOSE, hex("03")));
+        addFailure("7.5", "Close with 126 bytes of body", CLOSE_PROTOCOL_ERROR,
+                frame(true, 0, OP_CLOSE, closeBody(CLOSE_NORMAL, new String(text(124), Utf8Decoder.UTF_8))));
+        addFailure("7.6", "Close reason that isn't UTF-8", CLOSE_INVALID_DATA,
+                frame(true, 0, OP_CLOSE, concat(closeBody(CLOSE_NORMAL, ""), hex("c0 af"))));
+
+        int[] valid = { 1000, 1001, 1002, 1003, 1007, 1008, 1009, 1010, 1011, 3000, 3999, 4000, 4999 };
+        for (int i = 0; i < valid.length; i++) {
+            final int code = valid[i];
+            add("7.7." + (i + 1), "Close with code " + code + " is answered", new Script() {
+                @Override
+                public void run(Peer peer) throws IOException {
+                    peer.send(OP_CLOSE, closeBody(code, ""));
+                    peer.expectCloseReply();
+                }
+            });
+        }
+        add("7.9", "Close between the fragments of a text message split inside a character", new Script() {
+            @Override
+            public void run(Peer peer) throws IOException {
+                peer.write(frame(false, 0, OP_TEXT, hex("68 65 6c 6c 6f 20 ce")), 0);
+                peer.send(OP_CLOSE, closeBody(CLOSE_NORMAL, "bye"));
+                peer.expectClose(CLOSE_NORMAL);
+            }
+        });
+        int[] invalid = { 0, 999, 1004, 1005, 1006, 1016, 1100, 2000, 2999, 5000 };
+        for (int i = 0; i < invalid.length; i++) {
+            addFailure("7.8." + (i + 1), "Close with invalid code " + invalid[i], CLOSE_PROTOCOL_ERROR,
+                    frame(true, 0, OP_CLOSE, closeBody(invalid[i], "")));
+        }
+    }
+
+    // 9.x: large messages and many small ones, with timings, and frames over the size limits.
+    private void addLimitCases() {
+        int[] sizes = { 64 * 1024, 256 * 1024, 1024 * 1024, 4 * 1024 * 1024 };
+        for (int i = 0; i < sizes.length; i++) {
+            addEcho("9.1." + (i + 1), "Text message of " + sizes[i] / 1024 + " KB", OP_TEXT, text(sizes[i]), 0, 0);
+        }
+        for (int i = 0; i < sizes.length; i++) {
+            addEcho("9.2." + (i + 1), "Binary message of " + sizes[i] / 1024 + " KB", OP_BINARY, binary(sizes[i]), 0, 0);
+        }
+        addEcho("9.3", "Binary message of 4 MB in 64 KB fragments", OP_BINARY, binary(4 * 1024 * 1024), 64 * 1024, 0);
+        add("9.4", "1000 small messages written at once", new Script() {
+            @Override
+            public void run(Peer peer) throws IOException {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                for (int i = 0; i < 1000; i++) {
+                    byte[] frame = frame(true, 0, OP_TEXT, utf8("message " + i));
+                    out.write(frame, 0, frame.length);
+                }
+                peer.write(out.toByteArray(), 0);
+                for (int i = 0; i < 1000; i++) {
+                    peer.expectFrame(OP_TEXT, utf8("message " + i));
+                }
+            }
+        });
+
+        // The client must refuse these from the header alone, none of the payload is ever sent.
+        addFailure("9.5", "Binary frame header claiming 1 TB", CLOSE_TOO_LARGE,
+                header(true, OP_BINARY, 1L << 40));
+        addFailure("9.6", "Text frame header claiming 2^63 - 1 bytes", CLOSE_TOO_LARGE,
+                header(true, OP_TEXT, Long.MAX_VALUE));
+        addFailure("9.7", "Fragments adding up to more than 64 MB", CLOSE_TOO_LARGE,
+                frame(false, 0, OP_BINARY, binary(1024)), header(true, OP_CONTINUATION, 64 * 1024 * 1024));
+        addFailure("9.8", "64 bit length with the most significant bit set", CLOSE_PROTOCOL_ERROR,
+                header(true, OP_BINARY, -1L));
+    }
+
+    private void add(String id, String description, Script script) {
+        mCases.put(id, new Case(id, description, script));
+    }
+
+    /**
+     * Adds a case that sends a message, in fragments of {@code fragmentSize} bytes unless it is 0, and expects it
+     * back. {@code chop} writes the frames that many bytes at a time.
+     */
+    private void addEcho(String id, String description, final int opcode, final byte[] payload,
+                         final int fragmentSize, final int chop) {
+        add(id, description, new Script() {
+            @Override
+            public void run(Peer peer) throws IOException {
+                if (fragmentSize == 0) {
+                    peer.write(frame(true, 0, opcode, payload), chop);
+                } else {
+                    for (int offset = 0; offset < payload.length; offset += fragmentSize) {
+                        int     end = Math.min(offset + fragmentSize, payload.length);
+                        boolean fin = end == payload.length;
+                        peer.write(frame(fin, 0, (offset == 0) ? opcode : OP_CONTINUATION,
+                                Arrays.copyOfRange(payload, offset, end)), chop);
+                    }
+                }
+                peer.expectFrame(opcode, payload);
+            }
+        });
+    }
+
+    /**
+     * Adds a case that sends the given frames and expects the client to fail the connection with {@code code}.
+     */
+    private void addFailure(String id, String description, final int code, final byte[]... frames) {
+        add(id, description, new Script() {
+            @Override
+            public void run(Peer peer) throws IOException {
+                for (byte[] frame : frames) {
+                    peer.write(frame, 0);
+                }
+                peer.expectClose(code);
+            }
+        });
+    }
+
+    private interface Script {
+        void run(Peer peer) throws IOException;
+    }
+
+    private static class Case {
+        final String mId;
+        final String mDescription;
+        final Script mScript;
+
+        Case(String id, String description, Script script) {
+            mId          = id;
+            mDescription = description;
+            mScript      = script;
+        }
+    }
+
+    /**
+     * The server side of a case. Expectations fail with an {@link AssertionError}.
+     */
+    private static class Peer {
+        private final LoopbackServer.Connection mConnection;
+
+        Peer(LoopbackServer.Connection connection) {
+            mConnection = connection;
+        }
+
+        void send(int opcode, byte[] payload) throws IOException {
+            write(frame(true, 0, opcode, payload), 0);
+        }
+
+        /**
+         * Writes raw bytes, {@code chop} at a time with a pause in between, or all at once with 0.
+         */
+        void write(byte[] data, int chop) throws IOException {
+            if (chop == 0) {
+                mConnection.writeRaw(data, 0, data.length);
+                return;
+            }
+            for (int offset = 0; offset < data.length; offset += chop) {
+                mConnection.writeRaw(data, offset, Math.min(chop, data.length - offset));
+                if (chop < 16) {
+                    pause();
+                }
+            }
+        }
+
+        /**
+         * Reads the next message or control frame from the client, joining fragments.
+         */
+        LoopbackServer.Frame receive() throws IOException {
+            LoopbackServer.Frame frame = receiveFrame();
+            if (frame.opcode == OP_CONTINUATION) {
+                throw new AssertionError("Continuation without a message");
+            }
+            if (frame.fin) {
+                return frame;
+            }
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            payload.write(frame.payload, 0, frame.payload.length);
+            while (true) {
+                LoopbackServer.Frame next = receiveFrame();
+                if (next.opcode != OP_CONTINUATION) {
+                    throw new AssertionError("Expected a continuation, got " + describe(next));
+                }
+                payload.write(next.payload, 0, next.payload.length);
+                if (next.fin) {
+                    break;
+                }
+            }
+            frame.fin     = true;
+            frame.payload = payload.toByteArray();
+            return frame;
+        }
+
+        private LoopbackServer.Frame receiveFrame() throws IOException {
+            LoopbackServer.Frame frame = mConnection.readFrame();
+            if (!frame.masked) {
+                throw new AssertionError("Unmasked frame from the client");
+            }
+            if (frame.rsv != 0) {
+                throw new AssertionError("Reserved bits set by the client");
+            }
+            return frame;
+        }
+
+        void expectFrame(int opcode, byte[] payload) throws IOException {
+            LoopbackServer.Frame frame = receive();
+            if (frame.opcode != opcode || !Arrays.equals(frame.payload, payload)) {
+                throw new AssertionError("Expected " + describe(opcode, payload) + ", got " + describe(frame));
+            }
+        }
+
+        /**
+         * Expects the client to fail the connection with a close frame carrying {@code code}.
+         */
+        void expectClose(int code) throws IOException {
+            LoopbackServer.Frame frame = receive();
+            if (frame.opcode != OP_CLOSE || closeCode(frame) != code) {
+                throw new AssertionError("Expected close " + code + ", got " + describe(frame));
+            }
+        }
+
+        /**
+         * Expects the client to answer the server's close with a close frame of its own.
+         */
+        void expectCloseReply() throws IOException {
+            LoopbackServer.Frame frame;
+            try {
+                frame = receive();
+            } catch (IOException e) {
+                throw new AssertionError("Connection closed without a close frame");
+            }
+            if (frame.opcode != OP_CLOSE) {
+                throw new AssertionError("Expected a close frame, got " + describe(frame));
+            }
+        }
+
+        private static void pause() {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    static byte[] frame(boolean fin, int rsv, int opcode, byte[] payload) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length + 10);
+        out.write((fin ? 0x80 : 0) | (rsv << 4) | opcode);
+        if (payload.length <= 125) {
+            out.write(payload.length);
+        } else if (payload.length <= 65535) {
+            out.write(126);
+            out.write(payload.length >>> 8);
+            out.write(payload.length);
+        } else {
+            out.write(127);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) ((long) payload.length >>> shift));
+            }
+        }
+        out.write(payload, 0, payload.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns just the header of an unmasked frame with a 64 bit length, whatever the length.
+     */
+    static byte[] header(boolean fin, int opcode, long length) {
+        byte[] header = new byte[10];
+        header[0] = (byte) ((fin ? 0x80 : 0) | opcode);
+        header[1] = 127;
+        for (int i = 0; i < 8; i++) {
+            header[2 + i] = (byte) (length >>> (56 - 8 * i));
+        }
+        return header;
+    }
+
+    private static int closeCode(LoopbackServer.Frame frame) {
+        return (frame.payload.length >= 2) ? ((frame.payload[0] & 0xFF) << 8) | (frame.payload[1] & 0xFF) : 0;
+    }
+
+    private static byte[] closeBody(int code, String reason) {
+        return concat(new byte[] { (byte) (code >>> 8), (byte) code }, utf8(reason));
+    }
+
+    private static String describe(LoopbackServer.Frame frame) {
+        if (frame.opcode == OP_CLOSE) {
+            return "close " + closeCode(frame);
+        }
+        return describe(frame.opcode, frame.payload);
+    }
+
+    private static String describe(int opcode, byte[] payload) {
+        return "opcode " + opcode + " with " + payload.length + " bytes";
+    }
+
+    private static byte[] text(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('a' + i % 26);
+        }
+        return data;
+    }
+
+    private static byte[] binary(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(Utf8Decoder.UTF_8);
+    }
+
+    private static byte[] hex(String hex) {
+        String[] digits = hex.split(" ");
+        byte[]   data   = new byte[digits.length];
+        for (int i = 0; i < digits.length; i++) {
+            data[i] = (byte) Integer.parseInt(digits[i], 16);
+        }
+        return data;
+    }
+
+    private static byte[] repeat(byte[] data, int count) {
+        byte[] result = new byte[data.length * count];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(data, 0, result, i * data.length, data.length);
+        }
+        return result;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
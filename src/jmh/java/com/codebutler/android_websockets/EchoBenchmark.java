@@ -0,0 +1,83 @@
+package com.codebutler.android_websockets;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip latency of a binary message sent through {@link WebSocketClient} to a {@link LoopbackServer} and
+ * echoed back.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EchoBenchmark {
+    @Param({ "16", "1024", "65536" })
+    public int size;
+
+    private LoopbackServer  mServer;
+    private WebSocketClient mClient;
+    private byte[]          mMessage;
+
+    private final BlockingQueue<Object> mReplies = new ArrayBlockingQueue<Object>(16);
+
+    @Setup
+    public void setUp() throws Exception {
+        mServer  = new LoopbackServer();
+        mMessage = new byte[size];
+
+        final CountDownLatch connected = new CountDownLatch(1);
+        mClient = new WebSocketClient(mServer.getURI(), new WebSocketClient.Listener() {
+            @Override
+            public void onConnect() {
+                connected.countDown();
+            }
+
+            @Override
+            public void onMessage(String message) {
+                mReplies.add(message);
+            }
+
+            @Override
+            public void onMessage(byte[] data) {
+                mReplies.add(data);
+            }
+
+            @Override
+            public void onDisconnect(int code, String reason) {
+            }
+
+            @Override
+            public void onError(Exception error) {
+                mReplies.add(error);
+            }
+        });
+        mClient.connect();
+
+        if (!connected.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Could not connect to " + mServer.getURI());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mClient.disconnect();
+        mServer.close();
+    }
+
+    @Benchmark
+    public Object echo() throws InterruptedException {
+        mClient.send(mMessage);
+        Object reply = mReplies.poll(10, TimeUnit.SECONDS);
+        if (!(reply instanceof byte[])) {
+            throw new IllegalStateException("Unexpected reply: " + reply);
+        }
+        return reply;
+    }
+}
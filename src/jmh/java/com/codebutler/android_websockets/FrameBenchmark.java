@@ -0,0 +1,57 @@
+package com.codebutler.android_websockets;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode throughput of {@link HybiParser#frame}, both allocating a new frame and writing into a reused buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBenchmark {
+    @Param({ "32", "65536" })
+    public int size;
+
+    private HybiParser mParser;
+    private String     mText;
+    private byte[]     mBinary;
+    private byte[]     mOut;
+
+    @Setup
+    public void setUp() {
+        mParser = new HybiParser(new WebSocketClient(URI.create("ws://127.0.0.1/"), null));
+
+        char[] text = new char[size];
+        Arrays.fill(text, 'x');
+        mText   = new String(text);
+        mBinary = new byte[size];
+        mOut    = new byte[size + 14];
+    }
+
+    @Benchmark
+    public byte[] textFrame() {
+        return mParser.frame(mText);
+    }
+
+    @Benchmark
+    public byte[] binaryFrame() {
+        return mParser.frame(mBinary);
+    }
+
+    @Benchmark
+    public int textFrameInto() {
+        return mParser.frame(mText, mOut, 0);
+    }
+
+    @Benchmark
+    public int binaryFrameInto() {
+        return mParser.frame(mBinary, mOut, 0);
+    }
+}
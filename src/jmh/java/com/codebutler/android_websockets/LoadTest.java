@@ -0,0 +1,283 @@
+package com.codebutler.android_websockets;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives many clients against a {@link LoopbackServer} that echoes every message, and reports throughput and round
+ * trip latency percentiles. Each message carries the time it was sent.
+ *
+ * <pre>gradle loadTest -PloadTestArgs="--clients 200 --size 1024 --rate 50 --seconds 10 --engine 2"</pre>
+ *
+ * <ul>
+ *   <li>{@code --clients}: connections, 10 by default.</li>
+ *   <li>{@code --size}: message size in bytes, at least 8, 128 by default.</li>
+ *   <li>{@code --rate}: messages per second per client, 100 by default. With 0 each client sends the next message
+ *       as soon as one comes back, keeping {@code --window} messages in flight, 1 by default.</li>
+ *   <li>{@code --seconds}: how long to send, 10 by default.</li>
+ *   <li>{@code --engine}: run the clients on a {@link WebSocketEngine} with this many threads instead of threads of
+ *       their own.</li>
+ *   <li>{@code --channels}: carry this many {@link Multiplexer} channels over each connection, each sending as a
+ *       client would on its own.</li>
+ *   <li>{@code --stats}: also print the clients' {@link WebSocketStats}.</li>
+ * </ul>
+ */
+public class LoadTest {
+    private int     mClients = 10;
+    private int     mSize    = 128;
+    private int     mRate    = 100;
+    private int     mWindow  = 1;
+    private int     mSeconds = 10;
+    private int     mEngineThreads;
+    private int     mChannels;
+    private boolean mStats;
+
+    private final Histogram  mLatency  = new Histogram();
+    private final AtomicLong mSent     = new AtomicLong();
+    private final AtomicLong mReceived = new AtomicLong();
+    private final AtomicLong mErrors   = new AtomicLong();
+
+    private volatile boolean mSending = true;
+    private volatile boolean mClosing;
+
+    public static void main(String[] args) throws Exception {
+        LoadTest test = new LoadTest();
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("--stats")) {
+                test.mStats = true;
+                continue;
+            }
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            int value = Integer.parseInt(args[++i]);
+            if (option.equals("--clients")) {
+                test.mClients = value;
+            } else if (option.equals("--size")) {
+                test.mSize = Math.max(8, value);
+            } else if (option.equals("--rate")) {
+                test.mRate = value;
+            } else if (option.equals("--window")) {
+                test.mWindow = value;
+            } else if (option.equals("--seconds")) {
+                test.mSeconds = value;
+            } else if (option.equals("--engine")) {
+                test.mEngineThreads = value;
+            } else if (option.equals("--channels")) {
+                test.mChannels = value;
+            } else {
+                throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+        test.run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        LoopbackServer  server = new LoopbackServer();
+        WebSocketEngine engine = (mEngineThreads > 0) ? new WebSocketEngine(mEngineThreads) : null;
+        WebSocketStats  stats  = new WebSocketStats();
+
+        System.out.printf("%d clients%s, %d byte messages, %s, %d s, %s%n", mClients,
+                (mChannels > 0) ? " of " + mChannels + " channels" : "", mSize,
+                (mRate > 0) ? mRate + " messages/s each" : mWindow + " in flight each", mSeconds,
+                (engine != null) ? "engine with " + mEngineThreads + " threads" : "threads per client");
+
+        // A sender sends one message on a client, or on a channel with --channels.
+        final CountDownLatch        connected = new CountDownLatch(mClients);
+        final List<WebSocketClient> clients   = new ArrayList<WebSocketClient>();
+        final List<Runnable>        senders   = new ArrayList<Runnable>();
+        for (int i = 0; i < mClients; i++) {
+            WebSocketClient client = (mChannels > 0)
+                    ? createMultiplexer(server, connected, senders).getClient()
+                    : createClient(server, connected, senders);
+            client.setEngine(engine);
+            if (mStats) {
+                client.setMetrics(stats);
+            }
+            clients.add(client);
+            client.connect();
+        }
+        if (!connected.await(30, TimeUnit.SECONDS)) {
+            throw new IllegalStateException(connected.getCount() + " clients did not connect");
+        }
+
+        ScheduledExecutorService scheduler = null;
+        long                     started   = System.nanoTime();
+        if (mRate > 0) {
+            // Spread the clients over the period so that they don't all send at the same moment.
+            scheduler = Executors.newScheduledThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+            long period = 1000000000L / mRate;
+            for (int i = 0; i < senders.size(); i++) {
+                scheduler.scheduleAtFixedRate(senders.get(i), period * i / senders.size(), period,
+                        TimeUnit.NANOSECONDS);
+            }
+        } else {
+            for (Runnable sender : senders) {
+                for (int i = 0; i < mWindow; i++) {
+                    sender.run();
+                }
+            }
+        }
+
+        Thread.sleep(mSeconds * 1000L);
+        mSending = false;
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        long elapsed = System.nanoTime() - started;
+
+        // Let the messages in flight come back.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mReceived.get() < mSent.get() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        mClosing = true;
+        for (WebSocketClient client : clients) {
+            client.disconnect();
+        }
+        server.close();
+        if (engine != null) {
+            engine.shutdown();
+        }
+
+        double seconds  = elapsed / 1e9;
+        long   received = mReceived.get();
+        System.out.printf("sent %d, received %d, errors %d%n", mSent.get(), received, mErrors.get());
+        System.out.printf("throughput %.0f messages/s, %.1f MB/s each way%n",
+                received / seconds, received * (double) mSize / seconds / (1024 * 1024));
+        System.out.printf("round trip us: mean %d, p50 %d, p90 %d, p99 %d, p99.9 %d, max %d%n",
+                mLatency.getMean(), mLatency.getPercentile(50), mLatency.getPercentile(90),
+                mLatency.getPercentile(99), mLatency.getPercentile(99.9), mLatency.getMax());
+        if (mStats) {
+            System.out.println(stats);
+        }
+    }
+
+    private WebSocketClient createClient(LoopbackServer server, final CountDownLatch connected,
+            List<Runnable> senders) {
+        final WebSocketClient[] client = new WebSocketClient[1];
+        client[0] = new WebSocketClient(server.getURI(), new WebSocketClient.ByteBufferListener() {
+            @Override
+            public void onConnect() {
+                connected.countDown();
+            }
+
+            @Override
+            public void onMessage(ByteBuffer data) {
+                received(data.getLong(data.position()));
+                if (mRate == 0 && mSending) {
+                    send(client[0]);
+                }
+            }
+
+            @Override
+            public void onMessage(String message) {
+            }
+
+            @Override
+            public void onMessage(byte[] data) {
+            }
+
+            @Override
+            public void onDisconnect(int code, String reason) {
+            }
+
+            @Override
+            public void onError(Exception error) {
+                if (!mClosing) {
+                    mErrors.incrementAndGet();
+                }
+            }
+        });
+        senders.add(new Runnable() {
+            @Override
+            public void run() {
+                send(client[0]);
+            }
+        });
+        return client[0];
+    }
+
+    private Multiplexer createMultiplexer(LoopbackServer server, final CountDownLatch connected,
+            List<Runnable> senders) {
+        Multiplexer mux = new Multiplexer(server.getURI(), new Multiplexer.Listener() {
+            @Override
+            public void onConnect() {
+                connected.countDown();
+            }
+
+            @Override
+            public void onDisconnect(int code, String reason) {
+            }
+
+            @Override
+            public void onError(Exception error) {
+                if (!mClosing) {
+                    mErrors.incrementAndGet();
+                }
+            }
+        });
+
+        // The server echoes every frame, so each channel gets its own messages back and its credit too.
+        Multiplexer.ChannelListener listener = new Multiplexer.ChannelListener() {
+            @Override
+            public void onMessage(Multiplexer.Channel channel, byte[] data) {
+                received(ByteBuffer.wrap(data).getLong());
+                if (mRate == 0 && mSending) {
+                    send(channel);
+                }
+            }
+
+            @Override
+            public void onMessage(Multiplexer.Channel channel, String message) {
+            }
+
+            @Override
+            public void onClose(Multiplexer.Channel channel) {
+            }
+        };
+        for (int i = 0; i < mChannels; i++) {
+            final Multiplexer.Channel channel = mux.openChannel(i, listener);
+            senders.add(new Runnable() {
+                @Override
+                public void run() {
+                    send(channel);
+                }
+            });
+        }
+        return mux;
+    }
+
+    private void received(long sentNanos) {
+        mLatency.record((System.nanoTime() - sentNanos) / 1000);
+        mReceived.incrementAndGet();
+    }
+
+    private byte[] newMessage() {
+        byte[] message = new byte[mSize];
+        ByteBuffer.wrap(message).putLong(System.nanoTime());
+        mSent.incrementAndGet();
+        return message;
+    }
+
+    private void send(WebSocketClient client) {
+        if (mSending) {
+            client.send(newMessage());
+        }
+    }
+
+    private void send(Multiplexer.Channel channel) {
+        if (mSending) {
+            channel.send(newMessage());
+        }
+    }
+}
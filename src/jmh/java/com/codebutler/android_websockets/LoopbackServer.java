@@ -0,0 +1,304 @@
+package com.codebutler.android_websockets;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Minimal in-process WebSocket server bound to the loopback interface. Each connection is served by its own thread,
+ * which by default echoes every data frame back unmasked with the same FIN bit and opcode, answers pings and
+ * returns close frames. Override {@link #serve(Connection)} to do something else.
+ */
+public class LoopbackServer {
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    public static final int OP_CONTINUATION =  0;
+    public static final int OP_TEXT         =  1;
+    public static final int OP_BINARY       =  2;
+    public static final int OP_CLOSE        =  8;
+    public static final int OP_PING         =  9;
+    public static final int OP_PONG         = 10;
+
+    private final ServerSocket     mServerSocket;
+    private final List<Connection> mConnections = new ArrayList<Connection>();
+
+    private volatile boolean mClosed;
+
+    public LoopbackServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 128, InetAddress.getByName("127.0.0.1"));
+
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "loopback-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public URI getURI() {
+        return URI.create("ws://127.0.0.1:" + mServerSocket.getLocalPort() + "/");
+    }
+
+    public void close() {
+        mClosed = true;
+        try {
+            mServerSocket.close();
+        } catch (IOException ignored) {
+        }
+        synchronized (mConnections) {
+            for (Connection connection : mConnections) {
+                connection.close();
+            }
+            mConnections.clear();
+        }
+    }
+
+    private void accept() {
+        while (!mClosed) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                return;
+            }
+
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Connection connection = null;
+                    try {
+                        connection = new Connection(socket);
+                        synchronized (mConnections) {
+                            mConnections.add(connection);
+                        }
+                        connection.readRequest();
+                        connection.writeResponse(responseHeaders(connection));
+                        serve(connection);
+                    } catch (EOFException ignored) {
+                    } catch (SocketException ignored) {
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } finally {
+                        if (connection != null) {
+                            connection.close();
+                            synchronized (mConnections) {
+                                mConnections.remove(connection);
+                            }
+                        }
+                    }
+                }
+            }, "loopback-connection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Extra headers to send in the handshake response, such as a selected subprotocol or extension.
+     */
+    protected List<String> responseHeaders(Connection connection) {
+        return new ArrayList<String>();
+    }
+
+    /**
+     * Handles a connection after the handshake, runs on the connection's own thread.
+     */
+    protected void serve(Connection connection) throws IOException {
+        while (true) {
+            Frame frame = connection.readFrame();
+            switch (frame.opcode) {
+                case OP_PING:
+                    connection.writeFrame(true, OP_PONG, frame.payload);
+                    break;
+                case OP_PONG:
+                    break;
+                case OP_CLOSE:
+                    connection.writeFrame(true, OP_CLOSE, frame.payload);
+                    return;
+                default:
+                    connection.writeFrame(frame.fin, frame.opcode, frame.payload);
+                    break;
+            }
+        }
+    }
+
+    public static class Frame {
+        public boolean fin;
+        public boolean masked;
+        public int     rsv;
+        public int     opcode;
+        public byte[]  payload;
+    }
+
+    public static class Connection {
+        private final Socket          mSocket;
+        private final DataInputStream mInput;
+        private final OutputStream    mOutput;
+
+        private String mRequestLine;
+        private final List<String> mRequestHeaders = new ArrayList<String>();
+
+        Connection(Socket socket) throws IOException {
+            mSocket = socket;
+            mInput  = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            mOutput = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        public String getRequestLine() {
+            return mRequestLine;
+        }
+
+        /**
+         * Returns the value of a request header, matching the name case-insensitively.
+         */
+        public String getRequestHeader(String name) {
+            String prefix = name.toLowerCase(Locale.US) + ":";
+            for (String header : mRequestHeaders) {
+                if (header.toLowerCase(Locale.US).startsWith(prefix)) {
+                    return header.substring(prefix.length()).trim();
+                }
+            }
+            return null;
+        }
+
+        void readRequest() throws IOException {
+            mRequestLine = readLine();
+            String line;
+            while ((line = readLine()).length() > 0) {
+                mRequestHeaders.add(line);
+            }
+        }
+
+        void writeResponse(List<String> headers) throws IOException {
+            String key = getRequestHeader("Sec-WebSocket-Key");
+            if (key == null) {
+                throw new IOException("Missing Sec-WebSocket-Key");
+            }
+
+            StringBuilder response = new StringBuilder();
+            response.append("HTTP/1.1 101 Switching Protocols\r\n");
+            response.append("Upgrade: websocket\r\n");
+            response.append("Connection: Upgrade\r\n");
+            response.append("Sec-WebSocket-Accept: ").append(accept(key)).append("\r\n");
+            for (String header : headers) {
+                response.append(header).append("\r\n");
+            }
+            response.append("\r\n");
+            mOutput.write(response.toString().getBytes("ISO-8859-1"));
+            mOutput.flush();
+        }
+
+        public Frame readFrame() throws IOException {
+            Frame frame = new Frame();
+
+            int b0 = mInput.readUnsignedByte();
+            int b1 = mInput.readUnsignedByte();
+            frame.fin    = (b0 & 0x80) != 0;
+            frame.rsv    = (b0 >> 4) & 7;
+            frame.opcode = b0 & 0x0F;
+
+            long length = b1 & 0x7F;
+            if (length == 126) {
+                length = mInput.readUnsignedShort();
+            } else if (length == 127) {
+                length = mInput.readLong();
+            }
+
+            byte[] mask = null;
+            frame.masked = (b1 & 0x80) != 0;
+            if (frame.masked) {
+                mask = new byte[4];
+                mInput.readFully(mask);
+            }
+
+            frame.payload = new byte[(int) length];
+            mInput.readFully(frame.payload);
+            if (mask != null) {
+                for (int i = 0; i < frame.payload.length; i++) {
+                    frame.payload[i] ^= mask[i & 3];
+                }
+            }
+            return frame;
+        }
+
+        public void writeFrame(boolean fin, int opcode, byte[] payload) throws IOException {
+            writeFrame(fin, 0, opcode, payload, 0, payload.length);
+            mOutput.flush();
+        }
+
+        /**
+         * Writes an unmasked frame without flushing.
+         */
+        public void writeFrame(boolean fin, int rsv, int opcode, byte[] payload, int offset, int length)
+                throws IOException {
+            mOutput.write((fin ? 0x80 : 0) | (rsv << 4) | opcode);
+            if (length <= 125) {
+                mOutput.write(length);
+            } else if (length <= 65535) {
+                mOutput.write(126);
+                mOutput.write(length >>> 8);
+                mOutput.write(length);
+            } else {
+                mOutput.write(127);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    mOutput.write((int) ((long) length >>> shift));
+                }
+            }
+            mOutput.write(payload, offset, length);
+        }
+
+        /**
+         * Writes bytes as they are and flushes them, for frames that are sent in pieces or are deliberately invalid.
+         */
+        public void writeRaw(byte[] data, int offset, int length) throws IOException {
+            mOutput.write(data, offset, length);
+            mOutput.flush();
+        }
+
+        public void flush() throws IOException {
+            mOutput.flush();
+        }
+
+        public void close() {
+            try {
+                mSocket.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = mInput.read()) != '\n') {
+                if (c == -1) {
+                    throw new EOFException();
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
+        private static String accept(String key) throws IOException {
+            try {
+                MessageDigest md = MessageDigest.getInstance("SHA-1");
+                md.update((key + GUID).getBytes("ISO-8859-1"));
+                return Base64.getEncoder().encodeToString(md.digest());
+            } catch (java.security.NoSuchAlgorithmException e) {
+                throw new IOException(e.toString());
+            }
+        }
+    }
+}
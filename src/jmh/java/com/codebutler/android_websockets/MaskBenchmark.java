@@ -0,0 +1,55 @@
+package com.codebutler.android_websockets;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the word-wise {@link HybiParser#mask} against the byte-at-a-time loop it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MaskBenchmark {
+    @Param({ "16", "256", "4096", "65536", "1048576", "16777216" })
+    public int size;
+
+    // Start of the payload in the array, 3 is the usual position behind a masked short header shifted off the
+    // 8 byte boundary.
+    @Param({ "0", "3" })
+    public int offset;
+
+    private byte[] mData;
+    private byte[] mMask;
+    private int    mMaskKey;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        mData = new byte[offset + size];
+        random.nextBytes(mData);
+        mMaskKey = random.nextInt();
+        mMask = new byte[] {
+            (byte) (mMaskKey >>> 24), (byte) (mMaskKey >>> 16), (byte) (mMaskKey >>> 8), (byte) mMaskKey
+        };
+    }
+
+    @Benchmark
+    public byte[] byteAtATime() {
+        byte[] payload = mData;
+        for (int i = 0; i < payload.length - offset; i++) {
+            payload[offset + i] = (byte) (payload[offset + i] ^ mMask[i % 4]);
+        }
+        return payload;
+    }
+
+    @Benchmark
+    public byte[] wordWise() {
+        HybiParser.mask(mData, offset, size, mMaskKey, 0);
+        return mData;
+    }
+}
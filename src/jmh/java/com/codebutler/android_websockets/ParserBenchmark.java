@@ -0,0 +1,135 @@
+package com.codebutler.android_websockets;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decode throughput of {@link HybiParser} for a stream of frames held in memory. Scores are messages per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+    private static final int MESSAGES = 1000;
+
+    @Param({ "text", "binary", "fragmented", "masked" })
+    public String kind;
+
+    @Param({ "32", "1024", "65536" })
+    public int size;
+
+    private byte[]          mStream;
+    private HybiParser      mParser;
+    private BlackholeListener mListener;
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws IOException {
+        Random random = new Random(42);
+
+        byte[] payload = new byte[size];
+        if (kind.equals("text")) {
+            for (int i = 0; i < size; i++) {
+                payload[i] = (byte) ('a' + random.nextInt(26));
+            }
+        } else {
+            random.nextBytes(payload);
+        }
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < MESSAGES; i++) {
+            if (kind.equals("text")) {
+                writeFrame(stream, true, LoopbackServer.OP_TEXT, payload, 0, size, false);
+            } else if (kind.equals("binary")) {
+                writeFrame(stream, true, LoopbackServer.OP_BINARY, payload, 0, size, false);
+            } else if (kind.equals("masked")) {
+                writeFrame(stream, true, LoopbackServer.OP_BINARY, payload, 0, size, true);
+            } else {
+                // Four fragments per message.
+                int fragment = size / 4;
+                writeFrame(stream, false, LoopbackServer.OP_BINARY, payload, 0, fragment, false);
+                writeFrame(stream, false, LoopbackServer.OP_CONTINUATION, payload, fragment, fragment, false);
+                writeFrame(stream, false, LoopbackServer.OP_CONTINUATION, payload, 2 * fragment, fragment, false);
+                writeFrame(stream, true, LoopbackServer.OP_CONTINUATION, payload, 3 * fragment, size - 3 * fragment,
+                    false);
+            }
+        }
+        mStream = stream.toByteArray();
+
+        mListener = new BlackholeListener(blackhole);
+        mParser   = new HybiParser(new WebSocketClient(URI.create("ws://127.0.0.1/"), mListener));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void decode() throws IOException {
+        mParser.start(new ByteArrayInputStream(mStream));
+    }
+
+    static void writeFrame(ByteArrayOutputStream out, boolean fin, int opcode, byte[] payload, int offset, int length,
+                           boolean masked) {
+        int mask = masked ? 0x80 : 0;
+        out.write((fin ? 0x80 : 0) | opcode);
+        if (length <= 125) {
+            out.write(mask | length);
+        } else if (length <= 65535) {
+            out.write(mask | 126);
+            out.write(length >>> 8);
+            out.write(length);
+        } else {
+            out.write(mask | 127);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) ((long) length >>> shift));
+            }
+        }
+        if (masked) {
+            byte[] key = { 0x12, 0x34, 0x56, 0x78 };
+            out.write(key, 0, 4);
+            for (int i = 0; i < length; i++) {
+                out.write(payload[offset + i] ^ key[i & 3]);
+            }
+        } else {
+            out.write(payload, offset, length);
+        }
+    }
+
+    static class BlackholeListener implements WebSocketClient.Listener {
+        private final Blackhole mBlackhole;
+
+        BlackholeListener(Blackhole blackhole) {
+            mBlackhole = blackhole;
+        }
+
+        @Override
+        public void onConnect() {
+        }
+
+        @Override
+        public void onMessage(String message) {
+            mBlackhole.consume(message);
+        }
+
+        @Override
+        public void onMessage(byte[] data) {
+            mBlackhole.consume(data);
+        }
+
+        @Override
+        public void onDisconnect(int code, String reason) {
+        }
+
+        @Override
+        public void onError(Exception error) {
+            throw new RuntimeException(error);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.codebutler.android_websockets;
+
+/**
+ * Thread-safe pool of byte arrays in power of two size classes, used for outgoing frames so that sending doesn't
+ * allocate a new array per message. Requests larger than the biggest size class are allocated and dropped as usual.
+ */
+public class BufferPool {
+    private static final int MIN_SIZE_SHIFT = 8;   // 256 bytes
+    private static final int MAX_SIZE_SHIFT = 16;  // 64 KB
+
+    private static final BufferPool sDefault = new BufferPool(32);
+
+    private final byte[][][] mBuffers;
+    private final int[]      mCounts;
+
+    public static BufferPool getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * @param maxPooledPerSize how many free arrays to keep per size class.
+     */
+    public BufferPool(int maxPooledPerSize) {
+        int classes = MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1;
+        mBuffers = new byte[classes][maxPooledPerSize][];
+        mCounts  = new int[classes];
+    }
+
+    /**
+     * Returns an array of at least {@code size} bytes. Its content is undefined.
+     */
+    public byte[] acquire(int size) {
+        int index = sizeClass(size);
+        if (index < 0) {
+            return new byte[size];
+        }
+        synchronized (mBuffers[index]) {
+            int count = mCounts[index];
+            if (count > 0) {
+                byte[] buffer = mBuffers[index][--count];
+                mBuffers[index][count] = null;
+                mCounts[index] = count;
+                return buffer;
+            }
+        }
+        return new byte[1 << (index + MIN_SIZE_SHIFT)];
+    }
+
+    /**
+     * Returns an array obtained from {@link #acquire(int)} to the pool. The caller must not use it afterwards.
+     */
+    public void release(byte[] buffer) {
+        int length = buffer.length;
+        if (length < (1 << MIN_SIZE_SHIFT) || (length & (length - 1)) != 0) {
+            return;
+        }
+        int index = sizeClass(length);
+        if (index < 0) {
+            return;
+        }
+        synchronized (mBuffers[index]) {
+            int count = mCounts[index];
+            if (count < mBuffers[index].length) {
+                mBuffers[index][count] = buffer;
+                mCounts[index] = count + 1;
+            }
+        }
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= (1 << MIN_SIZE_SHIFT)) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return (shift > MAX_SIZE_SHIFT) ? -1 : shift - MIN_SIZE_SHIFT;
+    }
+}
@@ -0,0 +1,47 @@
+package com.codebutler.android_websockets;
+
+/**
+ * How long each phase of setting up a connection took, in microseconds. Phases that didn't happen are -1.
+ */
+public class ConnectTimings {
+    private final long mDns;
+    private final long mTcp;
+    private final long mTls;
+    private final long mUpgrade;
+
+    ConnectTimings(long dns, long tcp, long tls, long upgrade) {
+        mDns     = dns;
+        mTcp     = tcp;
+        mTls     = tls;
+        mUpgrade = upgrade;
+    }
+
+    /** Name lookup, about 0 when the address was cached. */
+    public long getDnsMicros() {
+        return mDns;
+    }
+
+    /** TCP connect. */
+    public long getTcpMicros() {
+        return mTcp;
+    }
+
+    /** TLS handshake, -1 for ws:// URIs. */
+    public long getTlsMicros() {
+        return mTls;
+    }
+
+    /** HTTP upgrade request and response. */
+    public long getUpgradeMicros() {
+        return mUpgrade;
+    }
+
+    public long getTotalMicros() {
+        return mDns + mTcp + Math.max(mTls, 0) + mUpgrade;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectTimings[dns=" + mDns + "us tcp=" + mTcp + "us tls=" + mTls + "us upgrade=" + mUpgrade + "us]";
+    }
+}
@@ -0,0 +1,332 @@
+package com.codebutler.android_websockets;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Delivers a client's listener callbacks, either inline on the thread that produced them or one at a time and in
+ * order on an {@link Executor}. Answering pings and closes happens before the callbacks either way, so a slow
+ * listener only delays itself.
+ *
+ * With an executor, buffers that the listener would otherwise only see for the duration of the callback are
+ * copied into read-only buffers, and the queue may be bounded: once it is full, a reader thread waits for room
+ * and an engine stops reading the connection until there is. A listener that throws fails the connection in
+ * both modes.
+ */
+class Dispatcher implements Runnable {
+    // Callbacks run per turn on the executor, so that clients sharing it take turns.
+    private static final int MAX_TASKS_PER_RUN = 64;
+
+    private final WebSocketClient mClient;
+    private final Executor        mExecutor;
+    private final int             mMaxQueued;
+
+    // Guarded by this.
+    private final LinkedList<Runnable> mQueue = new LinkedList<Runnable>();
+    private boolean                    mRunning;
+    private boolean                    mRejected;
+    private Thread                     mThread;
+
+    /**
+     * @param executor  null to call the listener inline.
+     * @param maxQueued the number of messages that may wait for the listener, 0 for no limit.
+     */
+    Dispatcher(WebSocketClient client, Executor executor, int maxQueued) {
+        mClient    = client;
+        mExecutor  = executor;
+        mMaxQueued = maxQueued;
+    }
+
+    boolean isInline() {
+        return mExecutor == null;
+    }
+
+    /**
+     * Returns whether the queue is full, in which case an engine stops reading until it isn't.
+     */
+    synchronized boolean isBacklogged() {
+        return mMaxQueued > 0 && mQueue.size() >= mMaxQueued;
+    }
+
+    void onConnect() {
+        if (isInline()) {
+            mClient.getListener().onConnect();
+            return;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                mClient.getListener().onConnect();
+            }
+        });
+    }
+
+    void onMessage(final String message) {
+        if (isInline()) {
+            mClient.getListener().onMessage(message);
+            return;
+        }
+        execute(new MessageTask() {
+            @Override
+            public void run() {
+                mClient.getListener().onMessage(message);
+            }
+        });
+    }
+
+    void onMessage(final byte[] data) {
+        if (isInline()) {
+            mClient.getListener().onMessage(data);
+            return;
+        }
+        execute(new MessageTask() {
+            @Override
+            public void run() {
+                mClient.getListener().onMessage(data);
+            }
+        });
+    }
+
+    void onMessage(ByteBuffer view) {
+        if (isInline()) {
+            ((WebSocketClient.ByteBufferListener) mClient.getListener()).onMessage(view);
+            return;
+        }
+        final ByteBuffer data = copy(view);
+        execute(new MessageTask() {
+            @Override
+            public void run() {
+                ((WebSocketClient.ByteBufferListener) mClient.getListener()).onMessage(data);
+            }
+        });
+    }
+
+    void onMessage(final FileChannel message, final boolean binary) {
+        if (isInline()) {
+            ((WebSocketClient.SpillListener) mClient.getListener()).onMessage(message, binary);
+            return;
+        }
+        execute(new MessageTask() {
+            @Override
+            public void run() {
+                ((WebSocketClient.SpillListener) mClient.getListener()).onMessage(message, binary);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    void onDecoded(final Object message) {
+        if (isInline()) {
+            ((WebSocketClient.CodecListener<Object>) mClient.getListener()).onDecoded(message);
+            return;
+        }
+        execute(new MessageTask() {
+            @Override
+            public void run() {
+                ((WebSocketClient.CodecListener<Object>) mClient.getListener()).onDecoded(message);
+            }
+        });
+    }
+
+    void onMessageStart(final boolean binary) {
+        if (isInline()) {
+            ((WebSocketClient.StreamingListener) mClient.getListener()).onMessageStart(binary);
+            return;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                ((WebSocketClient.StreamingListener) mClient.getListener()).onMessageStart(binary);
+            }
+        });
+    }
+
+    void onMessageChunk(ByteBuffer view) {
+        if (isInline()) {
+            ((WebSocketClient.StreamingListener) mClient.getListener()).onMessageChunk(view);
+            return;
+        }
+        final ByteBuffer chunk = copy(view);
+        execute(new MessageTask() {
+            @Override
+            public void run() {
+                ((WebSocketClient.StreamingListener) mClient.getListener()).onMessageChunk(chunk);
+            }
+        });
+    }
+
+    void onMessageEnd() {
+        if (isInline()) {
+            ((WebSocketClient.StreamingListener) mClient.getListener()).onMessageEnd();
+            return;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                ((WebSocketClient.StreamingListener) mClient.getListener()).onMessageEnd();
+            }
+        });
+    }
+
+    void onPong(final long roundTripMicros, final RoundTripStats stats) {
+        if (isInline()) {
+            ((WebSocketClient.PongListener) mClient.getListener()).onPong(roundTripMicros, stats);
+            return;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                ((WebSocketClient.PongListener) mClient.getListener()).onPong(roundTripMicros, stats);
+            }
+        });
+    }
+
+    void onReconnecting(final int attempt, final long delayMillis) {
+        if (isInline()) {
+            ((WebSocketClient.ReconnectListener) mClient.getListener()).onReconnecting(attempt, delayMillis);
+            return;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                ((WebSocketClient.ReconnectListener) mClient.getListener()).onReconnecting(attempt, delayMillis);
+            }
+        });
+    }
+
+    void onDisconnect(final int code, final String reason) {
+        if (isInline()) {
+            mClient.getListener().onDisconnect(code, reason);
+            return;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                mClient.getListener().onDisconnect(code, reason);
+            }
+        });
+    }
+
+    void onError(final Exception error) {
+        if (isInline()) {
+            mClient.getListener().onError(error);
+            return;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                mClient.getListener().onError(error);
+            }
+        });
+    }
+
+    /**
+     * Queues a callback. Messages wait for room in a full queue unless called on an engine thread, or from a
+     * callback, which would never get room.
+     */
+    private void execute(Runnable task) {
+        boolean start;
+        synchronized (this) {
+            if (task instanceof MessageTask && mMaxQueued > 0 && !WebSocketEngine.isEngineThread()) {
+                while (mQueue.size() >= mMaxQueued && mThread != Thread.currentThread()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            mQueue.add(task);
+            start    = !mRunning;
+            mRunning = true;
+        }
+        if (start) {
+            start();
+        }
+    }
+
+    /**
+     * Hands the queue to the executor. An executor that refuses, say because it was shut down, fails the
+     * connection, and the callbacks waiting in the queue are dropped.
+     */
+    private void start() {
+        try {
+            mExecutor.execute(this);
+        } catch (RejectedExecutionException e) {
+            boolean report;
+            synchronized (this) {
+                mRunning = false;
+                mQueue.clear();
+                notifyAll();
+                report    = !mRejected;
+                mRejected = true;
+            }
+            // The error callback about the refusal is likely refused as well, and isn't reported again.
+            if (report) {
+                try {
+                    mClient.listenerFailed(e);
+                } finally {
+                    synchronized (this) {
+                        mRejected = false;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        WebSocketMetrics metrics = mClient.getMetrics();
+        for (int i = 0; i < MAX_TASKS_PER_RUN; i++) {
+            Runnable task;
+            boolean  resumed;
+            synchronized (this) {
+                task = mQueue.poll();
+                if (task == null) {
+                    mRunning = false;
+                    return;
+                }
+                resumed = mMaxQueued > 0 && mQueue.size() == mMaxQueued - 1;
+                if (resumed) {
+                    notifyAll();
+                }
+                mThread = Thread.currentThread();
+            }
+            if (resumed) {
+                mClient.dispatchResumed();
+            }
+
+            long started = (task instanceof MessageTask && metrics != WebSocketMetrics.NONE) ? System.nanoTime() : 0;
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                mClient.listenerFailed(e);
+            } finally {
+                synchronized (this) {
+                    mThread = null;
+                }
+            }
+            if (started != 0) {
+                metrics.messageDispatched(System.nanoTime() - started);
+            }
+        }
+        start();
+    }
+
+    /**
+     * A callback that delivers message data, as opposed to an event.
+     */
+    private abstract static class MessageTask implements Runnable {
+    }
+
+    private static ByteBuffer copy(ByteBuffer view) {
+        ByteBuffer copy = ByteBuffer.allocate(view.remaining());
+        copy.put(view.duplicate());
+        copy.flip();
+        return copy.asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,100 @@
+package com.codebutler.android_websockets;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolved addresses shared by all clients, so that reconnecting doesn't wait for a lookup every time.
+ */
+class DnsCache {
+    private static final Map<String, Entry> sEntries = new HashMap<String, Entry>();
+
+    private static long     sTtlMillis = 30 * 1000;
+    private static Executor sResolver;
+
+    private static class Entry {
+        final InetAddress[] addresses;
+        final long          expires;
+
+        Entry(InetAddress[] addresses, long expires) {
+            this.addresses = addresses;
+            this.expires   = expires;
+        }
+    }
+
+    static synchronized void setTtl(long millis) {
+        sTtlMillis = millis;
+        if (millis <= 0) {
+            sEntries.clear();
+        }
+    }
+
+    static InetAddress[] resolve(String host) throws UnknownHostException {
+        long now = System.currentTimeMillis();
+        long ttl;
+        synchronized (DnsCache.class) {
+            Entry entry = sEntries.get(host);
+            if (entry != null && entry.expires > now) {
+                return entry.addresses;
+            }
+            ttl = sTtlMillis;
+        }
+
+        // Look up outside the lock, other hosts shouldn't wait for this one.
+        InetAddress[] addresses = InetAddress.getAllByName(host);
+        if (ttl > 0) {
+            synchronized (DnsCache.class) {
+                sEntries.put(host, new Entry(addresses, now + ttl));
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Caches addresses for a host as if they had just been looked up.
+     */
+    static synchronized void put(String host, InetAddress[] addresses) {
+        sEntries.put(host, new Entry(addresses, System.currentTimeMillis() + sTtlMillis));
+    }
+
+    /**
+     * Returns the cached addresses of a host, or null if it has to be looked up.
+     */
+    static synchronized InetAddress[] cached(String host) {
+        Entry entry = sEntries.get(host);
+        return (entry != null && entry.expires > System.currentTimeMillis()) ? entry.addresses : null;
+    }
+
+    /**
+     * Returns the threads that look up hosts for {@link WebSocketEngine}, whose selector threads must not block.
+     * Threads are started as lookups need them and stop after a minute without one.
+     */
+    static synchronized Executor getResolver() {
+        if (sResolver == null) {
+            sResolver = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "websocket-dns");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sResolver;
+    }
+
+    /**
+     * Forgets a host whose cached addresses didn't work.
+     */
+    static synchronized void invalidate(String host) {
+        sEntries.remove(host);
+    }
+}
@@ -0,0 +1,372 @@
+package com.codebutler.android_websockets;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the frames of a connection to a file, with the time each one was received or sent, so that real traffic
+ * can be replayed later, see {@link WebSocketClient#setFrameCapture(FrameCapture)}. Payloads are kept unmasked and
+ * cut to {@link #setMaxPayload(int)} bytes. Sent frames are recorded as they are encoded, before large ones are cut
+ * into fragments. Frames are written by a thread of their own, the reading and sending threads only copy them into
+ * a queue. If the file can't keep up, frames are dropped rather than slowing down the connection.
+ *
+ * <p>The file starts with the magic {@code WSC1} and the start time as a varint of milliseconds since the epoch.
+ * Each record is the microseconds since the previous one as a zigzag varint, its type and then:
+ * <ul>
+ *   <li>for a frame, its first header byte, the payload length as a varint, the number of payload bytes kept as a
+ *       varint and those bytes;</li>
+ *   <li>for a new connection, a byte with bit 0 set if permessage-deflate was negotiated and bit 1 set if the
+ *       server does not take over its compression context.</li>
+ * </ul>
+ */
+public class FrameCapture implements Closeable {
+    private static final String TAG = "FrameCapture";
+
+    private static final byte[] MAGIC = { 'W', 'S', 'C', '1' };
+
+    private static final int DEFAULT_MAX_PAYLOAD = 4096;
+    private static final int QUEUE_SIZE          = 1024;
+
+    private static final Record END = new Record(-1, 0, 0, 0, new byte[0]);
+
+    private final OutputStream          mOut;
+    private final BlockingQueue<Record> mQueue   = new ArrayBlockingQueue<Record>(QUEUE_SIZE);
+    private final AtomicLong            mDropped = new AtomicLong();
+    private final long                  mStarted = System.nanoTime();
+    private final Thread                mWriter;
+
+    private volatile int     mMaxPayload = DEFAULT_MAX_PAYLOAD;
+    private volatile boolean mClosed;
+    private IOException      mError;
+    private long             mLastTime;
+
+    public FrameCapture(File file) throws IOException {
+        mOut = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        mOut.write(MAGIC);
+        writeVarint(mOut, System.currentTimeMillis());
+
+        mWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeRecords();
+            }
+        }, "websocket-capture");
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+    /**
+     * Sets how many bytes of each payload are kept. Defaults to 4 KB, enough for most messages while keeping only
+     * the size of large ones. Replaying compressed messages needs all of them.
+     */
+    public void setMaxPayload(int bytes) {
+        mMaxPayload = bytes;
+    }
+
+    /**
+     * Returns the number of frames that were dropped because the file could not keep up.
+     */
+    public long getDroppedFrames() {
+        return mDropped.get();
+    }
+
+    /**
+     * Writes out the frames recorded so far and closes the file. Frames received or sent afterwards are ignored.
+     *
+     * @throws IOException if writing the file failed at any point.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+        }
+        try {
+            mQueue.put(END);
+            mWriter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mOut.close();
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    /**
+     * Starts the record of a frame, with room for the part of its payload that is kept.
+     */
+    Record newFrame(boolean inbound, int head, long length) {
+        int kept = (int) Math.min(length, Math.max(mMaxPayload, 0));
+        return new Record(inbound ? Record.INBOUND : Record.OUTBOUND, elapsedMicros(), head, length, new byte[kept]);
+    }
+
+    void connected(boolean deflate, boolean serverNoContextTakeover) {
+        int flags = (deflate ? 1 : 0) | (serverNoContextTakeover ? 2 : 0);
+        add(new Record(Record.CONNECTED, elapsedMicros(), flags, 0, new byte[0]));
+    }
+
+    /**
+     * Hands a complete record to the writer, or drops it if the writer is too far behind.
+     */
+    void add(Record record) {
+        if (mClosed) {
+            return;
+        }
+        if (!mQueue.offer(record)) {
+            mDropped.incrementAndGet();
+        }
+    }
+
+    private long elapsedMicros() {
+        return (System.nanoTime() - mStarted) / 1000;
+    }
+
+    private void writeRecords() {
+        while (true) {
+            Record record;
+            try {
+                record = mQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (record == END) {
+                break;
+            }
+            if (mError != null) {
+                continue;
+            }
+            try {
+                write(record);
+                if (mQueue.isEmpty()) {
+                    mOut.flush();
+                }
+            } catch (IOException e) {
+                Log.d(TAG, "Capture failed", e);
+                mError = e;
+            }
+        }
+        try {
+            mOut.flush();
+        } catch (IOException e) {
+            if (mError == null) {
+                mError = e;
+            }
+        }
+    }
+
+    private void write(Record record) throws IOException {
+        // Records from different threads may be queued slightly out of order, hence the signed delta.
+        long delta = record.mTime - mLastTime;
+        mLastTime = record.mTime;
+        writeVarint(mOut, (delta << 1) ^ (delta >> 63));
+        mOut.write(record.mType);
+        mOut.write(record.mHead);
+        if (record.mType != Record.CONNECTED) {
+            writeVarint(mOut, record.mLength);
+            writeVarint(mOut, record.mPayload.length);
+            mOut.write(record.mPayload);
+        }
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Truncated capture");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Bad varint in capture");
+    }
+
+    /**
+     * A frame or the start of a connection read back from a capture.
+     */
+    public static class Record {
+        public static final int INBOUND   = 0;
+        public static final int OUTBOUND  = 1;
+        public static final int CONNECTED = 2;
+
+        private final int    mType;
+        private final long   mTime;
+        private final int    mHead;
+        private final long   mLength;
+        private final byte[] mPayload;
+        private int          mFilled;
+
+        Record(int type, long time, int head, long length, byte[] payload) {
+            mType    = type;
+            mTime    = time;
+            mHead    = head & 0xFF;
+            mLength  = length;
+            mPayload = payload;
+        }
+
+        /**
+         * Copies the next payload bytes in, as far as they are kept.
+         *
+         * @return whether all the kept bytes are there.
+         */
+        boolean append(byte[] data, int offset, int length) {
+            int count = Math.min(length, mPayload.length - mFilled);
+            System.arraycopy(data, offset, mPayload, mFilled, count);
+            mFilled += count;
+            return mFilled == mPayload.length;
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        /** Microseconds since the capture started. */
+        public long getTimeMicros() {
+            return mTime;
+        }
+
+        /** The first byte of the frame header: FIN, RSV bits and opcode. */
+        public int getHead() {
+            return mHead;
+        }
+
+        public int getOpcode() {
+            return mHead & 0x0F;
+        }
+
+        public boolean isFinal() {
+            return (mHead & 0x80) != 0;
+        }
+
+        public boolean isCompressed() {
+            return (mHead & 0x40) != 0;
+        }
+
+        /** The full payload length of the frame. */
+        public long getLength() {
+            return mLength;
+        }
+
+        /** The part of the payload that was kept, unmasked. */
+        public byte[] getPayload() {
+            return mPayload;
+        }
+
+        public boolean isTruncated() {
+            return mPayload.length < mLength;
+        }
+
+        /** For {@link #CONNECTED}, whether permessage-deflate was negotiated. */
+        public boolean isDeflate() {
+            return (mHead & 1) != 0;
+        }
+
+        /** For {@link #CONNECTED}, whether the server resets its compression context for every message. */
+        public boolean isServerNoContextTakeover() {
+            return (mHead & 2) != 0;
+        }
+    }
+
+    /**
+     * Reads a capture back, one record at a time.
+     */
+    public static class Reader implements Closeable {
+        private final InputStream mIn;
+        private final long        mStartMillis;
+        private long              mTime;
+
+        public Reader(File file) throws IOException {
+            mIn = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+            for (byte b : MAGIC) {
+                if (mIn.read() != b) {
+                    mIn.close();
+                    throw new IOException("Not a frame capture: " + file);
+                }
+            }
+            mStartMillis = readVarint(mIn);
+        }
+
+        /** When the capture started, in milliseconds since the epoch. */
+        public long getStartMillis() {
+            return mStartMillis;
+        }
+
+        /**
+         * @return the next record, or null at the end of the capture.
+         */
+        public Record read() throws IOException {
+            int first = mIn.read();
+            if (first == -1) {
+                return null;
+            }
+            long zigzag = readVarintAfter(first);
+            mTime += (zigzag >>> 1) ^ -(zigzag & 1);
+
+            int type = readByte();
+            int head = readByte();
+            if (type == Record.CONNECTED) {
+                return new Record(type, mTime, head, 0, new byte[0]);
+            }
+            if (type != Record.INBOUND && type != Record.OUTBOUND) {
+                throw new IOException("Bad record type in capture: " + type);
+            }
+            long   length  = readVarint(mIn);
+            byte[] payload = new byte[(int) readVarint(mIn)];
+            int    read    = 0;
+            while (read < payload.length) {
+                int count = mIn.read(payload, read, payload.length - read);
+                if (count == -1) {
+                    throw new EOFException("Truncated capture");
+                }
+                read += count;
+            }
+            return new Record(type, mTime, head, length, payload);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+
+        private long readVarintAfter(int first) throws IOException {
+            if ((first & 0x80) == 0) {
+                return first;
+            }
+            return (first & 0x7F) | (readVarint(mIn) << 7);
+        }
+
+        private int readByte() throws IOException {
+            int b = mIn.read();
+            if (b == -1) {
+                throw new EOFException("Truncated capture");
+            }
+            return b;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.codebutler.android_websockets;
+
+/**
+ * FIFO of encoded frames waiting to be written. Frames are kept in parallel arrays so that queueing one allocates
+ * nothing once the queue has grown to its working size. Not thread-safe, callers synchronize.
+ */
+class FrameQueue {
+    /** The frame came from the buffer pool and goes back to it once written. */
+    static final int FLAG_POOLED   = 1;
+    /** Control frame, never dropped to make room. */
+    static final int FLAG_CONTROL  = 2;
+    /** Fragment of a streamed message, never dropped since that would corrupt the message. */
+    static final int FLAG_FRAGMENT = 4;
+    /** Ping or pong, written ahead of queued data, between the fragments of a message if need be. */
+    static final int FLAG_URGENT   = 8;
+    /** Data message written ahead of normal ones, see {@link WebSocketClient.Priority}. */
+    static final int FLAG_HIGH     = 16;
+
+    private byte[][] mFrames  = new byte[16][];
+    private int[]    mLengths = new int[16];
+    private int[]    mFlags   = new int[16];
+
+    private int  mHead;
+    private int  mCount;
+    private long mBytes;
+
+    public void add(byte[] frame, int length, int flags) {
+        if (mCount == mFrames.length) {
+            grow();
+        }
+        int index = (mHead + mCount) & (mFrames.length - 1);
+        mFrames[index]  = frame;
+        mLengths[index] = length;
+        mFlags[index]   = flags;
+        mCount++;
+        mBytes += length;
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * Number of queued frames.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Total length of the queued frames.
+     */
+    public long bytes() {
+        return mBytes;
+    }
+
+    public byte[] frame(int i) {
+        return mFrames[(mHead + i) & (mFrames.length - 1)];
+    }
+
+    public int length(int i) {
+        return mLengths[(mHead + i) & (mFrames.length - 1)];
+    }
+
+    public int flags(int i) {
+        return mFlags[(mHead + i) & (mFrames.length - 1)];
+    }
+
+    public void setFlags(int i, int flags) {
+        mFlags[(mHead + i) & (mFrames.length - 1)] = flags;
+    }
+
+    public void removeFirst() {
+        mBytes -= mLengths[mHead];
+        mFrames[mHead] = null;
+        mHead = (mHead + 1) & (mFrames.length - 1);
+        mCount--;
+    }
+
+    /**
+     * Removes the oldest frame that has none of {@code keepFlags} set, returning it to {@code pool} if it is
+     * pooled.
+     *
+     * @return the length of the removed frame, or -1 if there was none to remove.
+     */
+    public int removeOldest(int keepFlags, BufferPool pool) {
+        int mask = mFrames.length - 1;
+        for (int i = 0; i < mCount; i++) {
+            int index = (mHead + i) & mask;
+            if ((mFlags[index] & keepFlags) != 0) {
+                continue;
+            }
+            byte[] frame  = mFrames[index];
+            int    length = mLengths[index];
+            int    flags  = mFlags[index];
+
+            // Shift the frames in front of it up by one to close the gap.
+            for (int j = i; j > 0; j--) {
+                int to   = (mHead + j) & mask;
+                int from = (mHead + j - 1) & mask;
+                mFrames[to]  = mFrames[from];
+                mLengths[to] = mLengths[from];
+                mFlags[to]   = mFlags[from];
+            }
+            mLengths[mHead] = length;
+            removeFirst();
+
+            if ((flags & FLAG_POOLED) != 0) {
+                pool.release(frame);
+            }
+            return length;
+        }
+        return -1;
+    }
+
+    /**
+     * Empties the queue, returning pooled frames to {@code pool}.
+     */
+    public void clear(BufferPool pool) {
+        while (mCount > 0) {
+            if ((mFlags[mHead] & FLAG_POOLED) != 0) {
+                pool.release(mFrames[mHead]);
+            }
+            removeFirst();
+        }
+        mHead = 0;
+    }
+
+    private void grow() {
+        int      capacity = mFrames.length << 1;
+        byte[][] frames   = new byte[capacity][];
+        int[]    lengths  = new int[capacity];
+        int[]    flags    = new int[capacity];
+        for (int i = 0; i < mCount; i++) {
+            int index = (mHead + i) & (mFrames.length - 1);
+            frames[i]  = mFrames[index];
+            lengths[i] = mLengths[index];
+            flags[i]   = mFlags[index];
+        }
+        mFrames  = frames;
+        mLengths = lengths;
+        mFlags   = flags;
+        mHead    = 0;
+    }
+}
@@ -0,0 +1,127 @@
+package com.codebutler.android_websockets;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Parses the server's response to the upgrade request from bytes as they arrive, and stops right at the blank line
+ * that ends it so that whatever follows can go to the frame decoder. Header names are matched case-insensitively,
+ * repeated headers are joined with commas.
+ */
+class HandshakeParser {
+    private static final int MAX_SIZE = 16 * 1024;
+
+    private final MessageBuffer       mBuffer  = new MessageBuffer();
+    private final Map<String, String> mHeaders = new HashMap<String, String>();
+
+    private boolean mLineEmpty = true;
+    private boolean mComplete;
+    private int     mStatusCode;
+    private String  mReason;
+
+    /**
+     * Takes the next bytes of the response.
+     *
+     * @return how many of them belong to the response, all of them until it is complete.
+     */
+    int parse(byte[] data, int offset, int length) throws WebSocketClient.HandshakeException {
+        if (mComplete) {
+            return 0;
+        }
+
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            byte b = data[i];
+            if (b == '\n') {
+                if (mLineEmpty && mBuffer.size() + i - offset > 1) {
+                    end = i + 1;
+                    mComplete = true;
+                    break;
+                }
+                mLineEmpty = true;
+            } else if (b != '\r') {
+                mLineEmpty = false;
+            }
+        }
+
+        mBuffer.write(data, offset, end - offset);
+        if (mBuffer.size() > MAX_SIZE) {
+            throw new WebSocketClient.HandshakeException("Handshake response too large");
+        }
+        if (mComplete) {
+            parseLines();
+        }
+        return end - offset;
+    }
+
+    boolean isComplete() {
+        return mComplete;
+    }
+
+    int getStatusCode() {
+        return mStatusCode;
+    }
+
+    String getReason() {
+        return mReason;
+    }
+
+    /**
+     * @return the value of the header with surrounding whitespace removed, or null if there is none.
+     */
+    String getHeader(String name) {
+        return mHeaders.get(name.toLowerCase(Locale.US));
+    }
+
+    private void parseLines() throws WebSocketClient.HandshakeException {
+        String response;
+        try {
+            response = new String(mBuffer.array(), 0, mBuffer.size(), "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+
+        String[] lines = response.split("\r?\n");
+        parseStatusLine(lines[0]);
+
+        String name = null;
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i];
+            if (line.length() == 0) {
+                break;
+            }
+            if ((line.charAt(0) == ' ' || line.charAt(0) == '\t') && name != null) {
+                // Obsolete line folding, the value continues.
+                mHeaders.put(name, (mHeaders.get(name) + " " + line.trim()).trim());
+                continue;
+            }
+
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                throw new WebSocketClient.HandshakeException("Bad header line: " + line);
+            }
+            name = line.substring(0, colon).trim().toLowerCase(Locale.US);
+            String value    = line.substring(colon + 1).trim();
+            String previous = mHeaders.get(name);
+            mHeaders.put(name, (previous == null) ? value : previous + "," + value);
+        }
+        mBuffer.reset();
+    }
+
+    private void parseStatusLine(String line) throws WebSocketClient.HandshakeException {
+        // HTTP/1.1 101 Switching Protocols
+        int first  = line.indexOf(' ');
+        int second = line.indexOf(' ', first + 1);
+        if (!line.startsWith("HTTP/") || first == -1) {
+            throw new WebSocketClient.HandshakeException("Bad status line: " + line);
+        }
+        try {
+            mStatusCode = Integer.parseInt(line.substring(first + 1, (second == -1) ? line.length() : second));
+        } catch (NumberFormatException e) {
+            throw new WebSocketClient.HandshakeException("Bad status line: " + line);
+        }
+        mReason = (second == -1) ? "" : line.substring(second + 1);
+    }
+}
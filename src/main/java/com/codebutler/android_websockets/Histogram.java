@@ -0,0 +1,101 @@
+package com.codebutler.android_websockets;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non-negative values in buckets that are a quarter of a power of two wide, so that percentiles are
+ * within 25% of the true value. Recording is lock-free and allocates nothing. Thread-safe.
+ */
+public class Histogram {
+    private static final int BUCKETS = 4 + 61 * 4;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong      mCount   = new AtomicLong();
+    private final AtomicLong      mSum     = new AtomicLong();
+    private final AtomicLong      mMax     = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mBuckets.incrementAndGet(bucket(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getSum() {
+        return mSum.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public long getMean() {
+        long count = mCount.get();
+        return (count == 0) ? 0 : mSum.get() / count;
+    }
+
+    /**
+     * Returns the value below which {@code percentile} percent of the recorded values fall, rounded up to the end
+     * of its bucket.
+     */
+    public long getPercentile(double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    // 0 to 3 get a bucket each, then four per power of two.
+    private static int bucket(long value) {
+        if (value < 4) {
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        return 4 + (msb - 2) * 4 + (int) ((value >>> (msb - 2)) & 3);
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < 4) {
+            return bucket;
+        }
+        int  shift = (bucket - 4) / 4;
+        long low   = (4L + (bucket - 4) % 4) << shift;
+        return low + (1L << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "Histogram[count=" + getCount() + " mean=" + getMean() + " p50=" + getPercentile(50)
+                + " p99=" + getPercentile(99) + " max=" + getMax() + "]";
+    }
+}
@@ -33,6 +33,11 @@ package com.codebutler.android_websockets;
 import android.util.Log;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.List;
 
@@ -49,15 +54,61 @@ public class HybiParser {
     private boolean mMasked;
     private int     mOpcode;
     private int     mLengthSize;
-    private int     mLength;
+    private long    mLength;
     private int     mMode;
+    private boolean mCompressed;
+    private boolean mStreaming;
+    private boolean mSpilling;
 
-    private byte[] mMask    = new byte[0];
-    private byte[] mPayload = new byte[0];
+    private int     mMask;
 
-    private boolean mClosed = false;
+    // Destination of a payload that is not entirely in the read buffer, null otherwise.
+    private byte[]  mPayload;
+    private int     mPayloadBase;
+    private long    mPayloadOffset;
+    private boolean mPayloadOwned;
 
-    private ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+    private byte[] mReadBuffer;
+
+    private volatile boolean mClosed = false;
+    private boolean          mCloseReceived;
+
+    // The thread that opened the message being streamed out, other data messages wait for it. Guarded by mStreamLock.
+    private final Object mStreamLock = new Object();
+    private Thread       mStreamThread;
+
+    private long mMaskSeed;
+
+    private volatile PerMessageDeflate.Session mDeflate;
+    private volatile MessageCodec<Object>      mCodec;
+
+    // Records frames if set. mCaptureRecord is the frame being received while it still needs payload, for the
+    // capture in mCaptureTarget, which it goes to even if the capture was replaced or stopped meanwhile.
+    private volatile FrameCapture mCapture;
+    private FrameCapture          mCaptureTarget;
+    private FrameCapture.Record   mCaptureRecord;
+
+    private MessageBuffer mBuffer  = new MessageBuffer();
+    private MessageBuffer mScratch = new MessageBuffer();
+    private Utf8Decoder   mUtf8    = new Utf8Decoder();
+
+    private byte[]     mViewArray;
+    private ByteBuffer mView;
+    private byte[]     mCodecViewArray;
+    private ByteBuffer mCodecView;
+
+    // The client's metrics as of the current read, and how long listeners took during it.
+    private WebSocketMetrics mMetrics = WebSocketMetrics.NONE;
+    private long             mDispatchNanos;
+    private long             mMessageLength;
+
+    // Limits on what is received, checked against each frame header before any of the payload is read.
+    private long mMaxFrameSize   = Long.MAX_VALUE;
+    private long mMaxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+    private long mInflatedLength;
+
+    // Where messages that may not fit in memory are collected, null to keep them all in memory.
+    private SpillBuffer mSpill;
 
     private static final int BYTE   = 255;
     private static final int FIN    = 128;
@@ -68,6 +119,16 @@ public class HybiParser {
     private static final int OPCODE =  15;
     private static final int LENGTH = 127;
 
+    private static final int STAGE_HEADER  = 0;
+    private static final int STAGE_PAYLOAD = 1;
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    static final long DEFAULT_MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+
+    // Some VMs reserve a few header words in an array, so this is as large as a buffered message can get.
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
     private static final int MODE_TEXT   = 1;
     private static final int MODE_BINARY = 2;
 
@@ -78,6 +139,10 @@ public class HybiParser {
     private static final int OP_PING         =  9;
     private static final int OP_PONG         = 10;
 
+    private static final int CLOSE_PROTOCOL_ERROR = 1002;
+    private static final int CLOSE_INVALID_DATA   = 1007;
+    static final int         CLOSE_TOO_LARGE      = 1009;
+
     private static final List<Integer> OPCODES = Arrays.asList(
         OP_CONTINUATION,
         OP_TEXT,
@@ -91,44 +156,488 @@ public class HybiParser {
         OP_CONTINUATION, OP_TEXT, OP_BINARY
     );
 
+    private static final SecureRandom sSeedRandom = new SecureRandom();
+
     public HybiParser(WebSocketClient client) {
-        mClient = client;
+        mClient   = client;
+        mMaskSeed = sSeedRandom.nextLong() | 1;
+        mBuffer.setMaxCapacity((int) DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    /**
+     * Forgets the state of a previous connection, before a new one starts.
+     */
+    void restart() {
+        mStage      = STAGE_HEADER;
+        mPayload    = null;
+        mCompressed = false;
+        mStreaming  = false;
+        mSpilling   = false;
+        mClosed     = false;
+        mCloseReceived = false;
+        mMessageLength = 0;
+        mInflatedLength = 0;
+        mCaptureTarget  = null;
+        mCaptureRecord  = null;
+        mScratch.reset();
+        reset();
+    }
+
+    /**
+     * Enables permessage-deflate for the connection after it was negotiated in the handshake, or disables it with
+     * null.
+     */
+    void setDeflate(PerMessageDeflate.Session deflate) {
+        mDeflate = deflate;
+    }
+
+    /**
+     * Called once the handshake is done, with the permessage-deflate session if it was negotiated.
+     */
+    void connected(PerMessageDeflate.Session deflate) {
+        mDeflate = deflate;
+        FrameCapture capture = mCapture;
+        if (capture != null) {
+            capture.connected(deflate != null, deflate != null && deflate.isServerNoContextTakeover());
+        }
+    }
+
+    /**
+     * Records the frames received and sent from now on, or stops with null.
+     */
+    void setCapture(FrameCapture capture) {
+        mCapture = capture;
+    }
+
+    /**
+     * Decodes data messages with the codec negotiated for the connection, or hands them to the listener as they
+     * are with null.
+     */
+    @SuppressWarnings("unchecked")
+    void setCodec(MessageCodec<?> codec) {
+        mCodec = (MessageCodec<Object>) codec;
+    }
+
+    /**
+     * XORs {@code length} bytes in place with the big-endian masking key. {@code maskOffset} is the position of the
+     * first byte within the masked payload, so a payload can be unmasked in several pieces.
+     *
+     * Bytes are processed eight at a time against the key widened to a long. Leading bytes up to the next 8 byte
+     * boundary of the array and the trailing remainder are done one by one.
+     */
+    static void mask(byte[] data, int offset, int length, int mask, int maskOffset) {
+        // Rotate the key so that it starts at the byte used for data[offset].
+        int key = Integer.rotateLeft(mask, (maskOffset & 3) << 3);
+        int end = offset + length;
+        int i   = offset;
+
+        if (length >= 16) {
+            int head = (8 - (offset & 7)) & 7;
+            for (; i < offset + head; i++) {
+                data[i] = (byte) (data[i] ^ (key >>> ((3 - ((i - offset) & 3)) << 3)));
+            }
+
+            int        wordKey = Integer.rotateLeft(key, (head & 3) << 3);
+            long       wide    = ((long) wordKey << 32) | (wordKey & 0xFFFFFFFFL);
+            ByteBuffer words   = ByteBuffer.wrap(data);
+            int        wordEnd = i + ((end - i) & ~7);
+            for (; i < wordEnd; i += 8) {
+                words.putLong(i, words.getLong(i) ^ wide);
+            }
+        }
+
+        for (; i < end; i++) {
+            data[i] = (byte) (data[i] ^ (key >>> ((3 - ((i - offset) & 3)) << 3)));
+        }
+    }
+
+    /**
+     * Same as {@link #mask(byte[], int, int, int, int)} for the bytes between the buffer's position and limit. The
+     * position is left unchanged.
+     */
+    static void mask(ByteBuffer buffer, int mask, int maskOffset) {
+        if (buffer.hasArray()) {
+            mask(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), mask, maskOffset);
+            return;
+        }
+
+        int  key   = Integer.rotateLeft(mask, (maskOffset & 3) << 3);
+        long wide  = ((long) key << 32) | (key & 0xFFFFFFFFL);
+        if (buffer.order() == ByteOrder.LITTLE_ENDIAN) {
+            wide = Long.reverseBytes(wide);
+        }
+        int  start = buffer.position();
+        int  end   = buffer.limit();
+        int  i     = start;
+        for (; i + 8 <= end; i += 8) {
+            buffer.putLong(i, buffer.getLong(i) ^ wide);
+        }
+        for (; i < end; i++) {
+            buffer.put(i, (byte) (buffer.get(i) ^ (key >>> ((3 - ((i - start) & 3)) << 3))));
+        }
+    }
+
+    /**
+     * Reads frames from the stream until EOF. Data is pulled from the stream in large chunks into a single reusable
+     * buffer and frames are decoded straight out of it, so that small frames cost no allocation other than the
+     * delivered payload.
+     */
+    public void start(InputStream stream) throws IOException {
+        start(stream, null, 0, 0);
+    }
+
+    /**
+     * Decodes {@code length} bytes that were already read from the stream, then the rest of the stream.
+     */
+    void start(InputStream stream, byte[] data, int offset, int length) throws IOException {
+        if (mReadBuffer == null) {
+            mReadBuffer = new byte[READ_BUFFER_SIZE];
+        }
+        byte[] buffer = mReadBuffer;
+        int    limit  = 0;
+
+        if (length > 0) {
+            int consumed = decode(data, offset, length);
+            limit = length - consumed;
+            System.arraycopy(data, offset + consumed, buffer, 0, limit);
+        }
+
+        while (true) {
+            if (limit == 0 && mPayload != null) {
+                // Nothing buffered and in the middle of a large payload, read straight into it.
+                int read = stream.read(mPayload, mPayloadBase + (int) mPayloadOffset, (int) (mLength - mPayloadOffset));
+                if (read == -1) break;
+                decodePayload(read);
+                continue;
+            }
+
+            int read = stream.read(buffer, limit, buffer.length - limit);
+            if (read == -1) break;
+            limit += read;
+
+            int consumed = decode(buffer, 0, limit);
+            if (consumed < limit) {
+                System.arraycopy(buffer, consumed, buffer, 0, limit - consumed);
+            }
+            limit -= consumed;
+        }
+        mClient.getDispatcher().onDisconnect(0, "EOF");
     }
 
-    private static byte[] mask(byte[] payload, byte[] mask, int offset) {
-        if (mask.length == 0) return payload;
+    /**
+     * Decodes as many frames as possible from the given bytes.
+     *
+     * Masked payloads are unmasked in place, so the content of {@code buffer} is modified.
+     *
+     * @return the number of bytes consumed. Unconsumed bytes are an incomplete frame header and must be passed
+     *         in again, followed by more data.
+     */
+    int decode(byte[] buffer, int offset, int length) throws IOException {
+        mClient.dataReceived();
+        WebSocketMetrics metrics = mClient.getMetrics();
+        long             started = (metrics != WebSocketMetrics.NONE) ? System.nanoTime() : 0;
+        mMetrics       = metrics;
+        mDispatchNanos = 0;
+        try {
+            int consumed = decodeFrames(buffer, offset, length);
+            if (started != 0) {
+                metrics.dataParsed(length, System.nanoTime() - started - mDispatchNanos);
+            }
+            return consumed;
+        } catch (ProtocolError e) {
+            close(e.getCloseCode(), e.getMessage());
+            throw e;
+        }
+    }
 
-        for (int i = 0; i < payload.length - offset; i++) {
-            payload[offset + i] = (byte) (payload[offset + i] ^ mask[i % 4]);
+    /**
+     * Like {@link #decode(byte[], int, int)} for {@code count} bytes that were read straight into the payload.
+     */
+    private void decodePayload(int count) throws IOException {
+        mClient.dataReceived();
+        WebSocketMetrics metrics = mClient.getMetrics();
+        long             started = (metrics != WebSocketMetrics.NONE) ? System.nanoTime() : 0;
+        mMetrics       = metrics;
+        mDispatchNanos = 0;
+        try {
+            payloadReceived(count);
+            if (started != 0) {
+                metrics.dataParsed(count, System.nanoTime() - started - mDispatchNanos);
+            }
+        } catch (ProtocolError e) {
+            close(e.getCloseCode(), e.getMessage());
+            throw e;
         }
-        return payload;
     }
 
-    public void start(HappyDataInputStream stream) throws IOException {
+    private int decodeFrames(byte[] buffer, int offset, int length) throws IOException {
+        int position = offset;
+        int end      = offset + length;
+
         while (true) {
-            if (stream.available() == -1) break;
-            switch (mStage) {
-                case 0:
-                    parseOpcode(stream.readByte());
-                    break;
-                case 1:
-                    parseLength(stream.readByte());
-                    break;
-                case 2:
-                    parseExtendedLength(stream.readBytes(mLengthSize));
-                    break;
-                case 3:
-                    mMask = stream.readBytes(4);
-                    mStage = 4;
-                    break;
-                case 4:
-                    mPayload = stream.readBytes(mLength);
-                    emitFrame();
-                    mStage = 0;
-                    break;
-            }
-        }
-        mClient.getListener().onDisconnect(0, "EOF");
+            if (mCloseReceived) {
+                // Nothing may follow a close frame.
+                return length;
+            }
+            int available = end - position;
+
+            if (mStage == STAGE_HEADER) {
+                if (available < 2) break;
+
+                int headerSize = headerSize(buffer[position + 1]);
+                if (available < headerSize) break;
+
+                parseOpcode(buffer[position]);
+                parseLength(buffer[position + 1]);
+                if (mLengthSize > 0) {
+                    parseExtendedLength(buffer, position + 2);
+                }
+                if (mMasked) {
+                    mMask = (int) byteArrayToLong(buffer, position + headerSize - 4, 4);
+                }
+                position += headerSize;
+                mStage    = STAGE_PAYLOAD;
+
+                mStreaming = mOpcode <= OP_BINARY && mCodec == null
+                        && (mClient.getListener() instanceof WebSocketClient.StreamingListener || spills());
+                checkLength();
+                countFrame(headerSize);
+                if (mCapture != null) {
+                    captureInbound(buffer[position - headerSize]);
+                }
+                if (mStreaming) {
+                    startStreamingFrame();
+                }
+
+            } else if (mStreaming) {
+                // Hand over whatever part of the payload is here, unmasked in place.
+                int count = (int) Math.min(available, mLength - mPayloadOffset);
+                if (count > 0) {
+                    if (mMasked) {
+                        mask(buffer, position, count, mMask, (int) mPayloadOffset);
+                    }
+                    if (mCaptureRecord != null) {
+                        capturePayload(buffer, position, count);
+                    }
+                    streamPayload(buffer, position, count);
+                    position       += count;
+                    mPayloadOffset += count;
+                }
+                if (mPayloadOffset < mLength) break;
+                endStreamingFrame();
+
+            } else if (mPayload == null && available >= mLength) {
+                // The whole payload is buffered, decode it in place.
+                int size = (int) mLength;
+                if (mMasked) {
+                    mask(buffer, position, size, mMask, 0);
+                }
+                if (mCaptureRecord != null) {
+                    capturePayload(buffer, position, size);
+                }
+                mPayloadOwned = false;
+                position += size;
+                emitFrame(buffer, position - size, size);
+
+            } else {
+                if (available == 0) break;
+                if (mPayload == null) {
+                    preparePayload();
+                }
+                int count = (int) Math.min(available, mLength - mPayloadOffset);
+                System.arraycopy(buffer, position, mPayload, mPayloadBase + (int) mPayloadOffset, count);
+                position += count;
+                payloadReceived(count);
+            }
+        }
+
+        return position - offset;
+    }
+
+    /**
+     * Rejects a frame that is larger than allowed, or that would make a message held in memory larger than allowed,
+     * before any of its payload is read. Streamed messages are not held, so only the frame limit applies to them.
+     */
+    private void checkLength() throws ProtocolError {
+        if (mLength > mMaxFrameSize) {
+            throw new ProtocolError("Frame too large: " + mLength, CLOSE_TOO_LARGE);
+        }
+        if (mOpcode <= OP_BINARY && !mStreaming && mMessageLength + mLength > getMaxBufferedSize()) {
+            throw new ProtocolError("Message too large: " + (mMessageLength + mLength), CLOSE_TOO_LARGE);
+        }
+        if (mStreaming && mSpill != null && mMessageLength + mLength > mSpill.getMaxSize()) {
+            throw new ProtocolError("Message too large: " + (mMessageLength + mLength), CLOSE_TOO_LARGE);
+        }
+    }
+
+    /**
+     * Returns whether the data frame that just arrived belongs to a message for the spill buffer. A message goes
+     * there if it could outgrow the threshold: it is compressed, fragmented or large. Any other message is read as
+     * usual.
+     */
+    private boolean spills() {
+        if (mSpill == null) {
+            return false;
+        }
+        if (mOpcode == OP_CONTINUATION) {
+            return mSpilling;
+        }
+        return mCompressed || !mFinal || mLength > mSpill.getThreshold();
+    }
+
+    /**
+     * Collects messages that may not fit in memory in {@code spill}, or stops with null. Only between connections.
+     */
+    void setSpill(SpillBuffer spill) {
+        mSpill = spill;
+    }
+
+    /**
+     * Drops a message that was partly received when the connection ended, releasing its spill file.
+     */
+    void connectionClosed() {
+        SpillBuffer spill = mSpill;
+        if (spill != null) {
+            spill.reset();
+        }
+        mSpilling = false;
+    }
+
+    private long getMaxBufferedSize() {
+        return Math.min(mMaxMessageSize, MAX_ARRAY_SIZE);
+    }
+
+    /**
+     * Sets the largest frame accepted, whatever the listener. Defaults to no limit, so that a
+     * {@link WebSocketClient.StreamingListener} can receive frames of any length.
+     */
+    void setMaxFrameSize(long bytes) {
+        mMaxFrameSize = bytes;
+    }
+
+    /**
+     * Sets the largest message that is assembled in memory, after decompression. Defaults to 64 MB.
+     */
+    void setMaxMessageSize(long bytes) {
+        mMaxMessageSize = bytes;
+        mBuffer.setMaxCapacity((int) getMaxBufferedSize());
+    }
+
+    private void countFrame(int headerSize) {
+        mMetrics.frameReceived(mOpcode, headerSize + mLength);
+        if (mOpcode <= OP_BINARY) {
+            mMessageLength += mLength;
+            if (mFinal) {
+                boolean binary = (mOpcode == OP_CONTINUATION) ? mMode == MODE_BINARY : mOpcode == OP_BINARY;
+                mMetrics.messageReceived(binary, mMessageLength);
+                mMessageLength = 0;
+            }
+        }
+    }
+
+    /**
+     * Picks where a payload that arrives in several reads is assembled. Binary fragments, and text fragments for a
+     * codec, are written straight into the message buffer, while text, compressed frames and messages for a codec
+     * or a {@link WebSocketClient.ByteBufferListener} go to a reusable scratch buffer. Anything else gets an array
+     * of its own that can be handed to the listener as is.
+     */
+    private void preparePayload() {
+        int length = (int) mLength;
+        mPayloadOffset = 0;
+        boolean text = mCodec == null && (mOpcode == OP_TEXT || (mOpcode == OP_CONTINUATION && mMode == MODE_TEXT));
+        if ((mCompressed && mOpcode <= OP_BINARY) || text) {
+            mScratch.reset();
+            mPayload      = mScratch.reserve(length);
+            mPayloadBase  = 0;
+            mPayloadOwned = false;
+        } else if (mOpcode == OP_CONTINUATION || (!mFinal && FRAGMENTED_OPCODES.contains(mOpcode))) {
+            mPayload      = mBuffer.reserve(length);
+            mPayloadBase  = mBuffer.size();
+            mPayloadOwned = false;
+        } else if (mCodec != null
+                || (mOpcode == OP_BINARY && mClient.getListener() instanceof WebSocketClient.ByteBufferListener)) {
+            mScratch.reset();
+            mPayload      = mScratch.reserve(length);
+            mPayloadBase  = 0;
+            mPayloadOwned = false;
+        } else {
+            mPayload      = new byte[length];
+            mPayloadBase  = 0;
+            mPayloadOwned = true;
+        }
+    }
+
+    private void payloadReceived(int count) throws IOException {
+        if (mMasked) {
+            mask(mPayload, mPayloadBase + (int) mPayloadOffset, count, mMask, (int) mPayloadOffset);
+        }
+        if (mCaptureRecord != null) {
+            capturePayload(mPayload, mPayloadBase + (int) mPayloadOffset, count);
+        }
+        mPayloadOffset += count;
+        if (mPayloadOffset == mLength) {
+            byte[] payload = mPayload;
+            int    length  = (int) mLength;
+            mPayload = null;
+            if (payload == mBuffer.array()) {
+                // Already assembled in place.
+                mBuffer.commit(length);
+                emitFrame(null, 0, length);
+            } else {
+                emitFrame(payload, mPayloadBase, length);
+            }
+        }
+    }
+
+    // Starts recording the frame whose header was just parsed.
+    private void captureInbound(int head) {
+        FrameCapture capture = mCapture;
+        if (capture == null) {
+            return;
+        }
+        FrameCapture.Record record = capture.newFrame(true, head, mLength);
+        if (record.getPayload().length == 0) {
+            capture.add(record);
+            mCaptureTarget = null;
+            mCaptureRecord = null;
+        } else {
+            mCaptureTarget = capture;
+            mCaptureRecord = record;
+        }
+    }
+
+    // Adds unmasked payload to the frame being recorded, and hands it to the capture once it has all it keeps.
+    private void capturePayload(byte[] data, int offset, int length) {
+        if (mCaptureRecord.append(data, offset, length)) {
+            mCaptureTarget.add(mCaptureRecord);
+            mCaptureTarget = null;
+            mCaptureRecord = null;
+        }
+    }
+
+    /**
+     * Queues an encoded frame, recording it first if frames are captured. Pooled frames may be reused as soon as
+     * they are queued.
+     */
+    private void queueFrame(byte[] frame, int size, int flags) {
+        FrameCapture capture = mCapture;
+        if (capture != null) {
+            int                 header = headerSize(frame[1]);
+            FrameCapture.Record record = capture.newFrame(false, frame[0], payloadLength(frame));
+            byte[]              kept   = record.getPayload();
+            System.arraycopy(frame, header, kept, 0, kept.length);
+            if ((frame[1] & MASK) != 0) {
+                mask(kept, 0, kept.length, readMask(frame, header), 0);
+            }
+            capture.add(record);
+        }
+        mClient.sendFrame(frame, size, flags);
+    }
+
+    private static int headerSize(byte data) {
+        int length = (data & LENGTH);
+        int size   = (length <= 125) ? 2 : ((length == 126) ? 4 : 10);
+        return ((data & MASK) == MASK) ? size + 4 : size;
     }
 
     private void parseOpcode(byte data) throws ProtocolError {
@@ -136,14 +645,20 @@ public class HybiParser {
         boolean rsv2 = (data & RSV2) == RSV2;
         boolean rsv3 = (data & RSV3) == RSV3;
 
-        if (rsv1 || rsv2 || rsv3) {
-            throw new ProtocolError("RSV not zero");
-        }
-
         mFinal   = (data & FIN) == FIN;
         mOpcode  = (data & OPCODE);
-        mMask    = new byte[0];
-        mPayload = new byte[0];
+
+        // With permessage-deflate, RSV1 marks the first frame of a compressed message.
+        boolean startsMessage = (mOpcode == OP_TEXT || mOpcode == OP_BINARY);
+        if ((rsv1 && !(startsMessage && mDeflate != null)) || rsv2 || rsv3) {
+            throw new ProtocolError("RSV not zero");
+        }
+        if (startsMessage) {
+            if (mMode != 0) {
+                throw new ProtocolError("Expected a continuation frame");
+            }
+            mCompressed = rsv1;
+        }
 
         if (!OPCODES.contains(mOpcode)) {
             throw new ProtocolError("Bad opcode");
@@ -152,25 +667,27 @@ public class HybiParser {
         if (!FRAGMENTED_OPCODES.contains(mOpcode) && !mFinal) {
             throw new ProtocolError("Expected non-final packet");
         }
-
-        mStage = 1;
     }
 
-    private void parseLength(byte data) {
+    private void parseLength(byte data) throws ProtocolError {
         mMasked = (data & MASK) == MASK;
         mLength = (data & LENGTH);
+        if (mOpcode >= OP_CLOSE && mLength > 125) {
+            throw new ProtocolError("Control frame payload too large");
+        }
 
         if (mLength >= 0 && mLength <= 125) {
-            mStage = mMasked ? 3 : 4;
+            mLengthSize = 0;
         } else {
             mLengthSize = (mLength == 126) ? 2 : 8;
-            mStage      = 2;
         }
     }
 
-    private void parseExtendedLength(byte[] buffer) throws ProtocolError {
-        mLength = getInteger(buffer);
-        mStage  = mMasked ? 3 : 4;
+    private void parseExtendedLength(byte[] buffer, int offset) throws ProtocolError {
+        mLength = byteArrayToLong(buffer, offset, mLengthSize);
+        if (mLength < 0) {
+            throw new ProtocolError("Bad length: most significant bit set");
+        }
     }
 
     public byte[] frame(String data) {
@@ -181,189 +698,986 @@ public class HybiParser {
         return frame(data, OP_BINARY, -1);
     }
 
-    private byte[] frame(byte[] data, int opcode, int errorCode)  {
-        return frame((Object)data, opcode, errorCode);
+    /**
+     * Encodes a text frame into the caller's buffer, which must have room for {@link #frameSize(String)} bytes.
+     *
+     * @return the number of bytes written.
+     */
+    public int frame(String data, byte[] out, int offset) {
+        return encodeFrame(data, OP_TEXT, -1, payloadLength(data, -1), out, offset);
+    }
+
+    /**
+     * Encodes a binary frame into the caller's buffer, which must have room for {@link #frameSize(byte[])} bytes.
+     *
+     * @return the number of bytes written.
+     */
+    public int frame(byte[] data, byte[] out, int offset) {
+        return encodeFrame(data, OP_BINARY, -1, data.length, out, offset);
     }
 
-    private byte[] frame(String data, int opcode, int errorCode) {
-        return frame((Object)data, opcode, errorCode);
+    public int frameSize(String data) {
+        return frameSize(payloadLength(data, -1));
+    }
+
+    public int frameSize(byte[] data) {
+        return frameSize(data.length);
+    }
+
+    /**
+     * Encodes a frame with the given first header byte (FIN, RSV and opcode bits) around a slice of bytes.
+     *
+     * @return the number of bytes written.
+     */
+    int frame(int head, byte[] data, int dataOffset, int dataLength, byte[] out, int offset) {
+        int position = writeHeader(head, dataLength, out, offset);
+        System.arraycopy(data, dataOffset, out, position, dataLength);
+        if (mMasking) {
+            mask(out, position, dataLength, readMask(out, position), 0);
+        }
+        return position + dataLength - offset;
     }
 
     private byte[] frame(Object data, int opcode, int errorCode) {
         if (mClosed) return null;
 
-        Log.d(TAG, "Creating frame for: " + data + " op: " + opcode + " err: " + errorCode);
+        int    length = payloadLength(data, errorCode);
+        byte[] frame  = new byte[frameSize(length)];
+        encodeFrame(data, opcode, errorCode, length, frame, 0);
+        return frame;
+    }
+
+    /**
+     * Encodes a frame into a pooled buffer and queues it. The buffer goes back to the pool once it has been written.
+     */
+    private void send(Object data, int opcode, int errorCode) {
+        send(data, opcode, errorCode, 0);
+    }
+
+    /**
+     * @param flags {@link FrameQueue#FLAG_HIGH} to send a data message ahead of normal ones, or 0.
+     */
+    private void send(Object data, int opcode, int errorCode, int flags) {
+        if (mClosed) return;
+
+        if (opcode >= OP_CLOSE) {
+            // Control frames may go out between the fragments of a streamed message.
+            sendNow(data, opcode, errorCode, flags);
+            return;
+        }
+        synchronized (mStreamLock) {
+            awaitStream();
+            sendNow(data, opcode, errorCode, flags);
+        }
+    }
+
+    private void sendNow(Object data, int opcode, int errorCode, int flags) {
+        int length = payloadLength(data, errorCode);
+        if (opcode < OP_CLOSE) {
+            mClient.getMetrics().messageSent(opcode == OP_BINARY, length);
+        }
+
+        PerMessageDeflate.Session deflate = mDeflate;
+        if (deflate != null && opcode < OP_CLOSE && length >= deflate.getMinimumSize()
+                && sendCompressed(deflate, data, opcode, length, flags)) {
+            return;
+        }
+
+        if (opcode >= OP_CLOSE) {
+            flags |= FrameQueue.FLAG_CONTROL;
+        }
+        if (opcode == OP_PING || opcode == OP_PONG) {
+            // A close has to stay behind the data queued before it, pings and pongs can go right away.
+            flags |= FrameQueue.FLAG_URGENT;
+        }
+
+        int    size   = frameSize(length);
+        byte[] frame  = mClient.getBufferPool().acquire(size);
+        encodeFrame(data, opcode, errorCode, length, frame, 0);
+        queueFrame(frame, size, FrameQueue.FLAG_POOLED | flags);
+    }
+
+    /**
+     * Sends a data message compressed with permessage-deflate.
+     *
+     * @return false if it should be sent uncompressed instead, because it doesn't get any smaller or the session
+     *         has ended.
+     */
+    private boolean sendCompressed(PerMessageDeflate.Session deflate, Object data, int opcode, int length, int flags) {
+        BufferPool pool = mClient.getBufferPool();
+        byte[]     frame;
+        int        size;
+
+        synchronized (deflate) {
+            byte[] raw;
+            if (data instanceof String) {
+                raw = pool.acquire(length);
+                writeUtf8((String) data, raw, 0);
+            } else {
+                raw = (byte[]) data;
+            }
+
+            MessageBuffer compressed = deflate.deflate(raw, 0, length);
+            if (data instanceof String) {
+                pool.release(raw);
+            }
+            if (compressed == null || compressed.size() >= length) {
+                return false;
+            }
+
+            size  = frameSize(compressed.size());
+            frame = pool.acquire(size);
+            frame(FIN | RSV1 | opcode, compressed.array(), 0, compressed.size(), frame, 0);
+        }
+
+        queueFrame(frame, size, FrameQueue.FLAG_POOLED | flags);
+        return true;
+    }
+
+    void send(String data) {
+        send(data, OP_TEXT, -1);
+    }
 
-        byte[] buffer = (data instanceof String) ? decode((String) data) : (byte[]) data;
-        int insert = (errorCode > 0) ? 2 : 0;
-        int length = buffer.length + insert;
+    void send(String data, int flags) {
+        send(data, OP_TEXT, -1, flags);
+    }
+
+    /**
+     * Starts a message that is sent in fragments as it is written, see {@link WebSocketClient#openStream(boolean)}.
+     * Other data messages wait until the stream is closed.
+     */
+    OutputStream openStream(boolean binary) {
+        synchronized (mStreamLock) {
+            awaitStream();
+            mStreamThread = Thread.currentThread();
+        }
+        return new MessageOutputStream(this, binary ? OP_BINARY : OP_TEXT);
+    }
+
+    /**
+     * Queues one fragment of a streamed message. {@code opcode} is the message's opcode for the first fragment and
+     * continuation for the rest. Fragments are never compressed, since the deflater can't be flushed between them.
+     */
+    void sendFragment(int opcode, boolean fin, byte[] data, int offset, int length) {
+        if (!mClosed) {
+            int    size  = frameSize(length);
+            byte[] frame = mClient.getBufferPool().acquire(size);
+            frame((fin ? FIN : 0) | opcode, data, offset, length, frame, 0);
+            queueFrame(frame, size, FrameQueue.FLAG_POOLED | FrameQueue.FLAG_FRAGMENT);
+        }
+        if (fin) {
+            synchronized (mStreamLock) {
+                mStreamThread = null;
+                mStreamLock.notifyAll();
+            }
+        }
+    }
+
+    // Waits for a streamed message to finish. Must hold mStreamLock.
+    private void awaitStream() {
+        while (mStreamThread != null) {
+            if (mStreamThread == Thread.currentThread()) {
+                throw new IllegalStateException("Close the message stream before sending another message");
+            }
+            try {
+                mStreamLock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a message stream");
+            }
+        }
+    }
+
+    void send(byte[] data) {
+        send(data, OP_BINARY, -1);
+    }
+
+    void send(byte[] data, int flags) {
+        send(data, OP_BINARY, -1, flags);
+    }
+
+    /**
+     * Encodes a message with the codec right into the pooled frame, or into a pooled buffer first if it may be
+     * compressed.
+     */
+    void send(MessageCodec<Object> codec, Object message) {
+        if (mClosed) return;
+
+        int        opcode = codec.isBinary() ? OP_BINARY : OP_TEXT;
+        int        length = codec.encodedLength(message);
+        BufferPool pool   = mClient.getBufferPool();
+
+        synchronized (mStreamLock) {
+            awaitStream();
+            mClient.getMetrics().messageSent(opcode == OP_BINARY, length);
+
+            PerMessageDeflate.Session deflate = mDeflate;
+            if (deflate != null && length >= deflate.getMinimumSize()) {
+                byte[] raw = pool.acquire(length);
+                try {
+                    encode(codec, message, raw, 0, length);
+                    if (!sendCompressed(deflate, raw, opcode, length, 0)) {
+                        int    size  = frameSize(length);
+                        byte[] frame = pool.acquire(size);
+                        frame(FIN | opcode, raw, 0, length, frame, 0);
+                        queueFrame(frame, size, FrameQueue.FLAG_POOLED);
+                    }
+                } finally {
+                    pool.release(raw);
+                }
+                return;
+            }
+
+            int    size     = frameSize(length);
+            byte[] frame    = pool.acquire(size);
+            int    position = writeHeader(FIN | opcode, length, frame, 0);
+            try {
+                encode(codec, message, frame, position, length);
+            } catch (RuntimeException e) {
+                pool.release(frame);
+                throw e;
+            }
+            if (mMasking) {
+                mask(frame, position, length, readMask(frame, position), 0);
+            }
+            queueFrame(frame, size, FrameQueue.FLAG_POOLED);
+        }
+    }
+
+    /**
+     * Sends a binary message made of a short header and a slice of data, written right into the pooled frame like a
+     * codec's message, for layers on top of the client such as {@link Multiplexer}.
+     */
+    void send(byte[] header, byte[] data, int offset, int count) {
+        if (mClosed) return;
+
+        int        length = header.length + count;
+        BufferPool pool   = mClient.getBufferPool();
+
+        synchronized (mStreamLock) {
+            awaitStream();
+            mClient.getMetrics().messageSent(true, length);
+
+            PerMessageDeflate.Session deflate = mDeflate;
+            if (deflate != null && length >= deflate.getMinimumSize()) {
+                byte[] raw = pool.acquire(length);
+                try {
+                    System.arraycopy(header, 0, raw, 0, header.length);
+                    System.arraycopy(data, offset, raw, header.length, count);
+                    if (!sendCompressed(deflate, raw, OP_BINARY, length, 0)) {
+                        int    size  = frameSize(length);
+                        byte[] frame = pool.acquire(size);
+                        frame(FIN | OP_BINARY, raw, 0, length, frame, 0);
+                        queueFrame(frame, size, FrameQueue.FLAG_POOLED);
+                    }
+                } finally {
+                    pool.release(raw);
+                }
+                return;
+            }
+
+            int    size     = frameSize(length);
+            byte[] frame    = pool.acquire(size);
+            int    position = writeHeader(FIN | OP_BINARY, length, frame, 0);
+            System.arraycopy(header, 0, frame, position, header.length);
+            System.arraycopy(data, offset, frame, position + header.length, count);
+            if (mMasking) {
+                mask(frame, position, length, readMask(frame, position), 0);
+            }
+            queueFrame(frame, size, FrameQueue.FLAG_POOLED);
+        }
+    }
+
+    private static void encode(MessageCodec<Object> codec, Object message, byte[] out, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.wrap(out, offset, length);
+        codec.encode(message, buffer);
+        if (buffer.position() != offset + length) {
+            throw new IllegalStateException("Codec wrote " + (buffer.position() - offset) + " bytes instead of " + length);
+        }
+    }
+
+    /**
+     * Encodes {@code count} bytes of the payload of a queued data frame, starting at {@code from}, as a fragment of
+     * its own. The first fragment keeps the opcode and RSV1, the last one the FIN bit. The payload is already
+     * masked, so the fragment is masked with the frame's key rotated to {@code from} and the bytes are copied as
+     * they are.
+     *
+     * @param out at least {@link #frameSize(int)} of {@code count} bytes.
+     * @return the length of the fragment.
+     */
+    int fragment(byte[] frame, int from, int count, byte[] out) {
+        int     header = headerSize(frame[1]);
+        int     total  = payloadLength(frame);
+        boolean last   = from + count == total;
+
+        int head = (from == 0) ? (frame[0] & ~FIN & BYTE) : OP_CONTINUATION;
+        if (last) {
+            head |= frame[0] & FIN;
+        }
+        int mask     = mMasking ? Integer.rotateLeft(readMask(frame, header), (from & 3) << 3) : 0;
+        int position = writeHeader(head, count, mask, out, 0);
+        System.arraycopy(frame, header + from, out, position, count);
+        return position + count;
+    }
+
+    /**
+     * Returns the payload length of an encoded frame, which is never over 2 GB when we encoded it.
+     */
+    static int payloadLength(byte[] frame) {
+        int length = frame[1] & LENGTH;
+        if (length == 126) {
+            return (int) byteArrayToLong(frame, 2, 2);
+        }
+        if (length == 127) {
+            return (int) byteArrayToLong(frame, 2, 8);
+        }
+        return length;
+    }
+
+    /**
+     * Whether an encoded frame carries message data, as opposed to a control frame.
+     */
+    static boolean isDataFrame(byte[] frame) {
+        return (frame[0] & OPCODE) < OP_CLOSE;
+    }
+
+    static boolean isFinalFrame(byte[] frame) {
+        return (frame[0] & FIN) != 0;
+    }
+
+    int frameSize(int length) {
         int header = (length <= 125) ? 2 : (length <= 65535 ? 4 : 10);
-        int offset = header + (mMasking ? 4 : 0);
-        int masked = mMasking ? MASK : 0;
-        byte[] frame = new byte[length + offset];
+        return header + (mMasking ? 4 : 0) + length;
+    }
+
+    private static int payloadLength(Object data, int errorCode) {
+        int length = (errorCode > 0) ? 2 : 0;
+        if (data instanceof String) {
+            length += utf8Length((String) data);
+        } else if (data != null) {
+            length += ((byte[]) data).length;
+        }
+        return length;
+    }
+
+    private int encodeFrame(Object data, int opcode, int errorCode, int length, byte[] out, int offset) {
+        int position = writeHeader(FIN | opcode, length, out, offset);
+        int mask     = mMasking ? readMask(out, position) : 0;
+
+        int payloadStart = position;
 
-        frame[0] = (byte) ((byte)FIN | (byte)opcode);
+        if (errorCode > 0) {
+            out[position++] = (byte) ((errorCode >>> 8) & BYTE);
+            out[position++] = (byte) (errorCode & BYTE);
+        }
+        if (data instanceof String) {
+            position = writeUtf8((String) data, out, position);
+        } else if (data != null) {
+            byte[] bytes = (byte[]) data;
+            System.arraycopy(bytes, 0, out, position, bytes.length);
+            position += bytes.length;
+        }
+
+        if (mMasking) {
+            mask(out, payloadStart, position - payloadStart, mask, 0);
+        }
+
+        return position - offset;
+    }
+
+    /**
+     * Writes the frame header including a fresh masking key.
+     *
+     * @return the position of the payload.
+     */
+    private int writeHeader(int head, int length, byte[] out, int offset) {
+        return writeHeader(head, length, mMasking ? nextMask() : 0, out, offset);
+    }
+
+    private int writeHeader(int head, int length, int mask, byte[] out, int offset) {
+        int position = offset;
+        int masked   = mMasking ? MASK : 0;
+
+        out[position++] = (byte) head;
 
         if (length <= 125) {
-            frame[1] = (byte) (masked | length);
+            out[position++] = (byte) (masked | length);
         } else if (length <= 65535) {
-            frame[1] = (byte) (masked | 126);
-            frame[2] = (byte) Math.floor(length / 256);
-            frame[3] = (byte) (length & BYTE);
+            out[position++] = (byte) (masked | 126);
+            out[position++] = (byte) (length >>> 8);
+            out[position++] = (byte) length;
         } else {
-            frame[1] = (byte) (masked | 127);
-            frame[2] = (byte) (((int) Math.floor(length / Math.pow(2, 56))) & BYTE);
-            frame[3] = (byte) (((int) Math.floor(length / Math.pow(2, 48))) & BYTE);
-            frame[4] = (byte) (((int) Math.floor(length / Math.pow(2, 40))) & BYTE);
-            frame[5] = (byte) (((int) Math.floor(length / Math.pow(2, 32))) & BYTE);
-            frame[6] = (byte) (((int) Math.floor(length / Math.pow(2, 24))) & BYTE);
-            frame[7] = (byte) (((int) Math.floor(length / Math.pow(2, 16))) & BYTE);
-            frame[8] = (byte) (((int) Math.floor(length / Math.pow(2, 8)))  & BYTE);
-            frame[9] = (byte) (length & BYTE);
-        }
-
-        if (errorCode > 0) {
-            frame[offset] = (byte) (((int) Math.floor(errorCode / 256)) & BYTE);
-            frame[offset+1] = (byte) (errorCode & BYTE);
+            out[position++] = (byte) (masked | 127);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out[position++] = (byte) ((long) length >>> shift);
+            }
         }
-        System.arraycopy(buffer, 0, frame, offset + insert, buffer.length);
 
         if (mMasking) {
-            byte[] mask = {
-                (byte) Math.floor(Math.random() * 256), (byte) Math.floor(Math.random() * 256),
-                (byte) Math.floor(Math.random() * 256), (byte) Math.floor(Math.random() * 256)
-            };
-            System.arraycopy(mask, 0, frame, header, mask.length);
-            mask(frame, mask, offset);
+            out[position++] = (byte) (mask >>> 24);
+            out[position++] = (byte) (mask >>> 16);
+            out[position++] = (byte) (mask >>> 8);
+            out[position++] = (byte) mask;
         }
 
-        return frame;
+        return position;
+    }
+
+    // The masking key is the four bytes in front of the payload.
+    private static int readMask(byte[] frame, int payloadOffset) {
+        return (int) byteArrayToLong(frame, payloadOffset - 4, 4);
+    }
+
+    // xorshift64, much cheaper than Math.random() and seeded per connection from SecureRandom.
+    private synchronized int nextMask() {
+        long x = mMaskSeed;
+        x ^= x << 13;
+        x ^= x >>> 7;
+        x ^= x << 17;
+        mMaskSeed = x;
+        return (int) (x >>> 32);
     }
 
     public void ping(String message) {
-        mClient.send(frame(message, OP_PING, -1));
+        send(message, OP_PING, -1);
+    }
+
+    void ping(byte[] payload) {
+        send(payload, OP_PING, -1);
     }
 
     public void close(int code, String reason) {
         if (mClosed) return;
-        mClient.send(frame(reason, OP_CLOSE, code));
+        send(reason, OP_CLOSE, code);
         mClosed = true;
     }
 
-    private void emitFrame() throws IOException {
-        byte[] payload = mask(mPayload, mMask, 0);
+    private void emitFrame(byte[] payload, int offset, int length) throws IOException {
         int opcode = mOpcode;
 
+        mStage = STAGE_HEADER;
+
+        if (mCompressed && opcode <= OP_BINARY) {
+            emitCompressed(payload, offset, length);
+            return;
+        }
+        if (mCodec != null && opcode <= OP_BINARY) {
+            emitCodec(payload, offset, length);
+            return;
+        }
+
         if (opcode == OP_CONTINUATION) {
             if (mMode == 0) {
                 throw new ProtocolError("Mode was not set.");
             }
-            mBuffer.write(payload);
-            if (mFinal) {
-                byte[] message = mBuffer.toByteArray();
-                if (mMode == MODE_TEXT) {
-                    mClient.getListener().onMessage(encode(message));
-                } else {
-                    mClient.getListener().onMessage(message);
+            if (mMode == MODE_TEXT) {
+                decodeText(payload, offset, length);
+                if (mFinal) {
+                    dispatchText(finishText());
+                    reset();
+                }
+            } else {
+                if (payload != null) {
+                    mBuffer.write(payload, offset, length);
+                }
+                if (mFinal) {
+                    emitBinary(mBuffer.array(), 0, mBuffer.size(), false);
+                    reset();
                 }
-                reset();
             }
 
         } else if (opcode == OP_TEXT) {
+            decodeText(payload, offset, length);
             if (mFinal) {
-                String messageText = encode(payload);
-                mClient.getListener().onMessage(messageText);
+                dispatchText(finishText());
             } else {
                 mMode = MODE_TEXT;
-                mBuffer.write(payload);
             }
 
         } else if (opcode == OP_BINARY) {
             if (mFinal) {
-                mClient.getListener().onMessage(payload);
+                emitBinary(payload, offset, length, mPayloadOwned);
             } else {
                 mMode = MODE_BINARY;
-                mBuffer.write(payload);
+                if (payload != null) {
+                    mBuffer.write(payload, offset, length);
+                }
             }
 
         } else if (opcode == OP_CLOSE) {
-            int    code   = (payload.length >= 2) ? 256 * payload[0] + payload[1] : 0;
-            String reason = (payload.length >  2) ? encode(slice(payload, 2))     : null;
+            if (length == 1) {
+                throw new ProtocolError("Close payload too short");
+            }
+            int    code   = (length >= 2) ? 256 * (payload[offset] & BYTE) + (payload[offset + 1] & BYTE) : 0;
+            String reason = null;
+            if (length >= 2 && !isValidCloseCode(code)) {
+                throw new ProtocolError("Bad close code " + code);
+            }
+            if (length > 2) {
+                // A decoder of its own, the close may arrive between the fragments of a text message.
+                try {
+                    reason = new Utf8Decoder().decode(payload, offset + 2, length - 2);
+                } catch (CharacterCodingException e) {
+                    throw new ProtocolError("Invalid UTF-8", CLOSE_INVALID_DATA);
+                }
+            }
             Log.d(TAG, "Got close op! " + code + " " + reason);
-            mClient.getListener().onDisconnect(code, reason);
+            mCloseReceived = true;
+
+            // Answer with the same code, unless this is the answer to our own close.
+            if (!mClosed) {
+                send(null, OP_CLOSE, (code > 0) ? code : -1);
+                mClosed = true;
+            }
+            mClient.getDispatcher().onDisconnect(code, reason);
 
         } else if (opcode == OP_PING) {
-            if (payload.length > 125) { throw new ProtocolError("Ping payload too large"); }
-            Log.d(TAG, "Sending pong!!");
-            mClient.sendFrame(frame(payload, OP_PONG, -1));
+            send(Arrays.copyOfRange(payload, offset, offset + length), OP_PONG, -1);
 
         } else if (opcode == OP_PONG) {
-            String message = encode(payload);
-            // FIXME: Fire callback...
-            Log.d(TAG, "Got pong! " + message);
+            mClient.pongReceived(payload, offset, length);
         }
     }
 
-    private void reset() {
+    // The codes an endpoint may send, 1004 to 1006 and 1015 are reserved and the rest up to 2999 unassigned.
+    private static boolean isValidCloseCode(int code) {
+        return (code >= 1000 && code <= 1003) || (code >= 1007 && code <= 1014) || (code >= 3000 && code <= 4999);
+    }
+
+    private void startStreamingFrame() throws ProtocolError {
+        mPayloadOffset = 0;
+        if (mOpcode == OP_CONTINUATION) {
+            if (mMode == 0) {
+                throw new ProtocolError("Mode was not set.");
+            }
+        } else {
+            mMode = (mOpcode == OP_TEXT) ? MODE_TEXT : MODE_BINARY;
+            mSpilling = mSpill != null;
+            if (!mSpilling) {
+                mClient.getDispatcher().onMessageStart(mOpcode == OP_BINARY);
+            }
+        }
+    }
+
+    private void streamPayload(byte[] payload, int offset, int length) throws IOException {
+        if (mCompressed) {
+            mDeflate.inflate(payload, offset, length, mScratch, Long.MAX_VALUE);
+            if (mScratch.size() > 0) {
+                emitChunk(mScratch.array(), 0, mScratch.size());
+            }
+            mScratch.reset();
+        } else {
+            emitChunk(payload, offset, length);
+        }
+    }
+
+    private void emitChunk(byte[] data, int offset, int length) throws IOException {
+        if (mMode == MODE_TEXT) {
+            // Only validated, the listener gets the bytes.
+            decodeText(data, offset, length);
+            mUtf8.discard();
+        }
+        if (mSpilling) {
+            mSpill.write(data, offset, length);
+        } else {
+            mClient.getDispatcher().onMessageChunk(view(data, offset, length));
+        }
+    }
+
+    private void endStreamingFrame() throws IOException {
+        mStage = STAGE_HEADER;
+        if (!mFinal) {
+            return;
+        }
+
+        if (mCompressed) {
+            mDeflate.endMessage(mScratch, Long.MAX_VALUE);
+            if (mScratch.size() > 0) {
+                emitChunk(mScratch.array(), 0, mScratch.size());
+            }
+            mScratch.reset();
+            mCompressed = false;
+        }
+        if (mMode == MODE_TEXT) {
+            finishText();
+        }
+        boolean binary = mMode == MODE_BINARY;
         mMode = 0;
+        if (mSpilling) {
+            mSpilling = false;
+            emitSpilled(binary);
+        } else {
+            mClient.getDispatcher().onMessageEnd();
+        }
+    }
+
+    /**
+     * Delivers a message from the spill buffer: as usual if it stayed under the threshold, otherwise as its file.
+     */
+    private void emitSpilled(boolean binary) throws IOException {
+        SpillBuffer spill = mSpill;
+        if (!spill.isSpilled()) {
+            MessageBuffer memory = spill.getMemory();
+            if (binary) {
+                emitBinary(memory.array(), 0, memory.size(), false);
+            } else {
+                // Already validated as it arrived.
+                dispatchText(new String(memory.array(), 0, memory.size(), Utf8Decoder.UTF_8));
+            }
+            spill.reset();
+            return;
+        }
+
+        FileChannel channel    = spill.finish();
+        Dispatcher  dispatcher = mClient.getDispatcher();
+        long        started    = startDispatch(dispatcher);
+        dispatcher.onMessage(channel, binary);
+        endDispatch(started);
+    }
+
+    /**
+     * Inflates a frame of a compressed message into the message buffer as it arrives and delivers the message
+     * after its final frame.
+     */
+    private void emitCompressed(byte[] payload, int offset, int length) throws IOException {
+        if (mOpcode == OP_CONTINUATION) {
+            if (mMode == 0) {
+                throw new ProtocolError("Mode was not set.");
+            }
+        } else {
+            mMode = (mOpcode == OP_TEXT) ? MODE_TEXT : MODE_BINARY;
+        }
+
+        // The message is held in memory once inflated, so it counts against the limit at that size.
+        PerMessageDeflate.Session deflate = mDeflate;
+        int                       before  = mBuffer.size();
+        long                      allowed = getMaxBufferedSize() - mInflatedLength;
+        deflate.inflate(payload, offset, length, mBuffer, allowed);
+        mScratch.reset();
+        if (mFinal) {
+            deflate.endMessage(mBuffer, allowed - (mBuffer.size() - before));
+        }
+        mInflatedLength += mBuffer.size() - before;
+
+        if (mCodec != null) {
+            if (mFinal) {
+                emitDecoded(mBuffer.array(), 0, mBuffer.size());
+            }
+        } else if (mMode == MODE_TEXT) {
+            // Decode as it is inflated rather than keeping the whole message around as bytes.
+            decodeText(mBuffer.array(), 0, mBuffer.size());
+            mBuffer.reset();
+            if (mFinal) {
+                dispatchText(finishText());
+            }
+        } else if (mFinal) {
+            emitBinary(mBuffer.array(), 0, mBuffer.size(), false);
+        }
+
+        if (mFinal) {
+            mCompressed = false;
+            reset();
+        }
+    }
+
+    /**
+     * Assembles a message for the codec. Fragments are collected in the message buffer, unfragmented messages are
+     * decoded where they are.
+     */
+    private void emitCodec(byte[] payload, int offset, int length) throws IOException {
+        if (mOpcode == OP_CONTINUATION) {
+            if (mMode == 0) {
+                throw new ProtocolError("Mode was not set.");
+            }
+        } else {
+            mMode = (mOpcode == OP_TEXT) ? MODE_TEXT : MODE_BINARY;
+        }
+
+        if (mOpcode == OP_CONTINUATION || !mFinal) {
+            if (payload != null) {
+                mBuffer.write(payload, offset, length);
+            }
+            if (!mFinal) {
+                return;
+            }
+            emitDecoded(mBuffer.array(), 0, mBuffer.size());
+        } else {
+            emitDecoded(payload, offset, length);
+        }
+        reset();
+    }
+
+    private void emitDecoded(byte[] payload, int offset, int length) throws ProtocolError {
+        boolean binary = mMode == MODE_BINARY;
+        if (!binary) {
+            decodeText(payload, offset, length);
+            mUtf8.discard();
+            finishText();
+        }
+
+        // The message may refer to the payload, which is reused before a queued callback runs.
+        Dispatcher dispatcher = mClient.getDispatcher();
+        ByteBuffer view       = dispatcher.isInline()
+                ? codecView(payload, offset, length)
+                : ByteBuffer.wrap(Arrays.copyOfRange(payload, offset, offset + length));
+        Object message;
+        try {
+            message = mCodec.decode(view, binary);
+        } catch (IOException e) {
+            throw new ProtocolError("Bad message: " + e.getMessage(), CLOSE_INVALID_DATA);
+        }
+
+        long started = startDispatch(dispatcher);
+        dispatcher.onDecoded(message);
+        endDispatch(started);
+    }
+
+    /**
+     * @param owned whether the payload was allocated for this message alone and may be handed to the listener.
+     */
+    private void emitBinary(byte[] payload, int offset, int length, boolean owned) {
+        Dispatcher dispatcher = mClient.getDispatcher();
+        long       started    = startDispatch(dispatcher);
+        if (mClient.getListener() instanceof WebSocketClient.ByteBufferListener) {
+            dispatcher.onMessage(view(payload, offset, length));
+            mScratch.reset();
+        } else if (owned && offset == 0 && length == payload.length) {
+            dispatcher.onMessage(payload);
+        } else {
+            dispatcher.onMessage(Arrays.copyOfRange(payload, offset, offset + length));
+        }
+        endDispatch(started);
+    }
+
+    private void dispatchText(String text) {
+        Dispatcher dispatcher = mClient.getDispatcher();
+        long       started    = startDispatch(dispatcher);
+        dispatcher.onMessage(text);
+        endDispatch(started);
+    }
+
+    // Only inline callbacks are timed here, the dispatcher times the others where they run.
+    private long startDispatch(Dispatcher dispatcher) {
+        return (mMetrics != WebSocketMetrics.NONE && dispatcher.isInline()) ? System.nanoTime() : 0;
+    }
+
+    private void endDispatch(long started) {
+        if (started != 0) {
+            long nanos = System.nanoTime() - started;
+            mDispatchNanos += nanos;
+            mMetrics.messageDispatched(nanos);
+        }
+    }
+
+    private ByteBuffer view(byte[] array, int offset, int length) {
+        if (mViewArray != array) {
+            mViewArray = array;
+            mView      = ByteBuffer.wrap(array).asReadOnlyBuffer();
+        }
+        mView.clear();
+        mView.position(offset);
+        mView.limit(offset + length);
+        return mView;
+    }
+
+    // Writable, unlike view(), so that codecs can get at the array. Codecs are trusted not to modify it.
+    private ByteBuffer codecView(byte[] array, int offset, int length) {
+        if (mCodecViewArray != array) {
+            mCodecViewArray = array;
+            mCodecView      = ByteBuffer.wrap(array);
+        }
+        mCodecView.clear();
+        mCodecView.position(offset);
+        mCodecView.limit(offset + length);
+        return mCodecView;
+    }
+
+    private void reset() {
+        mMode           = 0;
+        mInflatedLength = 0;
         mBuffer.reset();
+        mUtf8.reset();
     }
 
-    private String encode(byte[] buffer) {
+    private void decodeText(byte[] data, int offset, int length) throws ProtocolError {
         try {
-            return new String(buffer, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
+            mUtf8.write(data, offset, length);
+        } catch (CharacterCodingException e) {
+            throw new ProtocolError("Invalid UTF-8", CLOSE_INVALID_DATA);
         }
     }
 
-    private byte[] decode(String string) {
+    private String finishText() throws ProtocolError {
         try {
-            return (string).getBytes("UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
+            return mUtf8.finish();
+        } catch (CharacterCodingException e) {
+            throw new ProtocolError("Invalid UTF-8", CLOSE_INVALID_DATA);
         }
     }
 
-    private int getInteger(byte[] bytes) throws ProtocolError {
-        long i = byteArrayToLong(bytes, 0, bytes.length);
-        if (i < 0 || i > Integer.MAX_VALUE) {
-            throw new ProtocolError("Bad integer: " + i);
+    // Same output as String.getBytes("UTF-8"), including '?' for unpaired surrogates.
+    static int utf8Length(String string) {
+        int count  = string.length();
+        int length = count;
+        for (int i = 0; i < count; i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                length += 1;
+            } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(string.charAt(i + 1))) {
+                length += 2;
+                i++;
+            }
         }
-        return (int) i;
+        return length;
     }
 
-    private byte[] slice(byte[] array, int start) {
-        return Arrays.copyOfRange(array, start, array.length);
+    static int writeUtf8(String string, byte[] out, int offset) {
+        int count    = string.length();
+        int position = offset;
+        for (int i = 0; i < count; i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                out[position++] = (byte) c;
+            } else if (c < 0x800) {
+                out[position++] = (byte) (0xC0 | (c >> 6));
+                out[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+                out[position++] = (byte) (0xE0 | (c >> 12));
+                out[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(string.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                out[position++] = (byte) (0xF0 | (codePoint >> 18));
+                out[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                out[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                out[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                out[position++] = (byte) '?';
+            }
+        }
+        return position;
     }
 
     public static class ProtocolError extends IOException {
+        private final int mCloseCode;
+
         public ProtocolError(String detailMessage) {
+            this(detailMessage, CLOSE_PROTOCOL_ERROR);
+        }
+
+        public ProtocolError(String detailMessage, int closeCode) {
             super(detailMessage);
+            mCloseCode = closeCode;
+        }
+
+        /**
+         * The status code the connection is closed with.
+         */
+        public int getCloseCode() {
+            return mCloseCode;
         }
     }
 
     private static long byteArrayToLong(byte[] b, int offset, int length) {
-        if (b.length < length)
-            throw new IllegalArgumentException("length must be less than or equal to b.length");
+        if (b.length < offset + length)
+            throw new IllegalArgumentException("offset + length must be less than or equal to b.length");
 
         long value = 0;
         for (int i = 0; i < length; i++) {
             int shift = (length - 1 - i) * 8;
-            value += (b[i + offset] & 0x000000FF) << shift;
+            value += (long) (b[i + offset] & 0x000000FF) << shift;
         }
         return value;
     }
 
-    public static class HappyDataInputStream extends DataInputStream {
-        public HappyDataInputStream(InputStream in) {
-            super(in);
+    /**
+     * Sends everything written to it as fragments of one message, each up to {@link #FRAGMENT_SIZE} bytes. Writes
+     * at least that large are framed straight from the caller's array.
+     */
+    private static class MessageOutputStream extends OutputStream {
+        private static final int FRAGMENT_SIZE = 16 * 1024;
+
+        private final HybiParser mParser;
+        private final byte[]     mBuffer = new byte[FRAGMENT_SIZE];
+        private final boolean    mBinary;
+        private int              mCount;
+        private int              mOpcode;
+        private long             mTotal;
+        private boolean          mClosed;
+
+        MessageOutputStream(HybiParser parser, int opcode) {
+            mParser = parser;
+            mOpcode = opcode;
+            mBinary = opcode == OP_BINARY;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            checkOpen();
+            if (mCount == mBuffer.length) {
+                flush();
+            }
+            mBuffer[mCount++] = (byte) b;
         }
 
-        public byte[] readBytes(int length) throws IOException {
-            byte[] buffer = new byte[length];
-            readFully(buffer);
-            return buffer;
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            checkOpen();
+            if (length >= mBuffer.length) {
+                flush();
+                sendFragment(false, data, offset, length);
+                return;
+            }
+            if (length > mBuffer.length - mCount) {
+                flush();
+            }
+            System.arraycopy(data, offset, mBuffer, mCount, length);
+            mCount += length;
+        }
+
+        /**
+         * Sends what has been written so far as a fragment.
+         */
+        @Override
+        public void flush() throws IOException {
+            checkOpen();
+            if (mCount > 0) {
+                sendFragment(false, mBuffer, 0, mCount);
+                mCount = 0;
+            }
+        }
+
+        /**
+         * Sends the final fragment, ending the message.
+         */
+        @Override
+        public void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            sendFragment(true, mBuffer, 0, mCount);
+            mCount = 0;
+        }
+
+        private void sendFragment(boolean fin, byte[] data, int offset, int length) {
+            mParser.sendFragment(mOpcode, fin, data, offset, length);
+            mOpcode = OP_CONTINUATION;
+            mTotal += length;
+            if (fin) {
+                mParser.mClient.getMetrics().messageSent(mBinary, mTotal);
+            }
+        }
+
+        private void checkOpen() throws IOException {
+            if (mClosed) {
+                throw new IOException("Message stream closed");
+            }
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,119 @@
+package com.codebutler.android_websockets;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pings a connection once nothing has been received from it for an interval, and gives up on it after a number of
+ * pings in a row went unanswered for an interval each. The pings carry a sequence number so that pongs can be
+ * matched to them and timed. Runs on the {@link SharedScheduler}.
+ */
+class Keepalive implements Runnable {
+    private final WebSocketClient mClient;
+    private final long            mIntervalNanos;
+    private final int             mMaxMissed;
+
+    private ScheduledFuture<?> mFuture;
+    private volatile long      mLastReceived;
+
+    // Guarded by this.
+    private long    mSequence;
+    private long    mPingSentAt;
+    private boolean mPingPending;
+    private int     mMissed;
+
+    Keepalive(WebSocketClient client, long intervalMillis, int maxMissed) {
+        mClient        = client;
+        mIntervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        mMaxMissed     = maxMissed;
+    }
+
+    synchronized void start() {
+        mLastReceived = System.nanoTime();
+        long period = TimeUnit.NANOSECONDS.toMillis(mIntervalNanos);
+        mFuture = SharedScheduler.get().scheduleWithFixedDelay(this, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if (mFuture != null) {
+            mFuture.cancel(false);
+            mFuture = null;
+        }
+        mPingPending = false;
+    }
+
+    /**
+     * Called for every read from the connection, any data shows that it is alive.
+     */
+    void received() {
+        mLastReceived = System.nanoTime();
+    }
+
+    /**
+     * Matches a pong to the outstanding ping.
+     *
+     * @return the round trip time in microseconds, or -1 if the pong doesn't answer the last ping.
+     */
+    synchronized long pongReceived(byte[] payload, int offset, int length) {
+        if (!mPingPending || length != 8 || readLong(payload, offset) != mSequence) {
+            return -1;
+        }
+        mPingPending = false;
+        mMissed      = 0;
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - mPingSentAt);
+    }
+
+    @Override
+    public void run() {
+        byte[] ping;
+        synchronized (this) {
+            if (mFuture == null) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (mPingPending) {
+                if (mLastReceived - mPingSentAt > 0) {
+                    // Still receiving, the pong may be queued behind the data.
+                    return;
+                }
+                if (++mMissed >= mMaxMissed) {
+                    stop();
+                    ping = null;
+                } else {
+                    ping = nextPing(now);
+                }
+            } else if (now - mLastReceived >= mIntervalNanos) {
+                ping = nextPing(now);
+            } else {
+                return;
+            }
+        }
+
+        if (ping == null) {
+            mClient.keepaliveFailed(new SocketTimeoutException(mMaxMissed + " keepalive pings went unanswered"));
+        } else {
+            mClient.getParser().ping(ping);
+        }
+    }
+
+    private byte[] nextPing(long now) {
+        mSequence++;
+        mPingSentAt  = now;
+        mPingPending = true;
+
+        byte[] payload = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            payload[i] = (byte) (mSequence >>> (56 - 8 * i));
+        }
+        return payload;
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
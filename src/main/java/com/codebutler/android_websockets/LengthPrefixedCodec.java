@@ -0,0 +1,70 @@
+package com.codebutler.android_websockets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary messages made of records, each preceded by its length as a 4 byte big-endian integer. Received records
+ * are read-only slices of the payload, valid as long as the payload is, see {@link MessageCodec#decode}; copy any
+ * that must be kept. Records are sent from their position to their limit, which is left unchanged.
+ */
+public class LengthPrefixedCodec implements MessageCodec<List<ByteBuffer>> {
+    private final String mProtocol;
+
+    /**
+     * @param protocol the subprotocol to offer, or null.
+     */
+    public LengthPrefixedCodec(String protocol) {
+        mProtocol = protocol;
+    }
+
+    @Override
+    public String getProtocol() {
+        return mProtocol;
+    }
+
+    @Override
+    public boolean isBinary() {
+        return true;
+    }
+
+    @Override
+    public List<ByteBuffer> decode(ByteBuffer payload, boolean binary) throws IOException {
+        ByteBuffer       message = payload.asReadOnlyBuffer();
+        List<ByteBuffer> records = new ArrayList<ByteBuffer>();
+        while (message.hasRemaining()) {
+            if (message.remaining() < 4) {
+                throw new IOException("Truncated record length");
+            }
+            int length = message.getInt();
+            if (length < 0 || length > message.remaining()) {
+                throw new IOException("Bad record length: " + length);
+            }
+            int end = message.position() + length;
+            ByteBuffer record = message.duplicate();
+            record.limit(end);
+            records.add(record.slice());
+            message.position(end);
+        }
+        return records;
+    }
+
+    @Override
+    public int encodedLength(List<ByteBuffer> records) {
+        int length = 0;
+        for (ByteBuffer record : records) {
+            length += 4 + record.remaining();
+        }
+        return length;
+    }
+
+    @Override
+    public void encode(List<ByteBuffer> records, ByteBuffer out) {
+        for (ByteBuffer record : records) {
+            out.putInt(record.remaining());
+            out.put(record.duplicate());
+        }
+    }
+}
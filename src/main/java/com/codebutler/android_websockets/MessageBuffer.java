@@ -0,0 +1,72 @@
+package com.codebutler.android_websockets;
+
+import java.util.Arrays;
+
+/**
+ * Growable byte array used to assemble payloads. Unlike {@link java.io.ByteArrayOutputStream} it exposes its
+ * storage, so content can be written in place and read without copying it out first.
+ */
+class MessageBuffer {
+    private static final byte[] EMPTY = new byte[0];
+
+    // Storage above this size is released on reset() rather than kept around for the next message.
+    private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+    private byte[] mData = EMPTY;
+    private int    mSize;
+    private int    mMaxCapacity = Integer.MAX_VALUE;
+
+    /**
+     * Stops doubling the storage past this size, so that content up to a known limit never takes twice the memory.
+     */
+    public void setMaxCapacity(int capacity) {
+        mMaxCapacity = capacity;
+    }
+
+    public void write(byte[] data, int offset, int length) {
+        System.arraycopy(data, offset, reserve(length), mSize, length);
+        mSize += length;
+    }
+
+    /**
+     * Makes room for {@code length} more bytes and returns the backing array. The caller writes them at
+     * {@link #size()} and then calls {@link #commit(int)}.
+     */
+    public byte[] reserve(int length) {
+        int required = mSize + length;
+        if (required < 0) {
+            throw new OutOfMemoryError();
+        }
+        if (required > mData.length) {
+            int capacity = Math.max(mData.length << 1, Math.max(required, 256));
+            if (capacity < 0 || capacity > mMaxCapacity) {
+                capacity = Math.max(required, mMaxCapacity);
+            }
+            mData = Arrays.copyOf(mData, capacity);
+        }
+        return mData;
+    }
+
+    public void commit(int length) {
+        mSize += length;
+    }
+
+    public byte[] array() {
+        return mData;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(mData, mSize);
+    }
+
+    public void reset() {
+        mSize = 0;
+        if (mData.length > MAX_RETAINED_SIZE) {
+            mData = EMPTY;
+        }
+    }
+}
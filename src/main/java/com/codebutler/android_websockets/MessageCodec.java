@@ -0,0 +1,43 @@
+package com.codebutler.android_websockets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns the messages of a subprotocol into objects and back, see {@link WebSocketClient#setCodecs(MessageCodec[])}.
+ * Messages are decoded from the parser's buffer and encoded into the frame that is sent, without an intermediate
+ * String or byte array. Both happen on the thread that reads or sends, so a codec must be thread-safe and quick.
+ * {@link Utf8Codec} and {@link LengthPrefixedCodec} are simple examples.
+ */
+public interface MessageCodec<T> {
+    /**
+     * Returns the subprotocol offered in the handshake for this codec. A codec without one, null, is used when
+     * the server picks no subprotocol.
+     */
+    public String getProtocol();
+
+    /**
+     * Returns whether messages are sent as binary frames rather than text frames.
+     */
+    public boolean isBinary();
+
+    /**
+     * Decodes a received message. Text messages have already been checked to be valid UTF-8.
+     *
+     * @param payload the whole payload, which must not be modified. It stays valid until an inline
+     *                {@link WebSocketClient.CodecListener} returns, so the message may refer to it. With a dispatch
+     *                executor it is a copy that stays valid for good.
+     * @throws IOException if the payload is not a valid message. The connection is then closed with status 1007.
+     */
+    public T decode(ByteBuffer payload, boolean binary) throws IOException;
+
+    /**
+     * Returns the exact number of bytes {@link #encode(Object, ByteBuffer)} writes for the message.
+     */
+    public int encodedLength(T message);
+
+    /**
+     * Writes the message at the buffer's position, {@link #encodedLength(Object)} bytes.
+     */
+    public void encode(T message, ByteBuffer out);
+}
@@ -0,0 +1,661 @@
+package com.codebutler.android_websockets;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Carries many logical channels over one {@link WebSocketClient}, so that independent feeds from the same server
+ * share one connection, one handshake and one set of threads and buffers.
+ *
+ * <pre>
+ * Multiplexer mux    = new Multiplexer(uri, listener);
+ * Channel     quotes = mux.openChannel(1, quotesListener);
+ * Channel     news   = mux.openChannel(2, newsListener);
+ * mux.getClient().connect();
+ * quotes.send("subscribe");
+ * </pre>
+ *
+ * <p>Channel messages travel in binary frames that start with a varint of the channel id shifted left by three
+ * bits. The low bits hold the kind of frame: binary or text data, credit or close, and whether more chunks of the
+ * message follow. Ids below 16 take a single byte. Messages longer than {@link #setChunkSize(int)} are cut into
+ * chunks, and channels with something to send take turns, each getting about a chunk's worth of bytes per turn, so
+ * a large message on one channel doesn't hold up the others.
+ *
+ * <p>Each channel may have {@link #setInitialWindow(int)} bytes of payload sent but not yet consumed by the other
+ * side. The receiver hands bytes back as credit frames, once the listener has returned from the message or, for
+ * the chunks of an unfinished message, as they arrive. The server must speak the same framing with the same
+ * initial window. Channel ids are picked by the application and stay open across reconnects. Messages that were
+ * handed to the connection when it dropped are lost; those still queued on a channel go out after the next
+ * handshake.
+ */
+public class Multiplexer implements WebSocketClient.ByteBufferListener, WebSocketClient.FlowControlListener {
+    private static final String TAG = "Multiplexer";
+
+    // The low bits of a frame's channel header.
+    static final int KIND_BINARY = 0;
+    static final int KIND_TEXT   = 1;
+    static final int KIND_CREDIT = 2;
+    static final int KIND_CLOSE  = 3;
+    static final int KIND_MASK   = 3;
+    static final int FLAG_MORE   = 4;
+    static final int ID_SHIFT    = 3;
+
+    private static final int  DEFAULT_INITIAL_WINDOW   = 256 * 1024;
+    private static final int  DEFAULT_CHUNK_SIZE       = 16 * 1024;
+    private static final long DEFAULT_MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+
+    // Chunks are only handed to the connection while less than this is buffered, so that a turn is never stuck
+    // behind much more than a batch of other channels' data.
+    private static final long LOW_WATERMARK  = 16 * 1024;
+    private static final long HIGH_WATERMARK = 64 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final WebSocketClient mClient;
+    private final Listener        mListener;
+
+    // Guarded by this, like the sending side of every channel.
+    private final Map<Integer, Channel> mChannels = new HashMap<Integer, Channel>();
+    private final LinkedList<Channel>   mTurns    = new LinkedList<Channel>();
+    private boolean                     mConnected;
+    private boolean                     mPumping;
+
+    private volatile int  mInitialWindow  = DEFAULT_INITIAL_WINDOW;
+    private volatile int  mChunkSize      = DEFAULT_CHUNK_SIZE;
+    private volatile long mMaxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+
+    public Multiplexer(URI uri, Listener listener) {
+        this(null, uri, listener);
+    }
+
+    /**
+     * Runs the connection on a factory's engine, see {@link WebSocketFactory#createClient(URI,
+     * WebSocketClient.Listener)}.
+     */
+    public Multiplexer(WebSocketFactory factory, URI uri, Listener listener) {
+        mListener = listener;
+        mClient   = (factory != null) ? factory.createClient(uri, this) : new WebSocketClient(uri, this);
+        mClient.setBufferedAmountWatermarks(LOW_WATERMARK, HIGH_WATERMARK);
+        // Not every end of a connection reaches onDisconnect(), and a queued one may come late.
+        mClient.setClosedHook(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Multiplexer.this) {
+                    mConnected = false;
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the connection, to set it up and {@code connect()} it. Send only through channels: the multiplexer
+     * is its listener and uses its buffered amount watermarks.
+     */
+    public WebSocketClient getClient() {
+        return mClient;
+    }
+
+    /**
+     * Sets the send window of every channel from the next handshake on. Defaults to 256 KB.
+     */
+    public void setInitialWindow(int bytes) {
+        mInitialWindow = bytes;
+    }
+
+    /**
+     * Sets how many payload bytes a channel may send in one frame and, roughly, per turn. Defaults to 16 KB.
+     */
+    public void setChunkSize(int bytes) {
+        mChunkSize = bytes;
+    }
+
+    /**
+     * Limits the size of the messages received on each channel. Defaults to 64 MB. Larger messages are dropped and
+     * reported to {@link Listener#onError(Exception)}.
+     */
+    public void setMaxMessageSize(long bytes) {
+        mMaxMessageSize = bytes;
+    }
+
+    /**
+     * Opens a channel. The server has to know what the id stands for, nothing is sent until the first message.
+     *
+     * @throws IllegalArgumentException if the id is negative or in use.
+     */
+    public synchronized Channel openChannel(int id, ChannelListener listener) {
+        if (id < 0 || mChannels.containsKey(id)) {
+            throw new IllegalArgumentException("Channel id not available: " + id);
+        }
+        Channel channel = new Channel(id, listener);
+        mChannels.put(id, channel);
+        return channel;
+    }
+
+    public synchronized Channel getChannel(int id) {
+        return mChannels.get(id);
+    }
+
+    @Override
+    public void onConnect() {
+        synchronized (this) {
+            mConnected = true;
+            mTurns.clear();
+            for (Channel channel : mChannels.values()) {
+                channel.restart();
+                schedule(channel);
+            }
+        }
+        if (mListener != null) {
+            mListener.onConnect();
+        }
+        pump();
+    }
+
+    @Override
+    public void onDisconnect(int code, String reason) {
+        if (mListener != null) {
+            mListener.onDisconnect(code, reason);
+        }
+    }
+
+    /**
+     * The connection failed. An inline listener hears of it before the client has torn the connection down, so
+     * stop sending right away.
+     */
+    @Override
+    public void onError(Exception error) {
+        synchronized (this) {
+            mConnected = false;
+        }
+        reportError(error);
+    }
+
+    private void reportError(Exception error) {
+        if (mListener != null) {
+            mListener.onError(error);
+        }
+    }
+
+    @Override
+    public void onMessage(String message) {
+        Log.d(TAG, "Dropped text message outside any channel");
+    }
+
+    @Override
+    public void onMessage(byte[] data) {
+        onMessage(ByteBuffer.wrap(data));
+    }
+
+    @Override
+    public void onMessage(ByteBuffer data) {
+        long header = readVarint(data);
+        long id     = header >>> ID_SHIFT;
+        if (header < 0 || id > Integer.MAX_VALUE) {
+            Log.d(TAG, "Dropped message without a channel header");
+            return;
+        }
+
+        Channel channel;
+        synchronized (this) {
+            channel = mChannels.get((int) id);
+        }
+        if (channel == null) {
+            Log.d(TAG, "Dropped frame for unknown channel " + id);
+            return;
+        }
+
+        int kind = (int) header & KIND_MASK;
+        switch (kind) {
+            case KIND_CREDIT:
+                long credit = readVarint(data);
+                if (credit > 0) {
+                    channel.credited(credit);
+                    pump();
+                }
+                break;
+
+            case KIND_CLOSE:
+                channel.closedByPeer();
+                break;
+
+            default:
+                channel.received(kind, ((int) header & FLAG_MORE) != 0, data);
+                break;
+        }
+    }
+
+    @Override
+    public void onBufferedAmountHigh(long bufferedAmount) {
+    }
+
+    @Override
+    public void onBufferedAmountLow(long bufferedAmount) {
+        pump();
+    }
+
+    /**
+     * Hands chunks to the connection, channel by channel, until every channel is done, out of window, or the
+     * connection has enough buffered. Only one thread pumps at a time, so each channel's chunks stay in order; a
+     * thread that finds another one pumping leaves the work to it.
+     */
+    private void pump() {
+        synchronized (this) {
+            if (mPumping) {
+                return;
+            }
+            mPumping = true;
+        }
+        try {
+            Chunk chunk;
+            while ((chunk = nextChunk()) != null) {
+                mClient.send(chunk.mHeader, chunk.mData, chunk.mOffset, chunk.mLength);
+            }
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                mPumping = false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Takes the next chunk in deficit round robin order: a channel keeps its turn until it has sent a chunk's worth
+     * of bytes, so channels of small messages get as many bytes through as channels of large ones.
+     *
+     * @return null, after ending the pump, if nothing can be sent now.
+     */
+    private synchronized Chunk nextChunk() {
+        while (mConnected && !mTurns.isEmpty() && mClient.getBufferedAmount() <= HIGH_WATERMARK) {
+            Channel channel = mTurns.getFirst();
+            if (!channel.isReady()) {
+                mTurns.removeFirst();
+                channel.endTurn();
+                continue;
+            }
+            if (channel.mDeficit <= 0) {
+                channel.mDeficit += mChunkSize;
+            }
+            Chunk chunk = channel.takeChunk(mChunkSize);
+            channel.mDeficit -= chunk.mLength;
+            if (channel.mDeficit <= 0 || !channel.isReady()) {
+                mTurns.removeFirst();
+                channel.endTurn();
+                schedule(channel);
+            }
+            return chunk;
+        }
+        mPumping = false;
+        return null;
+    }
+
+    // Must hold this.
+    private void schedule(Channel channel) {
+        if (mConnected && !channel.mScheduled && channel.isReady()) {
+            channel.mScheduled = true;
+            mTurns.addLast(channel);
+        }
+    }
+
+    private void sendCredit(int id, long credit) {
+        byte[] value = varint(credit);
+        try {
+            mClient.send(varint(((long) id << ID_SHIFT) | KIND_CREDIT), value, 0, value.length);
+        } catch (RuntimeException e) {
+            // The send buffer is full or the connection is going away, the peer will stall rather than overrun us.
+            Log.d(TAG, "Could not send credit", e);
+        }
+    }
+
+    private static byte[] varint(long value) {
+        byte[] bytes = new byte[varintLength(value)];
+        writeVarint(ByteBuffer.wrap(bytes), value);
+        return bytes;
+    }
+
+    private static int varintLength(long value) {
+        int length = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    private static void writeVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * @return the value, or -1 if the buffer ends first or it doesn't fit in 63 bits.
+     */
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 63 && in.hasRemaining(); shift += 7) {
+            int b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * One logical stream of messages. Sending is thread-safe. Messages are queued on the channel until it gets its
+     * turn and has window left, so {@link #getBufferedAmount()} is the one to watch to throttle a producer.
+     */
+    public class Channel {
+        private final int             mId;
+        private final ChannelListener mChannelListener;
+
+        // Sending side, guarded by the multiplexer.
+        private final LinkedList<Outgoing> mOutgoing = new LinkedList<Outgoing>();
+        private long                       mQueuedBytes;
+        private long                       mWindow = mInitialWindow;
+        private int                        mDeficit;
+        private boolean                    mScheduled;
+        private boolean                    mClosing;
+        private boolean                    mClosed;
+
+        // Bytes consumed but not yet handed back as credit, also guarded by the multiplexer.
+        private long    mUnacked;
+        private boolean mPaused;
+
+        // The message being received, only touched on the thread that delivers messages.
+        private final MessageBuffer  mIncoming     = new MessageBuffer();
+        private final CharsetDecoder mText         = Utf8Decoder.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        private int                  mIncomingKind = -1;
+        private boolean              mDiscarding;
+
+        Channel(int id, ChannelListener listener) {
+            mId              = id;
+            mChannelListener = listener;
+        }
+
+        public int getId() {
+            return mId;
+        }
+
+        public void send(String message) {
+            enqueue(KIND_TEXT, message.getBytes(Utf8Decoder.UTF_8));
+        }
+
+        /**
+         * Sends a binary message. The array is copied, since the message may wait for its turn.
+         */
+        public void send(byte[] message) {
+            enqueue(KIND_BINARY, message.clone());
+        }
+
+        /**
+         * Closes the channel once the messages queued on it have been sent. Its id can be used again after that.
+         */
+        public void close() {
+            synchronized (Multiplexer.this) {
+                if (mClosing || mClosed) {
+                    return;
+                }
+                mClosing = true;
+                mOutgoing.add(new Outgoing(KIND_CLOSE, EMPTY));
+                schedule(this);
+            }
+            pump();
+        }
+
+        /**
+         * Stops handing credit back, so that the server stops sending on this channel once its window is used up,
+         * while the other channels carry on. Useful when messages are handed to a consumer that falls behind.
+         */
+        public void pause() {
+            synchronized (Multiplexer.this) {
+                mPaused = true;
+            }
+        }
+
+        /**
+         * Hands back the credit held since {@link #pause()}.
+         */
+        public void resume() {
+            long credit;
+            synchronized (Multiplexer.this) {
+                mPaused = false;
+                credit   = mUnacked;
+                mUnacked = 0;
+            }
+            if (credit > 0) {
+                sendCredit(mId, credit);
+            }
+        }
+
+        /**
+         * Returns how many payload bytes are queued on this channel and not yet handed to the connection.
+         */
+        public long getBufferedAmount() {
+            synchronized (Multiplexer.this) {
+                return mQueuedBytes;
+            }
+        }
+
+        private void enqueue(int kind, byte[] payload) {
+            synchronized (Multiplexer.this) {
+                if (mClosing || mClosed) {
+                    throw new IllegalStateException("Channel " + mId + " is closed");
+                }
+                mOutgoing.add(new Outgoing(kind, payload));
+                mQueuedBytes += payload.length;
+                schedule(this);
+            }
+            pump();
+        }
+
+        // Must hold the multiplexer.
+        private boolean isReady() {
+            if (mOutgoing.isEmpty()) {
+                return false;
+            }
+            return mWindow > 0 || mOutgoing.getFirst().mKind == KIND_CLOSE;
+        }
+
+        // Must hold the multiplexer.
+        private void endTurn() {
+            mScheduled = false;
+            if (!isReady()) {
+                mDeficit = 0;
+            }
+        }
+
+        /**
+         * Cuts the next chunk off the first queued message. The window may end up a little below 0, by less than a
+         * chunk. Must hold the multiplexer.
+         */
+        private Chunk takeChunk(int chunkSize) {
+            Outgoing message = mOutgoing.getFirst();
+            if (message.mKind == KIND_CLOSE) {
+                mOutgoing.removeFirst();
+                mChannels.remove(mId);
+                mClosed = true;
+                return new Chunk(((long) mId << ID_SHIFT) | KIND_CLOSE, EMPTY, 0, 0);
+            }
+
+            int     length = Math.min(message.mData.length - message.mOffset, Math.max(chunkSize, 1));
+            boolean more   = message.mOffset + length < message.mData.length;
+            Chunk   chunk  = new Chunk(((long) mId << ID_SHIFT) | message.mKind | (more ? FLAG_MORE : 0), message.mData,
+                    message.mOffset, length);
+
+            message.mOffset += length;
+            mQueuedBytes    -= length;
+            mWindow         -= length;
+            if (!more) {
+                mOutgoing.removeFirst();
+            }
+            return chunk;
+        }
+
+        /**
+         * Starts over after a handshake: fresh windows on both sides, and a message that was partly sent goes out
+         * again from the start. Must hold the multiplexer.
+         */
+        private void restart() {
+            mWindow    = mInitialWindow;
+            mDeficit   = 0;
+            mUnacked   = 0;
+            mScheduled = false;
+            if (!mOutgoing.isEmpty()) {
+                Outgoing message = mOutgoing.getFirst();
+                mQueuedBytes   += message.mOffset;
+                message.mOffset = 0;
+            }
+            mIncoming.reset();
+            mIncomingKind = -1;
+            mDiscarding   = false;
+        }
+
+        private void credited(long credit) {
+            synchronized (Multiplexer.this) {
+                mWindow += credit;
+                schedule(this);
+            }
+        }
+
+        private void closedByPeer() {
+            synchronized (Multiplexer.this) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                mChannels.remove(mId);
+                mTurns.remove(this);
+                mScheduled = false;
+                mOutgoing.clear();
+                mQueuedBytes = 0;
+            }
+            mIncoming.reset();
+            mChannelListener.onClose(this);
+        }
+
+        private void received(int kind, boolean more, ByteBuffer data) {
+            int length = data.remaining();
+            if (mIncomingKind < 0 && !more) {
+                deliver(kind, data);
+            } else {
+                if (mIncomingKind < 0) {
+                    mIncomingKind = kind;
+                }
+                if (!mDiscarding && mIncoming.size() + (long) length > mMaxMessageSize) {
+                    mDiscarding = true;
+                    mIncoming.reset();
+                    reportError(new IOException("Message on channel " + mId + " is larger than " + mMaxMessageSize));
+                }
+                if (!mDiscarding) {
+                    data.get(mIncoming.reserve(length), mIncoming.size(), length);
+                    mIncoming.commit(length);
+                }
+                if (!more) {
+                    if (!mDiscarding) {
+                        deliver(mIncomingKind, ByteBuffer.wrap(mIncoming.array(), 0, mIncoming.size()));
+                    }
+                    mIncoming.reset();
+                    mIncomingKind = -1;
+                    mDiscarding   = false;
+                }
+            }
+            consumed(length);
+        }
+
+        private void deliver(int kind, ByteBuffer data) {
+            if (kind == KIND_TEXT) {
+                String message;
+                try {
+                    message = mText.decode(data).toString();
+                } catch (CharacterCodingException e) {
+                    reportError(new IOException("Invalid UTF-8 in a text message on channel " + mId));
+                    return;
+                }
+                mChannelListener.onMessage(this, message);
+            } else {
+                byte[] message = new byte[data.remaining()];
+                data.get(message);
+                mChannelListener.onMessage(this, message);
+            }
+        }
+
+        /**
+         * Hands bytes back as credit once a quarter of the window has been consumed, which can't stall the sender:
+         * it only stops with a whole window unacknowledged.
+         */
+        private void consumed(int length) {
+            long credit;
+            synchronized (Multiplexer.this) {
+                mUnacked += length;
+                if (mPaused || mClosed || mUnacked < Math.max(mInitialWindow / 4, 1)) {
+                    return;
+                }
+                credit   = mUnacked;
+                mUnacked = 0;
+            }
+            sendCredit(mId, credit);
+        }
+    }
+
+    /**
+     * Told about the connection as a whole.
+     */
+    public interface Listener {
+        public void onConnect();
+        public void onDisconnect(int code, String reason);
+        public void onError(Exception error);
+    }
+
+    /**
+     * Receives the messages of one channel, on the thread that delivers the connection's messages.
+     */
+    public interface ChannelListener {
+        public void onMessage(Channel channel, String message);
+        public void onMessage(Channel channel, byte[] data);
+        /** The server closed the channel. Messages still queued on it are dropped. */
+        public void onClose(Channel channel);
+    }
+
+    private static class Outgoing {
+        final int    mKind;
+        final byte[] mData;
+        int          mOffset;
+
+        Outgoing(int kind, byte[] data) {
+            mKind = kind;
+            mData = data;
+        }
+    }
+
+    /**
+     * A frame's channel header and a slice of payload, copied straight into the frame.
+     */
+    private static class Chunk {
+        final byte[] mHeader;
+        final byte[] mData;
+        final int    mOffset;
+        final int    mLength;
+
+        Chunk(long header, byte[] data, int offset, int length) {
+            mHeader = varint(header);
+            mData   = data;
+            mOffset = offset;
+            mLength = length;
+        }
+    }
+}
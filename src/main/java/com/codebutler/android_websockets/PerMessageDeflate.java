@@ -0,0 +1,274 @@
+package com.codebutler.android_websockets;
+
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Options for the permessage-deflate extension (RFC 7692). Pass an instance to
+ * {@link WebSocketClient#setPerMessageDeflate(PerMessageDeflate)} to offer compression in the handshake; it is only
+ * used if the server accepts it.
+ *
+ * The client always compresses each message on its own, without context takeover, because sharing a DEFLATE
+ * context between messages needs a sync flush, which {@link Deflater} only supports from API level 19. Messages
+ * from the server are inflated with context takeover unless {@code server_no_context_takeover} was negotiated.
+ */
+public class PerMessageDeflate {
+    static final String EXTENSION = "permessage-deflate";
+
+    private static final byte[] TRAILER = { 0x00, 0x00, (byte) 0xFF, (byte) 0xFF };
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    // Deflater always matches back across a 32 KB window, it can't be told to use a smaller one.
+    private static final int DEFLATER_WINDOW_BITS = 15;
+
+    private boolean mServerNoContextTakeover;
+    private int     mServerMaxWindowBits = 15;
+    private int     mClientMaxWindowBits = 15;
+    private int     mCompressionLevel    = Deflater.DEFAULT_COMPRESSION;
+    private int     mMinimumSize         = 256;
+
+    /**
+     * Asks the server to compress each message on its own. This costs compression ratio but lets the client drop
+     * the inflater's history between messages.
+     */
+    public void setServerNoContextTakeover(boolean noContextTakeover) {
+        mServerNoContextTakeover = noContextTakeover;
+    }
+
+    /**
+     * Asks the server to use a smaller LZ77 window, 8 to 15 bits.
+     */
+    public void setServerMaxWindowBits(int bits) {
+        checkWindowBits(bits);
+        mServerMaxWindowBits = bits;
+    }
+
+    /**
+     * Offers to use a smaller LZ77 window when compressing, 8 to 15 bits. The server may also pick a smaller window
+     * itself. {@link Deflater} always uses a 15 bit window, so messages longer than a smaller window are sent with
+     * Huffman coding only, which never refers back further than the window.
+     */
+    public void setClientMaxWindowBits(int bits) {
+        checkWindowBits(bits);
+        mClientMaxWindowBits = bits;
+    }
+
+    public void setCompressionLevel(int level) {
+        mCompressionLevel = level;
+    }
+
+    /**
+     * Messages shorter than this many bytes are sent uncompressed. Defaults to 256.
+     */
+    public void setMinimumSize(int bytes) {
+        mMinimumSize = bytes;
+    }
+
+    /**
+     * Returns the value for the Sec-WebSocket-Extensions request header.
+     */
+    String offer() {
+        StringBuilder offer = new StringBuilder(EXTENSION);
+        offer.append("; client_no_context_takeover");
+        if (mServerNoContextTakeover) {
+            offer.append("; server_no_context_takeover");
+        }
+        if (mServerMaxWindowBits < 15) {
+            offer.append("; server_max_window_bits=").append(mServerMaxWindowBits);
+        }
+        if (mClientMaxWindowBits < 15) {
+            offer.append("; client_max_window_bits=").append(mClientMaxWindowBits);
+        } else {
+            offer.append("; client_max_window_bits");
+        }
+        return offer.toString();
+    }
+
+    /**
+     * Checks the server's Sec-WebSocket-Extensions response header.
+     *
+     * @return the session to compress with, or null if the server did not accept the extension.
+     * @throws HybiParser.ProtocolError if the response has extensions or parameters that were not offered.
+     */
+    Session accept(String header) throws HybiParser.ProtocolError {
+        if (header == null) {
+            return null;
+        }
+
+        Session session = null;
+        for (String extension : header.split(",")) {
+            String[] params = extension.split(";");
+            String   name   = params[0].trim();
+            if (name.length() == 0) {
+                continue;
+            }
+            if (!name.equalsIgnoreCase(EXTENSION) || session != null) {
+                throw new HybiParser.ProtocolError("Unexpected extension: " + name);
+            }
+
+            boolean serverNoContextTakeover = false;
+            int     clientMaxWindowBits     = mClientMaxWindowBits;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                String value = null;
+                int    equals = param.indexOf('=');
+                if (equals != -1) {
+                    value = param.substring(equals + 1).trim();
+                    if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+                        value = value.substring(1, value.length() - 1);
+                    }
+                    param = param.substring(0, equals).trim();
+                }
+                param = param.toLowerCase(Locale.US);
+
+                if (param.equals("server_no_context_takeover")) {
+                    serverNoContextTakeover = true;
+                } else if (param.equals("client_no_context_takeover")) {
+                    // Always the case.
+                } else if (param.equals("server_max_window_bits")) {
+                    // The inflater handles any window size.
+                    parseWindowBits(param, value);
+                } else if (param.equals("client_max_window_bits")) {
+                    clientMaxWindowBits = Math.min(clientMaxWindowBits, parseWindowBits(param, value));
+                } else {
+                    throw new HybiParser.ProtocolError("Unexpected " + EXTENSION + " parameter: " + param);
+                }
+            }
+
+            session = new Session(serverNoContextTakeover, clientMaxWindowBits, mCompressionLevel, mMinimumSize);
+        }
+        return session;
+    }
+
+    private static int parseWindowBits(String param, String value) throws HybiParser.ProtocolError {
+        try {
+            int bits = Integer.parseInt(value);
+            if (bits >= 8 && bits <= 15) {
+                return bits;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw new HybiParser.ProtocolError("Bad " + param + ": " + value);
+    }
+
+    private static void checkWindowBits(int bits) {
+        if (bits < 8 || bits > 15) {
+            throw new IllegalArgumentException("Window bits must be between 8 and 15");
+        }
+    }
+
+    /**
+     * Compression state of one connection. The inflater is only used on the reading thread, deflating is
+     * synchronized on the session. Both are reused for every message.
+     */
+    static class Session {
+        private final boolean mServerNoContextTakeover;
+        private final int     mHuffmanOnlyAbove;
+        private final int     mMinimumSize;
+
+        private final Inflater      mInflater = new Inflater(true);
+        private final Deflater      mDeflater;
+        private final MessageBuffer mDeflated = new MessageBuffer();
+
+        private boolean mEnded;
+
+        Session(boolean serverNoContextTakeover, int clientMaxWindowBits, int level, int minimumSize) {
+            mServerNoContextTakeover = serverNoContextTakeover;
+            mHuffmanOnlyAbove        = (clientMaxWindowBits < DEFLATER_WINDOW_BITS)
+                    ? 1 << clientMaxWindowBits : Integer.MAX_VALUE;
+            mMinimumSize             = minimumSize;
+            mDeflater                = new Deflater(level, true);
+        }
+
+        int getMinimumSize() {
+            return mMinimumSize;
+        }
+
+        boolean isServerNoContextTakeover() {
+            return mServerNoContextTakeover;
+        }
+
+        /**
+         * Inflates one frame of a compressed message, appending the output to {@code out}.
+         *
+         * @param maxLength how much {@code out} may grow, beyond that the message is refused with status 1009.
+         */
+        void inflate(byte[] data, int offset, int length, MessageBuffer out, long maxLength)
+                throws HybiParser.ProtocolError {
+            if (mInflater.finished()) {
+                // The sender ended the message with a final block, anything after it is padding.
+                return;
+            }
+            mInflater.setInput(data, offset, length);
+            int start = out.size();
+            try {
+                while (true) {
+                    byte[] buffer = out.reserve(CHUNK_SIZE);
+                    int    count  = mInflater.inflate(buffer, out.size(), CHUNK_SIZE);
+                    out.commit(count);
+                    if (out.size() - start > maxLength) {
+                        throw new HybiParser.ProtocolError("Inflated message too large", HybiParser.CLOSE_TOO_LARGE);
+                    }
+                    if (count == 0 && (mInflater.needsInput() || mInflater.finished() || mInflater.needsDictionary())) {
+                        break;
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new HybiParser.ProtocolError("Bad compressed data: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Completes a compressed message after its final frame has been passed to {@link #inflate}.
+         */
+        void endMessage(MessageBuffer out, long maxLength) throws HybiParser.ProtocolError {
+            inflate(TRAILER, 0, TRAILER.length, out, maxLength);
+            if (mServerNoContextTakeover || mInflater.finished()) {
+                mInflater.reset();
+            }
+        }
+
+        /**
+         * Compresses a whole message. Must hold the session's lock, the returned buffer is reused by the next call.
+         *
+         * @return the compressed message, or null if the session has been ended.
+         */
+        MessageBuffer deflate(byte[] data, int offset, int length) {
+            if (mEnded) {
+                return null;
+            }
+
+            MessageBuffer out = mDeflated;
+            out.reset();
+
+            // A message no longer than a smaller negotiated window can't have matches reaching past it, a longer one
+            // is sent without matches.
+            mDeflater.setStrategy(length > mHuffmanOnlyAbove ? Deflater.HUFFMAN_ONLY : Deflater.DEFAULT_STRATEGY);
+            mDeflater.setInput(data, offset, length);
+            mDeflater.finish();
+            while (!mDeflater.finished()) {
+                byte[] buffer = out.reserve(CHUNK_SIZE);
+                out.commit(mDeflater.deflate(buffer, out.size(), CHUNK_SIZE));
+            }
+            mDeflater.reset();
+
+            // finish() ends the data with a final block. RFC 7692 section 7.2.3.3: follow it with the remains of an
+            // empty stored block, a single zero byte, since the 0x00 0x00 0xFF 0xFF tail is left out.
+            out.reserve(1)[out.size()] = 0;
+            out.commit(1);
+            return out;
+        }
+
+        /**
+         * Frees the native zlib state. The session can't be used afterwards.
+         */
+        synchronized void end() {
+            mEnded = true;
+            mInflater.end();
+            mDeflater.end();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.codebutler.android_websockets;
+
+import java.util.Random;
+
+/**
+ * How a client reconnects after losing its connection: after a random delay between zero and an exponentially
+ * growing ceiling ("full jitter"), so that many clients dropped at once don't all come back at the same moment.
+ */
+public class ReconnectPolicy {
+    private final long mBaseDelay;
+    private final long mMaxDelay;
+    private final int  mMaxAttempts;
+
+    private final Random mRandom = new Random();
+
+    /**
+     * @param baseDelayMillis ceiling of the first delay, doubled for every failed attempt since the last connection.
+     * @param maxDelayMillis  the ceiling never grows beyond this.
+     * @param maxAttempts     how many attempts in a row may fail before the client gives up.
+     */
+    public ReconnectPolicy(long baseDelayMillis, long maxDelayMillis, int maxAttempts) {
+        if (baseDelayMillis <= 0 || maxDelayMillis < baseDelayMillis) {
+            throw new IllegalArgumentException("Need 0 < baseDelayMillis <= maxDelayMillis");
+        }
+        mBaseDelay   = baseDelayMillis;
+        mMaxDelay    = maxDelayMillis;
+        mMaxAttempts = maxAttempts;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * Returns the delay before the given attempt, counted from 0.
+     */
+    public long getDelay(int attempt) {
+        long ceiling = mBaseDelay;
+        for (int i = 0; i < attempt && ceiling < mMaxDelay; i++) {
+            ceiling <<= 1;
+        }
+        ceiling = Math.min(ceiling, mMaxDelay);
+        return (long) (mRandom.nextDouble() * (ceiling + 1));
+    }
+}
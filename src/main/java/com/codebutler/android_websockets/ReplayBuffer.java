@@ -0,0 +1,71 @@
+package com.codebutler.android_websockets;
+
+import java.util.LinkedList;
+
+/**
+ * Messages sent while the client is not connected, to be sent after the next handshake. When full, the oldest
+ * messages are dropped. Text counts one byte per char towards the limit. Callers synchronize on the buffer.
+ */
+class ReplayBuffer {
+    private final int  mMaxMessages;
+    private final long mMaxBytes;
+
+    private final LinkedList<Object> mMessages = new LinkedList<Object>();
+    private long                     mBytes;
+
+    ReplayBuffer(int maxMessages, long maxBytes) {
+        mMaxMessages = maxMessages;
+        mMaxBytes    = maxBytes;
+    }
+
+    /**
+     * @param message a String, a byte array the buffer now owns, or a {@link CodecMessage}.
+     */
+    void add(Object message) {
+        mMessages.addLast(message);
+        mBytes += size(message);
+        while (!mMessages.isEmpty() && (mMessages.size() > mMaxMessages || mBytes > mMaxBytes)) {
+            mBytes -= size(mMessages.removeFirst());
+        }
+    }
+
+    /**
+     * Sends the buffered messages in order and empties the buffer.
+     */
+    void sendTo(HybiParser parser) {
+        while (!mMessages.isEmpty()) {
+            Object message = mMessages.removeFirst();
+            mBytes -= size(message);
+            if (message instanceof String) {
+                parser.send((String) message);
+            } else if (message instanceof CodecMessage) {
+                CodecMessage typed = (CodecMessage) message;
+                parser.send(typed.mCodec, typed.mMessage);
+            } else {
+                parser.send((byte[]) message);
+            }
+        }
+    }
+
+    private static int size(Object message) {
+        if (message instanceof CodecMessage) {
+            return ((CodecMessage) message).mSize;
+        }
+        return (message instanceof String) ? ((String) message).length() : ((byte[]) message).length;
+    }
+
+    /**
+     * A message for a {@link MessageCodec}, encoded when it is replayed.
+     */
+    static class CodecMessage {
+        final MessageCodec<Object> mCodec;
+        final Object               mMessage;
+        final int                  mSize;
+
+        CodecMessage(MessageCodec<Object> codec, Object message) {
+            mCodec   = codec;
+            mMessage = message;
+            mSize    = codec.encodedLength(message);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.codebutler.android_websockets;
+
+import java.util.Arrays;
+
+/**
+ * Round trip times of the most recent keepalive pings, in microseconds. Thread-safe.
+ */
+public class RoundTripStats {
+    private static final int WINDOW = 256;
+
+    private final long[] mSamples = new long[WINDOW];
+    private int          mCount;
+    private int          mNext;
+
+    synchronized void add(long micros) {
+        mSamples[mNext] = micros;
+        mNext = (mNext + 1) % WINDOW;
+        if (mCount < WINDOW) {
+            mCount++;
+        }
+    }
+
+    synchronized void clear() {
+        mCount = 0;
+        mNext  = 0;
+    }
+
+    /**
+     * Number of samples the other values are computed from, at most the last 256.
+     */
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    public synchronized long getLast() {
+        return (mCount == 0) ? 0 : mSamples[(mNext + WINDOW - 1) % WINDOW];
+    }
+
+    public synchronized long getMin() {
+        long min = (mCount == 0) ? 0 : Long.MAX_VALUE;
+        for (int i = 0; i < mCount; i++) {
+            min = Math.min(min, mSamples[i]);
+        }
+        return min;
+    }
+
+    public synchronized long getAverage() {
+        if (mCount == 0) {
+            return 0;
+        }
+        long sum = 0;
+        for (int i = 0; i < mCount; i++) {
+            sum += mSamples[i];
+        }
+        return sum / mCount;
+    }
+
+    public synchronized long getP99() {
+        if (mCount == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(mSamples, mCount);
+        Arrays.sort(sorted);
+        return sorted[(mCount * 99 + 99) / 100 - 1];
+    }
+
+    @Override
+    public String toString() {
+        return "RoundTripStats[min=" + getMin() + "us avg=" + getAverage() + "us p99=" + getP99() + "us]";
+    }
+}
@@ -0,0 +1,26 @@
+package com.codebutler.android_websockets;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The one timer thread shared by all clients, for keepalive pings and reconnects. Tasks must be short.
+ */
+class SharedScheduler {
+    private static ScheduledExecutorService sScheduler;
+
+    static synchronized ScheduledExecutorService get() {
+        if (sScheduler == null) {
+            sScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "websocket-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sScheduler;
+    }
+}
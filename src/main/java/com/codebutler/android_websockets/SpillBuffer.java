@@ -0,0 +1,108 @@
+package com.codebutler.android_websockets;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Collects a received message in memory until it grows past a threshold, then moves it to a temporary file and
+ * appends the rest there, so that heap use stays the same however large the message is. The file is deleted as
+ * soon as it is opened: it lives on only as long as its channel, so nothing is left behind if the process dies.
+ * Only used on the reading thread.
+ */
+class SpillBuffer {
+    private final File mDirectory;
+    private final int  mThreshold;
+    private final long mMaxSize;
+
+    private final MessageBuffer mMemory = new MessageBuffer();
+    private FileChannel         mChannel;
+    private long                mSize;
+
+    SpillBuffer(File directory, int threshold, long maxSize) {
+        mDirectory = directory;
+        mThreshold = threshold;
+        mMaxSize   = maxSize;
+    }
+
+    int getThreshold() {
+        return mThreshold;
+    }
+
+    long getMaxSize() {
+        return mMaxSize;
+    }
+
+    void write(byte[] data, int offset, int length) throws IOException {
+        mSize += length;
+        if (mSize > mMaxSize) {
+            throw new HybiParser.ProtocolError("Message too large: " + mSize, HybiParser.CLOSE_TOO_LARGE);
+        }
+        if (mChannel == null && mSize <= mThreshold) {
+            mMemory.write(data, offset, length);
+            return;
+        }
+        if (mChannel == null) {
+            mChannel = open();
+            writeFully(mMemory.array(), 0, mMemory.size());
+            mMemory.reset();
+        }
+        writeFully(data, offset, length);
+    }
+
+    boolean isSpilled() {
+        return mChannel != null;
+    }
+
+    /**
+     * Returns the message while it is still in memory, valid until {@link #reset()}.
+     */
+    MessageBuffer getMemory() {
+        return mMemory;
+    }
+
+    /**
+     * Hands over the file of a spilled message, positioned at its start. The caller must close it.
+     */
+    FileChannel finish() throws IOException {
+        FileChannel channel = mChannel;
+        mChannel = null;
+        mSize    = 0;
+        channel.position(0);
+        return channel;
+    }
+
+    /**
+     * Drops the message, closing its file if it had one.
+     */
+    void reset() {
+        mMemory.reset();
+        mSize = 0;
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                // Already deleted, nothing else to release.
+            }
+            mChannel = null;
+        }
+    }
+
+    private FileChannel open() throws IOException {
+        File file = File.createTempFile("websocket", ".spill", mDirectory);
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+        return access.getChannel();
+    }
+
+    private void writeFully(byte[] data, int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.codebutler.android_websockets;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Text messages as Strings, decoded straight from the received payload and encoded straight into the frame.
+ */
+public class Utf8Codec implements MessageCodec<String> {
+    private final String mProtocol;
+
+    /**
+     * @param protocol the subprotocol to offer, or null.
+     */
+    public Utf8Codec(String protocol) {
+        mProtocol = protocol;
+    }
+
+    @Override
+    public String getProtocol() {
+        return mProtocol;
+    }
+
+    @Override
+    public boolean isBinary() {
+        return false;
+    }
+
+    @Override
+    public String decode(ByteBuffer payload, boolean binary) {
+        if (payload.hasArray()) {
+            return new String(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining(),
+                    Utf8Decoder.UTF_8);
+        }
+        return Utf8Decoder.UTF_8.decode(payload).toString();
+    }
+
+    @Override
+    public int encodedLength(String message) {
+        return HybiParser.utf8Length(message);
+    }
+
+    @Override
+    public void encode(String message, ByteBuffer out) {
+        if (out.hasArray()) {
+            int start = out.arrayOffset() + out.position();
+            int end   = HybiParser.writeUtf8(message, out.array(), start);
+            out.position(out.position() + end - start);
+        } else {
+            out.put(message.getBytes(Utf8Decoder.UTF_8));
+        }
+    }
+}
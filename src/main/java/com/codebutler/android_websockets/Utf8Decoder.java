@@ -0,0 +1,125 @@
+package com.codebutler.android_websockets;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes a text message fragment by fragment as it arrives, failing as soon as the bytes can't be valid UTF-8. A
+ * character may be split between fragments. The decoder and its buffers are reused for every message.
+ */
+class Utf8Decoder {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Storage above this many chars is released once a message is done rather than kept around for the next one.
+    private static final int MAX_RETAINED_SIZE = 512 * 1024;
+
+    private final CharsetDecoder mDecoder = UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT);
+
+    private CharBuffer mChars = CharBuffer.allocate(256);
+
+    // The start of a character whose remaining bytes are in the next fragment.
+    private final byte[] mCarry = new byte[4];
+    private int          mCarryLength;
+
+    /**
+     * Decodes a whole message.
+     */
+    public String decode(byte[] data, int offset, int length) throws CharacterCodingException {
+        write(data, offset, length);
+        return finish();
+    }
+
+    /**
+     * Decodes the next piece of the current message.
+     */
+    public void write(byte[] data, int offset, int length) throws CharacterCodingException {
+        if (mCarryLength > 0) {
+            int take = Math.min(mCarry.length - mCarryLength, length);
+            System.arraycopy(data, offset, mCarry, mCarryLength, take);
+
+            ByteBuffer in = ByteBuffer.wrap(mCarry, 0, mCarryLength + take);
+            decode(in, false);
+            if (in.position() == 0) {
+                // Still not a whole character, the piece was that short.
+                mCarryLength += take;
+                return;
+            }
+            int used = in.position() - mCarryLength;
+            mCarryLength = 0;
+            offset += used;
+            length -= used;
+        }
+
+        // Never more chars than bytes, so this decodes in one pass.
+        if (mChars.remaining() < length) {
+            grow(length);
+        }
+        ByteBuffer in = ByteBuffer.wrap(data, offset, length);
+        decode(in, false);
+        mCarryLength = in.remaining();
+        in.get(mCarry, 0, mCarryLength);
+    }
+
+    /**
+     * Ends the current message.
+     *
+     * @return the decoded text.
+     */
+    public String finish() throws CharacterCodingException {
+        try {
+            decode(ByteBuffer.wrap(mCarry, 0, mCarryLength), true);
+            while (mDecoder.flush(mChars).isOverflow()) {
+                grow(1);
+            }
+            return new String(mChars.array(), 0, mChars.position());
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * Drops the decoded text of the current message while still validating the rest, for text that is streamed to
+     * the listener as bytes.
+     */
+    public void discard() {
+        mChars.clear();
+    }
+
+    public void reset() {
+        mDecoder.reset();
+        mCarryLength = 0;
+        if (mChars.capacity() > MAX_RETAINED_SIZE) {
+            mChars = CharBuffer.allocate(256);
+        } else {
+            mChars.clear();
+        }
+    }
+
+    private void decode(ByteBuffer in, boolean endOfInput) throws CharacterCodingException {
+        while (true) {
+            CoderResult result = mDecoder.decode(in, mChars, endOfInput);
+            if (result.isOverflow()) {
+                grow(1);
+            } else if (result.isError()) {
+                result.throwException();
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void grow(int minRemaining) {
+        int        required = mChars.position() + minRemaining;
+        CharBuffer chars    = CharBuffer.allocate(Math.max(mChars.capacity() << 1, required));
+        mChars.flip();
+        chars.put(mChars);
+        mChars = chars;
+    }
+}
@@ -5,26 +5,35 @@ import android.os.HandlerThread;
 import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
-import org.apache.http.*;
-import org.apache.http.client.HttpResponseException;
-import org.apache.http.message.BasicLineParser;
 import org.apache.http.message.BasicNameValuePair;
 
-import javax.net.SocketFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLException;
-import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.KeyManagementException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class WebSocketClient {
     private static final String TAG = "WebSocketClient";
@@ -35,129 +44,893 @@ public class WebSocketClient {
     private Thread                   mThread;
     private HandlerThread            mHandlerThread;
     private Handler                  mHandler;
-    private List<BasicNameValuePair> mExtraHeaders;
+    private final List<String>       mExtraHeaders = new ArrayList<String>();
+    private String[]                 mProtocols;
+    private volatile String          mProtocol;
+    private MessageCodec<?>[]        mCodecs;
+    private volatile MessageCodec<?> mCodec;
     private HybiParser               mParser;
+    private BufferPool               mBufferPool = BufferPool.getDefault();
+    private PerMessageDeflate        mPerMessageDeflate;
+    private WebSocketEngine          mEngine;
+    private WebSocketFactory         mFactory;
+
+    private volatile WebSocketEngine.Connection mConnection;
+
+    // Socket options, 0 leaves a timeout or buffer size at the system default.
+    private int     mConnectTimeout;
+    private int     mReadTimeout;
+    private boolean mTcpNoDelay = true;
+    private int     mSendBufferSize;
+    private int     mReceiveBufferSize;
+
+    private volatile ConnectTimings mConnectTimings;
+
+    private volatile WebSocketMetrics mMetrics    = WebSocketMetrics.NONE;
+    private volatile Dispatcher       mDispatcher = new Dispatcher(this, null, 0);
+
+    private long                 mKeepaliveInterval;
+    private int                  mKeepaliveMaxMissed;
+    private volatile Keepalive   mKeepalive;
+    private final RoundTripStats mRoundTripStats = new RoundTripStats();
+
+    private volatile ReconnectPolicy mReconnectPolicy;
+    private volatile boolean         mDisconnectRequested;
+    private ScheduledFuture<?>       mReconnect;
+    private int                      mReconnectAttempts;
+
+    // Set between a completed handshake and the end of the connection, under the replay buffer's lock if there is one.
+    private volatile boolean      mConnected;
+    private volatile ReplayBuffer mReplayBuffer;
+
+    // Run as soon as a connection is gone, for layers on top of the client such as Multiplexer.
+    private volatile Runnable mClosedHook;
 
     private final Object mSendLock = new Object();
 
+    // Frames waiting to be written, guarded by mQueue, which holds normal messages and close frames. Pings, pongs
+    // and high priority messages have lanes of their own. mBatch is only touched on the websocket thread.
+    private final FrameQueue mQueue       = new FrameQueue();
+    private final FrameQueue mUrgentQueue = new FrameQueue();
+    private final FrameQueue mHighQueue   = new FrameQueue();
+    private final FrameQueue mBatch       = new FrameQueue();
+    private boolean          mDrainScheduled;
+    private boolean          mDrainDelayed;
+    private byte[]           mWriteBuffer;
+
+    // The lane of a message that is partly written, which no other message may interrupt, and how much of the
+    // payload of its first frame has gone out as fragments.
+    private FrameQueue mOpenLane;
+    private int        mFragmentOffset;
+
+    private int mMaxBatchSize    = DEFAULT_MAX_BATCH_SIZE;
+    private int mMaxBatchDelay   = 0;
+    private int mMaxFragmentSize = DEFAULT_MAX_FRAGMENT_SIZE;
+
+    // Send buffer limits and accounting, guarded by mQueue. Frames being written count as buffered until done.
+    private long           mMaxBufferedBytes  = Long.MAX_VALUE;
+    private int            mMaxBufferedFrames = Integer.MAX_VALUE;
+    private OverflowPolicy mOverflowPolicy    = OverflowPolicy.BLOCK;
+    private long           mHighWatermark     = DEFAULT_HIGH_WATERMARK;
+    private long           mLowWatermark      = DEFAULT_LOW_WATERMARK;
+    private boolean        mAboveHighWatermark;
+    private long           mInFlightBytes;
+    private int            mInFlightFrames;
+
+    private volatile Thread mWriterThread;
+
+    private static final int  DEFAULT_MAX_BATCH_SIZE    = 64 * 1024;
+    private static final int  DEFAULT_MAX_FRAGMENT_SIZE = 32 * 1024;
+    private static final int  MAX_WRITE_BUFFER_SIZE     = 64 * 1024;
+    private static final long DEFAULT_HIGH_WATERMARK = 1024 * 1024;
+    private static final long DEFAULT_LOW_WATERMARK  = 256 * 1024;
+
+    /**
+     * What {@code send()} does when the send buffer is full.
+     */
+    public enum OverflowPolicy {
+        /** Wait until enough has been written to make room. */
+        BLOCK,
+        /** Discard the oldest queued data frames to make room. */
+        DROP_OLDEST,
+        /** Throw a {@link SendBufferFullException}. */
+        FAIL_FAST
+    }
+
+    /**
+     * Where a message goes in the send queue, see {@link #send(String, Priority)}.
+     */
+    public enum Priority {
+        /** Ahead of the normal messages that are still queued. */
+        HIGH,
+        /** After everything sent before it. */
+        NORMAL
+    }
+
     private static TrustManager[] sTrustManagers;
+    private static SSLContext     sSSLContext;
 
-    public static void setTrustManagers(TrustManager[] tm) {
+    public static synchronized void setTrustManagers(TrustManager[] tm) {
         sTrustManagers = tm;
+        sSSLContext    = null;
     }
 
-    public WebSocketClient(URI uri, Listener listener, List<BasicNameValuePair> extraHeaders) {
-        mURI          = uri;
+    /**
+     * Sets how long resolved host names are reused by all clients. Defaults to 30 seconds, 0 turns the cache off.
+     * Addresses that fail to connect are forgotten right away.
+     */
+    public static void setDnsCacheTtl(long millis) {
+        DnsCache.setTtl(millis);
+    }
+
+    public WebSocketClient(URI uri, Listener listener) {
+        mURI      = uri;
         mListener = listener;
-        mExtraHeaders = extraHeaders;
-        mParser       = new HybiParser(this);
+        mParser   = new HybiParser(this);
+    }
+
+    public WebSocketClient(URI uri, Listener listener, List<BasicNameValuePair> extraHeaders) {
+        this(uri, listener);
+        if (extraHeaders != null) {
+            for (BasicNameValuePair pair : extraHeaders) {
+                addHeader(pair.getName(), pair.getValue());
+            }
+        }
+    }
+
+    /**
+     * Adds a header to the upgrade request.
+     */
+    public void addHeader(String name, String value) {
+        mExtraHeaders.add(name + ": " + value);
+    }
 
-        mHandlerThread = new HandlerThread("websocket-thread");
-        mHandlerThread.start();
-        mHandler = new Handler(mHandlerThread.getLooper());
+    /**
+     * Offers these subprotocols in the handshake of the next {@link #connect()}, in order of preference.
+     */
+    public void setProtocols(String... protocols) {
+        mProtocols = (protocols.length > 0) ? protocols.clone() : null;
+    }
+
+    /**
+     * Returns the subprotocol the server picked for the current connection, or null.
+     */
+    public String getProtocol() {
+        return mProtocol;
+    }
+
+    /**
+     * Offers the subprotocols of these codecs in the handshake of the next {@link #connect()}, after those of
+     * {@link #setProtocols(String...)}. Data messages are then decoded by the codec for the subprotocol the server
+     * picks and passed to {@link CodecListener#onDecoded(Object)} instead of {@code onMessage()}, which the listener
+     * must implement. If the server picks none of them, messages arrive as before.
+     */
+    public void setCodecs(MessageCodec<?>... codecs) {
+        if (codecs.length > 0 && !(mListener instanceof CodecListener)) {
+            throw new IllegalStateException("The listener must be a CodecListener");
+        }
+        mCodecs = (codecs.length > 0) ? codecs.clone() : null;
+    }
+
+    /**
+     * Returns the codec picked for the current connection, or the last one, or null.
+     */
+    public MessageCodec<?> getCodec() {
+        return mCodec;
     }
 
     public Listener getListener() {
         return mListener;
     }
 
+    Dispatcher getDispatcher() {
+        return mDispatcher;
+    }
+
+    void setFactory(WebSocketFactory factory) {
+        mFactory    = factory;
+        mBufferPool = factory.getBufferPool();
+    }
+
+    void setConnection(WebSocketEngine.Connection connection) {
+        mConnection = connection;
+    }
+
+    /**
+     * Runs {@code hook} whenever a connection ends, on the thread that ran it and before any reconnect. Unlike
+     * {@link Listener#onDisconnect(int, String)} it also runs when the connection failed with an error.
+     */
+    void setClosedHook(Runnable hook) {
+        mClosedHook = hook;
+    }
+
+    /**
+     * Called when a full dispatch queue has room again.
+     */
+    void dispatchResumed() {
+        WebSocketEngine.Connection connection = mConnection;
+        if (connection != null) {
+            connection.wakeup();
+        }
+    }
+
+    /**
+     * Sets how many bytes of queued frames are written to the socket at most before flushing. Defaults to 64 KB.
+     */
+    public void setMaxBatchSize(int bytes) {
+        synchronized (mQueue) {
+            mMaxBatchSize = bytes;
+        }
+    }
+
+    /**
+     * Cuts data frames with a payload over {@code bytes} into fragments of that size as they are written, so that
+     * pings, pongs and {@link Priority#HIGH} messages never wait for more than one fragment of a large message.
+     * Defaults to 32 KB, 0 writes every message as one frame.
+     */
+    public void setMaxFragmentSize(int bytes) {
+        synchronized (mQueue) {
+            mMaxFragmentSize = bytes;
+        }
+    }
+
+    /**
+     * Records every frame received and sent from now on to {@code capture}, or stops recording with null. Closing
+     * the capture is up to the caller.
+     */
+    public void setFrameCapture(FrameCapture capture) {
+        mParser.setCapture(capture);
+    }
+
+    /**
+     * Offers permessage-deflate compression in the handshake of the next {@link #connect()}, or stops offering it
+     * with null.
+     */
+    public void setPerMessageDeflate(PerMessageDeflate perMessageDeflate) {
+        mPerMessageDeflate = perMessageDeflate;
+    }
+
+    /**
+     * Sets the largest frame the server may send, whatever the listener. A larger frame is refused with status 1009
+     * as soon as its header arrives. Defaults to no limit: lengths of up to 2^63 - 1 bytes are accepted, which only a
+     * {@link StreamingListener} can receive, as the message limit applies to everything else.
+     */
+    public void setMaxFrameSize(long bytes) {
+        mParser.setMaxFrameSize(bytes);
+    }
+
+    /**
+     * Sets the largest message that is held in memory, counted after decompression. A message that would be larger
+     * is refused with status 1009 before its payload is read, rather than allocated. Defaults to 64 MB. Messages
+     * passed to a {@link StreamingListener} as they arrive are not held and not limited.
+     */
+    public void setMaxMessageSize(long bytes) {
+        mParser.setMaxMessageSize(bytes);
+    }
+
+    /**
+     * Writes messages that grow past {@code threshold} bytes to a temporary file in {@code directory} as they arrive,
+     * and passes them to {@link SpillListener#onMessage(FileChannel, boolean)}, which the listener must implement.
+     * Smaller messages arrive as before. Spilled messages are not held in memory, so instead of the message size
+     * limit they are limited to {@code maxSize} bytes. The file is written on the thread that reads the socket.
+     * With a null directory, the default, every message is held in memory. Call before {@link #connect()}.
+     */
+    public void setSpillDirectory(File directory, int threshold, long maxSize) {
+        if (directory != null && !(mListener instanceof SpillListener)) {
+            throw new IllegalStateException("The listener must be a SpillListener");
+        }
+        if (directory != null && mListener instanceof StreamingListener) {
+            throw new IllegalStateException("A StreamingListener already gets every message as it arrives");
+        }
+        mParser.setSpill((directory != null) ? new SpillBuffer(directory, threshold, maxSize) : null);
+    }
+
+    /**
+     * Runs the next {@link #connect()} on a shared {@link WebSocketEngine} instead of a reader and a writer thread
+     * of its own, or goes back to the threads with null. Listener callbacks then come from one of the engine's
+     * threads and must not block, unless they are moved with {@link #setDispatchExecutor(Executor, int)}. {@link #setMaxBatchDelay(int)} has no effect on an engine.
+     */
+    public void setEngine(WebSocketEngine engine) {
+        mEngine = engine;
+    }
+
+    /**
+     * Calls the listener on {@code executor} instead of the thread that reads the socket, so that a slow listener
+     * doesn't hold up reading, answering pings or closing. Callbacks still come one at a time and in order. Up to
+     * {@code maxQueuedMessages} messages wait for the listener, 0 for no limit; beyond that the client stops
+     * reading until the listener catches up. Buffers passed to a {@link ByteBufferListener} or
+     * {@link StreamingListener} are then copies the listener may keep. With null, the default, callbacks run on the
+     * reading thread. {@link FlowControlListener} callbacks are never moved.
+     */
+    public void setDispatchExecutor(Executor executor, int maxQueuedMessages) {
+        mDispatcher = new Dispatcher(this, executor, maxQueuedMessages);
+    }
+
+    /**
+     * Reports what the client does to the given metrics, for example a {@link WebSocketStats}, or stops with null.
+     */
+    public void setMetrics(WebSocketMetrics metrics) {
+        mMetrics = (metrics != null) ? metrics : WebSocketMetrics.NONE;
+    }
+
+    public WebSocketMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Sets how long the TCP connect may take. Defaults to 0, which waits as long as the system does.
+     */
+    public void setConnectTimeout(int millis) {
+        mConnectTimeout = millis;
+    }
+
+    /**
+     * Sets how long a read may block before the connection fails with a {@link java.net.SocketTimeoutException},
+     * covering the handshake and then any silence from the server. Defaults to 0, no timeout. Not supported on a
+     * {@link WebSocketEngine}, use {@link #setKeepalive(long, int)} there.
+     */
+    public void setReadTimeout(int millis) {
+        mReadTimeout = millis;
+    }
+
+    /**
+     * Turns Nagle's algorithm back on with false. Off by default since frames are already batched before writing.
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        mTcpNoDelay = tcpNoDelay;
+    }
+
+    /**
+     * Sets the socket's send and receive buffer sizes, 0 keeps the system default. Takes effect on the next
+     * {@link #connect()}.
+     */
+    public void setSocketBufferSizes(int sendBufferSize, int receiveBufferSize) {
+        mSendBufferSize    = sendBufferSize;
+        mReceiveBufferSize = receiveBufferSize;
+    }
+
+    /**
+     * Returns how long the phases of setting up the current or last connection took, or null before the first
+     * handshake completes.
+     */
+    public ConnectTimings getConnectTimings() {
+        return mConnectTimings;
+    }
+
+    /**
+     * Pings the server whenever nothing has been received for {@code intervalMillis}, and drops the connection with
+     * a {@link java.net.SocketTimeoutException} once {@code maxMissed} pings in a row went unanswered for an
+     * interval each. Takes effect on the next {@link #connect()}, an interval of 0 turns it off.
+     */
+    public void setKeepalive(long intervalMillis, int maxMissed) {
+        mKeepaliveInterval  = intervalMillis;
+        mKeepaliveMaxMissed = maxMissed;
+    }
+
+    /**
+     * Returns the round trip times measured by keepalive pings on the current connection.
+     */
+    public RoundTripStats getRoundTripStats() {
+        return mRoundTripStats;
+    }
+
+    /**
+     * Reconnects automatically whenever the connection is lost, other than through {@link #disconnect()}, or stops
+     * doing so with null. The listener sees the disconnect or error first as usual.
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+    }
+
+    /**
+     * Holds on to up to {@code maxMessages} messages or {@code maxBytes} bytes that are sent while the client is
+     * not connected, and sends them right after the next handshake, before {@code onConnect()}. The oldest are
+     * dropped when it is full. With a {@code maxMessages} of 0 such messages are sent into the void as before.
+     */
+    public void setReplayBuffer(int maxMessages, long maxBytes) {
+        mReplayBuffer = (maxMessages > 0) ? new ReplayBuffer(maxMessages, maxBytes) : null;
+    }
+
+    /**
+     * Bounds the number of bytes and frames that may be queued but not yet written. Control frames are always
+     * accepted. By default the send buffer is unbounded.
+     */
+    public void setSendBufferLimit(long maxBytes, int maxFrames, OverflowPolicy policy) {
+        synchronized (mQueue) {
+            mMaxBufferedBytes  = maxBytes;
+            mMaxBufferedFrames = maxFrames;
+            mOverflowPolicy    = policy;
+            mQueue.notifyAll();
+        }
+    }
+
+    /**
+     * Sets when a {@link FlowControlListener} is told to stop and resume sending. Defaults to 1 MB and 256 KB.
+     */
+    public void setBufferedAmountWatermarks(long low, long high) {
+        synchronized (mQueue) {
+            mLowWatermark  = low;
+            mHighWatermark = high;
+        }
+    }
+
+    /**
+     * Returns the number of bytes that have been queued by {@code send()} but not yet written to the socket,
+     * including frame headers.
+     */
+    public long getBufferedAmount() {
+        synchronized (mQueue) {
+            return queuedBytes() + mInFlightBytes;
+        }
+    }
+
+    /**
+     * Returns the number of frames that have been queued but not yet written to the socket.
+     */
+    public int getBufferedFrameCount() {
+        synchronized (mQueue) {
+            return queuedFrames() + mInFlightFrames;
+        }
+    }
+
+    /**
+     * Sets how long a frame may wait for more frames to be sent with it. The default of 0 writes as soon as the
+     * websocket thread gets to it, which still batches frames that are queued while it is busy.
+     */
+    public void setMaxBatchDelay(int millis) {
+        synchronized (mQueue) {
+            mMaxBatchDelay = millis;
+        }
+    }
+
     public void connect() {
+        synchronized (this) {
+            mDisconnectRequested = false;
+            if (mReconnect != null) {
+                mReconnect.cancel(false);
+                mReconnect = null;
+            }
+        }
+
         if (mThread != null && mThread.isAlive()) {
             return;
         }
 
+        WebSocketEngine engine = mEngine;
+        if (engine != null) {
+            WebSocketEngine.Connection connection = mConnection;
+            if (connection != null && connection.isOpen()) {
+                return;
+            }
+            dropPartialFrame();
+            mParser.restart();
+            try {
+                SSLEngine sslEngine = null;
+                if (isSecure()) {
+                    sslEngine = getSSLContext().createSSLEngine(mURI.getHost(), getPort());
+                    sslEngine.setUseClientMode(true);
+                }
+                engine.connect(this, mURI.getHost(), getPort(), sslEngine, mPerMessageDeflate);
+            } catch (Exception ex) {
+                mDispatcher.onError(ex);
+            }
+            return;
+        }
+
         mThread = new Thread(new Runnable() {
             @Override
             public void run() {
+                PerMessageDeflate         perMessageDeflate = mPerMessageDeflate;
+                PerMessageDeflate.Session deflate           = null;
                 try {
+                    dropPartialFrame();
+                    mParser.restart();
                     String secret = createSecret();
+                    String host   = mURI.getHost();
+                    int    port   = getPort();
 
-                    int port = (mURI.getPort() != -1) ? mURI.getPort() : (mURI.getScheme().equals("wss") ? 443 : 80);
+                    long          started   = System.nanoTime();
+                    InetAddress[] addresses = DnsCache.resolve(host);
+                    long          resolved  = System.nanoTime();
+                    mSocket = openSocket(host, addresses, port);
+                    long          connected = System.nanoTime();
 
-                    String path = TextUtils.isEmpty(mURI.getPath()) ? "/" : mURI.getPath();
-                    if (!TextUtils.isEmpty(mURI.getQuery())) {
-                        path += "?" + mURI.getQuery();
+                    long secured = connected;
+                    if (isSecure()) {
+                        // Layered over the connected socket, which still keys the session cache by host and port.
+                        SSLSocket socket = (SSLSocket) getSSLContext().getSocketFactory().createSocket(mSocket, host, port, true);
+                        mSocket = socket;
+                        socket.startHandshake();
+                        secured = System.nanoTime();
                     }
 
-                    String originScheme = mURI.getScheme().equals("wss") ? "https" : "http";
-                    URI origin = new URI(originScheme, "//" + mURI.getHost(), null);
-
-                    SocketFactory factory = mURI.getScheme().equals("wss") ? getSSLSocketFactory() : SocketFactory.getDefault();
-                    mSocket = factory.createSocket(mURI.getHost(), port);
-
-                    PrintWriter out = new PrintWriter(mSocket.getOutputStream());
-                    out.print("GET " + path + " HTTP/1.1\r\n");
-                    out.print("Upgrade: websocket\r\n");
-                    out.print("Connection: Upgrade\r\n");
-                    out.print("Host: " + mURI.getHost() + "\r\n");
-                    out.print("Origin: " + origin.toString() + "\r\n");
-                    out.print("Sec-WebSocket-Key: " + secret + "\r\n");
-                    out.print("Sec-WebSocket-Version: 13\r\n");
-                    if (mExtraHeaders != null) {
-                        for (NameValuePair pair : mExtraHeaders) {
-                            out.print(String.format("%s: %s\r\n", pair.getName(), pair.getValue()));
-                        }
-                    }
-                    out.print("\r\n");
+                    // The whole request in one write.
+                    OutputStream out = mSocket.getOutputStream();
+                    out.write(createHandshake(secret, perMessageDeflate).getBytes("ISO-8859-1"));
                     out.flush();
 
-                    HybiParser.HappyDataInputStream stream = new HybiParser.HappyDataInputStream(mSocket.getInputStream());
-
-                    // Read HTTP response status line.
-                    StatusLine statusLine = parseStatusLine(readLine(stream));
-                    if (statusLine == null) {
-                        throw new HttpException("Received no reply from server.");
-                    } else if (statusLine.getStatusCode() != HttpStatus.SC_SWITCHING_PROTOCOLS) {
-                        throw new HttpResponseException(statusLine.getStatusCode(), statusLine.getReasonPhrase());
-                    }
-
-                    // Read HTTP response headers.
-                    String line;
-                    boolean validated = false;
-
-                    while (!TextUtils.isEmpty(line = readLine(stream))) {
-                        Header header = parseHeader(line);
-                        if (header.getName().equals("Sec-WebSocket-Accept")) {
-                            String expected = createSecretValidation(secret);
-                            String actual = header.getValue().trim();
-
-                            if (!expected.equals(actual)) {
-                                throw new HttpException("Bad Sec-WebSocket-Accept header value.");
-                            }
-
-                            validated = true;
+                    // Read the response in bulk, frames that arrived right behind it stay in the buffer.
+                    InputStream     in       = mSocket.getInputStream();
+                    HandshakeParser response = new HandshakeParser();
+                    byte[]          buffer   = new byte[4096];
+                    int             read;
+                    int             used;
+                    do {
+                        read = in.read(buffer);
+                        if (read == -1) {
+                            throw new HandshakeException("Received no reply from server.");
                         }
-                    }
-
-                    if (!validated) {
-                        throw new HttpException("No Sec-WebSocket-Accept header.");
-                    }
+                        used = response.parse(buffer, 0, read);
+                    } while (!response.isComplete());
 
-                    mListener.onConnect();
+                    deflate = checkHandshake(response, secret, perMessageDeflate);
+                    handshakeComplete(deflate, new ConnectTimings(
+                            micros(resolved - started),
+                            micros(connected - resolved),
+                            isSecure() ? micros(secured - connected) : -1,
+                            micros(System.nanoTime() - secured)));
 
                     // Now decode websocket frames.
-                    mParser.start(stream);
+                    mParser.start(in, buffer, used, read - used);
 
                 } catch (EOFException ex) {
                     Log.d(TAG, "WebSocket EOF!", ex);
-                    mListener.onDisconnect(0, "EOF");
+                    mDispatcher.onDisconnect(0, "EOF");
 
                 } catch (SSLException ex) {
                     // Connection reset by peer
                     Log.d(TAG, "Websocket SSL error!", ex);
-                    mListener.onDisconnect(0, "SSL");
+                    mDispatcher.onDisconnect(0, "SSL");
+
+                } catch (HybiParser.ProtocolError ex) {
+                    // Let the close frame the parser queued go out first.
+                    awaitFlush();
+                    mDispatcher.onError(ex);
 
                 } catch (Exception ex) {
-                    mListener.onError(ex);
+                    mDispatcher.onError(ex);
+
+                } finally {
+                    closeSocket();
+                    connectionClosed();
+                    if (deflate != null) {
+                        mParser.setDeflate(null);
+                        deflate.end();
+                    }
+                    postRetireHandler(Thread.currentThread());
                 }
             }
         });
         mThread.start();
     }
 
+    /**
+     * Connects to the first of the addresses that accepts. The options are set before connecting so that the
+     * buffer sizes can affect the TCP window.
+     */
+    private Socket openSocket(String host, InetAddress[] addresses, int port) throws IOException {
+        IOException failure = null;
+        for (InetAddress address : addresses) {
+            Socket socket = new Socket();
+            try {
+                configureSocket(socket);
+                socket.connect(new InetSocketAddress(address, port), mConnectTimeout);
+                return socket;
+            } catch (IOException e) {
+                failure = e;
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        DnsCache.invalidate(host);
+        throw failure;
+    }
+
+    void configureSocket(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(mTcpNoDelay);
+        socket.setSoTimeout(mReadTimeout);
+        if (mSendBufferSize > 0) {
+            socket.setSendBufferSize(mSendBufferSize);
+        }
+        if (mReceiveBufferSize > 0) {
+            socket.setReceiveBufferSize(mReceiveBufferSize);
+        }
+    }
+
+    int getConnectTimeout() {
+        return mConnectTimeout;
+    }
+
+    static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * Returns the HTTP upgrade request, including the blank line that ends it.
+     */
+    String createHandshake(String secret, PerMessageDeflate perMessageDeflate) throws URISyntaxException {
+        String path = TextUtils.isEmpty(mURI.getPath()) ? "/" : mURI.getPath();
+        if (!TextUtils.isEmpty(mURI.getQuery())) {
+            path += "?" + mURI.getQuery();
+        }
+
+        String originScheme = isSecure() ? "https" : "http";
+        URI origin = new URI(originScheme, "//" + mURI.getHost(), null);
+
+        StringBuilder request = new StringBuilder();
+        request.append("GET " + path + " HTTP/1.1\r\n");
+        request.append("Upgrade: websocket\r\n");
+        request.append("Connection: Upgrade\r\n");
+        request.append("Host: " + mURI.getHost() + "\r\n");
+        request.append("Origin: " + origin.toString() + "\r\n");
+        request.append("Sec-WebSocket-Key: " + secret + "\r\n");
+        request.append("Sec-WebSocket-Version: 13\r\n");
+        List<String> protocols = getOfferedProtocols();
+        if (!protocols.isEmpty()) {
+            request.append("Sec-WebSocket-Protocol: " + TextUtils.join(", ", protocols) + "\r\n");
+        }
+        if (perMessageDeflate != null) {
+            request.append("Sec-WebSocket-Extensions: " + perMessageDeflate.offer() + "\r\n");
+        }
+        for (String header : mExtraHeaders) {
+            request.append(header + "\r\n");
+        }
+        request.append("\r\n");
+        return request.toString();
+    }
+
+    /**
+     * Validates the handshake response and records the chosen subprotocol.
+     *
+     * @return the negotiated compression session, or null.
+     */
+    PerMessageDeflate.Session checkHandshake(HandshakeParser response, String secret,
+                                             PerMessageDeflate perMessageDeflate) throws IOException {
+        if (response.getStatusCode() != 101) {
+            throw new HandshakeException(response.getStatusCode(), response.getReason());
+        }
+        if (!"websocket".equalsIgnoreCase(response.getHeader("Upgrade"))) {
+            throw new HandshakeException("Bad Upgrade header value.");
+        }
+        if (!containsToken(response.getHeader("Connection"), "Upgrade")) {
+            throw new HandshakeException("Bad Connection header value.");
+        }
+
+        String accept = response.getHeader("Sec-WebSocket-Accept");
+        if (accept == null) {
+            throw new HandshakeException("No Sec-WebSocket-Accept header.");
+        }
+        if (!accept.equals(createSecretValidation(secret))) {
+            throw new HandshakeException("Bad Sec-WebSocket-Accept header value.");
+        }
+
+        String protocol = response.getHeader("Sec-WebSocket-Protocol");
+        if (protocol != null && !containsToken(TextUtils.join(",", getOfferedProtocols()), protocol)) {
+            throw new HandshakeException("Unexpected Sec-WebSocket-Protocol header.");
+        }
+        mProtocol = protocol;
+        mParser.setCodec(findCodec(protocol));
+
+        String extensions = response.getHeader("Sec-WebSocket-Extensions");
+        if (extensions != null) {
+            if (perMessageDeflate == null) {
+                throw new HandshakeException("Unexpected Sec-WebSocket-Extensions header.");
+            }
+            return perMessageDeflate.accept(extensions);
+        }
+        return null;
+    }
+
+    private List<String> getOfferedProtocols() {
+        List<String> protocols = new ArrayList<String>();
+        if (mProtocols != null) {
+            protocols.addAll(Arrays.asList(mProtocols));
+        }
+        if (mCodecs != null) {
+            for (MessageCodec<?> codec : mCodecs) {
+                if (codec.getProtocol() != null && !protocols.contains(codec.getProtocol())) {
+                    protocols.add(codec.getProtocol());
+                }
+            }
+        }
+        return protocols;
+    }
+
+    /**
+     * Returns the codec for the subprotocol the server picked, and remembers it for sending.
+     */
+    private MessageCodec<?> findCodec(String protocol) {
+        MessageCodec<?>[] codecs = mCodecs;
+        if (codecs == null) {
+            return null;
+        }
+        for (MessageCodec<?> codec : codecs) {
+            if ((protocol == null) ? codec.getProtocol() == null : protocol.equalsIgnoreCase(codec.getProtocol())) {
+                mCodec = codec;
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether the comma separated list contains the token, ignoring case.
+     */
+    private static boolean containsToken(String list, String token) {
+        if (list == null) {
+            return false;
+        }
+        for (String item : list.split(",")) {
+            if (item.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void handshakeComplete(PerMessageDeflate.Session deflate, ConnectTimings timings) {
+        Log.d(TAG, "Connected to " + mURI.getHost() + ": " + timings);
+        mConnectTimings = timings;
+        mParser.connected(deflate);
+
+        synchronized (this) {
+            mReconnectAttempts = 0;
+        }
+        ReplayBuffer replay = mReplayBuffer;
+        if (replay != null) {
+            synchronized (replay) {
+                replay.sendTo(mParser);
+                mConnected = true;
+            }
+        } else {
+            mConnected = true;
+        }
+
+        mRoundTripStats.clear();
+        if (mKeepaliveInterval > 0) {
+            Keepalive keepalive = new Keepalive(this, mKeepaliveInterval, mKeepaliveMaxMissed);
+            mKeepalive = keepalive;
+            keepalive.start();
+        }
+
+        mDispatcher.onConnect();
+    }
+
+    /**
+     * Called once the connection is gone, whether or not the handshake completed.
+     */
+    void connectionClosed() {
+        mConnected = false;
+        mParser.connectionClosed();
+
+        Runnable hook = mClosedHook;
+        if (hook != null) {
+            hook.run();
+        }
+
+        Keepalive keepalive = mKeepalive;
+        if (keepalive != null) {
+            keepalive.stop();
+            mKeepalive = null;
+        }
+
+        scheduleReconnect();
+    }
+
+    private void scheduleReconnect() {
+        int  attempt;
+        long delay;
+        synchronized (this) {
+            ReconnectPolicy policy = mReconnectPolicy;
+            if (policy == null || mDisconnectRequested || mReconnect != null) {
+                return;
+            }
+            attempt = mReconnectAttempts + 1;
+            if (attempt > policy.getMaxAttempts()) {
+                Log.d(TAG, "Giving up after " + mReconnectAttempts + " reconnect attempts");
+                return;
+            }
+            mReconnectAttempts = attempt;
+
+            delay = policy.getDelay(attempt - 1);
+            Log.d(TAG, "Reconnecting in " + delay + "ms, attempt " + attempt);
+            mReconnect = SharedScheduler.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    reconnect();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        if (mListener instanceof ReconnectListener) {
+            mDispatcher.onReconnecting(attempt, delay);
+        }
+    }
+
+    private void reconnect() {
+        synchronized (this) {
+            if (mDisconnectRequested || mReconnect == null) {
+                return;
+            }
+            mReconnect = null;
+        }
+
+        // The previous connection's reader thread schedules this as its last act, let it finish.
+        Thread thread = mThread;
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        if (!mDisconnectRequested) {
+            connect();
+        }
+    }
+
+    void dataReceived() {
+        Keepalive keepalive = mKeepalive;
+        if (keepalive != null) {
+            keepalive.received();
+        }
+    }
+
+    void pongReceived(byte[] payload, int offset, int length) {
+        Keepalive keepalive = mKeepalive;
+        long      micros    = (keepalive != null) ? keepalive.pongReceived(payload, offset, length) : -1;
+        if (micros < 0) {
+            Log.d(TAG, "Got unsolicited pong");
+            return;
+        }
+        mRoundTripStats.add(micros);
+        if (mListener instanceof PongListener) {
+            mDispatcher.onPong(micros, mRoundTripStats);
+        }
+    }
+
+    void keepaliveFailed(IOException error) {
+        Log.d(TAG, "Keepalive failed", error);
+        mDispatcher.onError(error);
+        closeConnection();
+    }
+
+    /**
+     * Fails the connection over a listener that threw on the dispatch executor, as it fails when a listener
+     * called inline throws. Callbacks that run after the connection is gone have nothing left to fail.
+     */
+    void listenerFailed(RuntimeException error) {
+        Log.e(TAG, "Listener failed", error);
+        if (mConnected) {
+            mDispatcher.onError(error);
+            closeConnection();
+        }
+    }
+
+    /**
+     * Closes the connection. No reconnect follows, other than through {@link #connect()}.
+     */
     public void disconnect() {
-        if (mSocket != null) {
-            mHandler.post(new Runnable() {
+        synchronized (this) {
+            mDisconnectRequested = true;
+            if (mReconnect != null) {
+                mReconnect.cancel(false);
+                mReconnect = null;
+            }
+        }
+        closeConnection();
+    }
+
+    private void closeConnection() {
+        WebSocketEngine.Connection connection = mConnection;
+        if (connection != null) {
+            connection.close();
+        } else if (mSocket != null && mThread != null && mThread.isAlive()) {
+            getHandler().post(new Runnable() {
                 @Override
                 public void run() {
                     try {
@@ -165,53 +938,214 @@ public class WebSocketClient {
                         mSocket = null;
                     } catch (IOException ex) {
                         Log.d(TAG, "Error while disconnecting", ex);
-                        mListener.onError(ex);
+                        mDispatcher.onError(ex);
                     }
+                    retireHandler(null);
                 }
             });
         }
     }
 
     public void send(String data) {
-        sendFrame(mParser.frame(data));
+        if (!holdForReplay(data)) {
+            mParser.send(data);
+        }
     }
 
     public void send(byte[] data) {
-        sendFrame(mParser.frame(data));
+        if (!holdForReplay(data)) {
+            mParser.send(data);
+        }
     }
 
-    private StatusLine parseStatusLine(String line) {
-        if (TextUtils.isEmpty(line)) {
-            return null;
+    /**
+     * Sends a message, with {@link Priority#HIGH} ahead of the normal messages that are still queued. Only whole
+     * messages are overtaken, so a message that has started to go out, or is being streamed with
+     * {@link #openStream(boolean)}, is finished first. Messages held for replay lose their priority.
+     */
+    public void send(String data, Priority priority) {
+        if (!holdForReplay(data)) {
+            mParser.send(data, priority == Priority.HIGH ? FrameQueue.FLAG_HIGH : 0);
         }
-        return BasicLineParser.parseStatusLine(line, new BasicLineParser());
     }
 
-    private Header parseHeader(String line) {
-        return BasicLineParser.parseHeader(line, new BasicLineParser());
+    public void send(byte[] data, Priority priority) {
+        if (!holdForReplay(data)) {
+            mParser.send(data, priority == Priority.HIGH ? FrameQueue.FLAG_HIGH : 0);
+        }
     }
 
-    // Can't use BufferedReader because it buffers past the HTTP data.
-    private String readLine(HybiParser.HappyDataInputStream reader) throws IOException {
-        int readChar = reader.read();
-        if (readChar == -1) {
-            return null;
+    /**
+     * Encodes a message with the codec the server picked, see {@link #setCodecs(MessageCodec[])}, and sends it.
+     * While disconnected, the codec of the last connection is used.
+     *
+     * @throws IllegalStateException if no codec was picked yet.
+     */
+    @SuppressWarnings("unchecked")
+    public void sendMessage(Object message) {
+        MessageCodec<Object> codec = (MessageCodec<Object>) mCodec;
+        if (codec == null) {
+            throw new IllegalStateException("No codec was negotiated");
+        }
+        if (mReplayBuffer == null || mConnected || !holdForReplay(new ReplayBuffer.CodecMessage(codec, message))) {
+            mParser.send(codec, message);
+        }
+    }
+
+    /**
+     * Sends a binary message made of a header and a slice of data without copying them first, for layers on top of
+     * the client such as {@link Multiplexer}. Never held for replay.
+     */
+    void send(byte[] header, byte[] data, int offset, int length) {
+        mParser.send(header, data, offset, length);
+    }
+
+    /**
+     * Puts a message sent while disconnected into the replay buffer, if there is one.
+     *
+     * @return whether the message was taken.
+     */
+    private boolean holdForReplay(Object message) {
+        ReplayBuffer replay = mReplayBuffer;
+        if (replay == null || mConnected) {
+            return false;
         }
-        StringBuilder string = new StringBuilder("");
-        while (readChar != '\n') {
-            if (readChar != '\r') {
-                string.append((char) readChar);
+        synchronized (replay) {
+            if (mConnected) {
+                return false;
             }
+            replay.add((message instanceof byte[]) ? ((byte[]) message).clone() : message);
+            return true;
+        }
+    }
 
-            readChar = reader.read();
-            if (readChar == -1) {
-                return null;
+    /**
+     * Starts a message whose payload is sent as it is written, in fragments, so that it never has to be held in
+     * memory as a whole. {@code flush()} sends what has been written so far and {@code close()} ends the message.
+     * Text messages are written as UTF-8. Other messages wait until the stream is closed, so always close it.
+     * Streamed messages are not compressed.
+     */
+    public OutputStream openStream(boolean binary) {
+        return mParser.openStream(binary);
+    }
+
+    /**
+     * Sends the rest of {@code in} as a single message, see {@link #openStream(boolean)}. The message is ended even
+     * if reading fails.
+     */
+    public void send(InputStream in, boolean binary) throws IOException {
+        OutputStream out = openStream(binary);
+        try {
+            byte[] buffer = new byte[16 * 1024];
+            int    read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
             }
+        } finally {
+            out.close();
         }
-        return string.toString();
     }
 
-    private String createSecret() {
+    BufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    HybiParser getParser() {
+        return mParser;
+    }
+
+    private boolean isSecure() {
+        return mURI.getScheme().equals("wss");
+    }
+
+    private int getPort() {
+        return (mURI.getPort() != -1) ? mURI.getPort() : (isSecure() ? 443 : 80);
+    }
+
+    /**
+     * Waits up to a second for the writer to empty the send buffer.
+     */
+    private void awaitFlush() {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        synchronized (mQueue) {
+            try {
+                while (queuedFrames() + mInFlightFrames > 0) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(mQueue, remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // The reader thread is done with the socket, release it unless disconnect() already did.
+    private void closeSocket() {
+        synchronized (mSendLock) {
+            Socket socket = mSocket;
+            if (socket == null) {
+                return;
+            }
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                Log.d(TAG, "Error while closing socket", ex);
+            }
+        }
+    }
+
+    private synchronized Handler getHandler() {
+        if (mHandler == null) {
+            mHandlerThread = new HandlerThread("websocket-thread");
+            mHandlerThread.start();
+            mHandler = new Handler(mHandlerThread.getLooper());
+        }
+        return mHandler;
+    }
+
+    private synchronized void postRetireHandler(final Thread reader) {
+        if (mHandler != null) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    retireHandler(reader);
+                }
+            });
+        }
+    }
+
+    /**
+     * Quits the writer thread once the reader is gone and nothing is left to drain, so that a client that is done
+     * holds no threads. Only called on the writer thread; the next frame or connection starts a new one.
+     *
+     * @param reader the reader thread that just finished, or null.
+     */
+    private void retireHandler(Thread reader) {
+        HandlerThread handlerThread;
+        synchronized (this) {
+            Thread current = mThread;
+            if (current != null && current != reader && current.isAlive()) {
+                return;
+            }
+            synchronized (mQueue) {
+                if (mDrainScheduled) {
+                    // The drain retires the thread when it's done.
+                    return;
+                }
+            }
+            handlerThread  = mHandlerThread;
+            mHandler       = null;
+            mHandlerThread = null;
+        }
+        if (handlerThread != null) {
+            handlerThread.quit();
+        }
+    }
+
+    String createSecret() {
         byte[] nonce = new byte[16];
         for (int i = 0; i < 16; i++) {
             nonce[i] = (byte) (Math.random() * 256);
@@ -229,24 +1163,331 @@ public class WebSocketClient {
         }
     }
 
-    void sendFrame(final byte[] frame) {
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    synchronized (mSendLock) {
-                        if (mSocket == null) {
-                            throw new IllegalStateException("Socket not connected");
-                        }
-                        OutputStream outputStream = mSocket.getOutputStream();
-                        outputStream.write(frame);
-                        outputStream.flush();
+    void sendFrame(byte[] frame) {
+        sendFrame(frame, frame.length, 0);
+    }
+
+    /**
+     * Queues an encoded frame for writing. Frames queued close together are written with a single flush by the
+     * websocket thread.
+     *
+     * @param flags {@link FrameQueue} flags for the frame.
+     */
+    void sendFrame(byte[] frame, int length, int flags) {
+        // Once queued, a pooled frame may be written, released and reused before we get to the metrics.
+        int     opcode    = frame[0] & 0x0F;
+        boolean post      = false;
+        boolean immediate = false;
+        boolean high      = false;
+        long    buffered;
+        int     delay;
+
+        synchronized (mQueue) {
+            if ((flags & FrameQueue.FLAG_CONTROL) == 0 && !makeRoom(length)) {
+                if ((flags & FrameQueue.FLAG_POOLED) != 0) {
+                    mBufferPool.release(frame);
+                }
+                throw new SendBufferFullException(queuedBytes() + mInFlightBytes);
+            }
+
+            if ((flags & FrameQueue.FLAG_URGENT) != 0) {
+                mUrgentQueue.add(frame, length, flags);
+            } else if ((flags & FrameQueue.FLAG_HIGH) != 0) {
+                mHighQueue.add(frame, length, flags);
+            } else {
+                mQueue.add(frame, length, flags);
+            }
+
+            buffered = queuedBytes() + mInFlightBytes;
+            if (!mAboveHighWatermark && buffered > mHighWatermark) {
+                mAboveHighWatermark = true;
+                high = true;
+            }
+
+            delay = (mConnection != null) ? 0 : mMaxBatchDelay;
+            if (!mDrainScheduled) {
+                mDrainScheduled = true;
+                mDrainDelayed   = delay > 0;
+                post            = true;
+            } else if (mDrainDelayed && ((flags & FrameQueue.FLAG_URGENT) != 0 || queuedBytes() >= mMaxBatchSize)) {
+                // A full batch or a pong is waiting, don't hold it back for the rest of the delay.
+                mDrainDelayed = false;
+                post          = true;
+                immediate     = true;
+            }
+        }
+
+        if (post) {
+            WebSocketEngine.Connection connection = mConnection;
+            if (connection != null) {
+                connection.wakeup();
+            } else if (delay > 0 && !immediate) {
+                getHandler().postDelayed(mDrain, delay);
+            } else {
+                getHandler().post(mDrain);
+            }
+        }
+
+        mMetrics.frameQueued(opcode, length, buffered);
+
+        if (high && mListener instanceof FlowControlListener) {
+            ((FlowControlListener) mListener).onBufferedAmountHigh(buffered);
+        }
+    }
+
+    /**
+     * Applies the overflow policy until a frame of {@code length} bytes fits. Must hold mQueue.
+     *
+     * @return false if the frame should be rejected.
+     */
+    private boolean makeRoom(int length) {
+        while (isFull(length)) {
+            switch (mOverflowPolicy) {
+                case FAIL_FAST:
+                    return false;
+
+                case DROP_OLDEST:
+                    int keep = FrameQueue.FLAG_CONTROL | FrameQueue.FLAG_FRAGMENT;
+                    if (mQueue.removeOldest(keep, mBufferPool) < 0 && mHighQueue.removeOldest(keep, mBufferPool) < 0) {
+                        return true;
+                    }
+                    break;
+
+                case BLOCK:
+                    if (Thread.currentThread() == mWriterThread || WebSocketEngine.isEngineThread()) {
+                        // Waiting here would keep the queue from ever draining.
+                        return true;
                     }
+                    try {
+                        mQueue.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return true;
+                    }
+                    break;
+            }
+        }
+        return true;
+    }
+
+    private boolean isFull(int length) {
+        int frames = queuedFrames() + mInFlightFrames;
+        if (frames == 0) {
+            // Always accept a frame into an empty buffer, however large.
+            return false;
+        }
+        long bytes = queuedBytes() + mInFlightBytes;
+        return bytes + length > mMaxBufferedBytes || frames + 1 > mMaxBufferedFrames;
+    }
+
+    // Must hold mQueue.
+    private int queuedFrames() {
+        return mQueue.size() + mUrgentQueue.size() + mHighQueue.size();
+    }
+
+    // Must hold mQueue. The fragments already cut from a frame are in flight or written.
+    private long queuedBytes() {
+        return mQueue.bytes() + mUrgentQueue.bytes() + mHighQueue.bytes() - mFragmentOffset;
+    }
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            mWriterThread = Thread.currentThread();
+
+            boolean more = takeBatch();
+
+            if (!mBatch.isEmpty()) {
+                try {
+                    writeBatch();
                 } catch (IOException e) {
-                    mListener.onError(e);
+                    mDispatcher.onError(e);
+                } catch (IllegalStateException e) {
+                    mDispatcher.onError(e);
                 }
             }
-        });
+
+            finishBatch();
+
+            if (more) {
+                getHandler().post(this);
+            } else {
+                retireHandler(null);
+            }
+        }
+    };
+
+    /**
+     * Moves up to a batch worth of queued frames to {@link #getBatch()}, where they count as in flight until
+     * {@link #finishBatch()}. Only called by whoever writes to the socket. Pings and pongs go first, then the rest
+     * of a message that has started to go out, then high priority messages and then the others.
+     *
+     * @return whether frames are left that can be written now.
+     */
+    boolean takeBatch() {
+        synchronized (mQueue) {
+            long moved = 0;
+            while (moved == 0 || moved < mMaxBatchSize) {
+                if (!mUrgentQueue.isEmpty()) {
+                    moved += mUrgentQueue.length(0);
+                    mBatch.add(mUrgentQueue.frame(0), mUrgentQueue.length(0), mUrgentQueue.flags(0));
+                    mUrgentQueue.removeFirst();
+                    continue;
+                }
+                FrameQueue lane = nextDataLane();
+                if (lane == null) {
+                    break;
+                }
+                moved += takeFrame(lane);
+            }
+            mInFlightBytes  = mBatch.bytes();
+            mInFlightFrames = mBatch.size();
+            mDrainDelayed   = false;
+            boolean more = !mUrgentQueue.isEmpty() || nextDataLane() != null;
+            if (!more) {
+                mDrainScheduled = false;
+            }
+            return more;
+        }
+    }
+
+    // The lane to take the next data frame from, or null if none may be written now. Must hold mQueue.
+    private FrameQueue nextDataLane() {
+        if (mOpenLane != null) {
+            // Nothing else goes until the message is done, even while a stream has no fragment ready.
+            return mOpenLane.isEmpty() ? null : mOpenLane;
+        }
+        if (!mHighQueue.isEmpty()) {
+            return mHighQueue;
+        }
+        return mQueue.isEmpty() ? null : mQueue;
+    }
+
+    /**
+     * Moves the first frame of a lane to the batch, or only its next fragment if its payload is over the maximum
+     * fragment size. Must hold mQueue.
+     *
+     * @return the number of bytes added to the batch.
+     */
+    private int takeFrame(FrameQueue lane) {
+        byte[]  frame   = lane.frame(0);
+        int     flags   = lane.flags(0);
+        boolean data    = HybiParser.isDataFrame(frame);
+        int     payload = HybiParser.payloadLength(frame);
+        int     max     = (mMaxFragmentSize > 0) ? mMaxFragmentSize : Integer.MAX_VALUE;
+
+        if (mFragmentOffset == 0 && (!data || payload <= max)) {
+            int length = lane.length(0);
+            mBatch.add(frame, length, flags);
+            lane.removeFirst();
+            if (data) {
+                mOpenLane = HybiParser.isFinalFrame(frame) ? null : lane;
+            }
+            return length;
+        }
+
+        int    count    = Math.min(max, payload - mFragmentOffset);
+        byte[] fragment = mBufferPool.acquire(mParser.frameSize(count));
+        int    length   = mParser.fragment(frame, mFragmentOffset, count, fragment);
+        mBatch.add(fragment, length, FrameQueue.FLAG_POOLED | FrameQueue.FLAG_FRAGMENT);
+
+        mFragmentOffset += count;
+        if (mFragmentOffset < payload) {
+            // Dropping the rest would corrupt the message.
+            lane.setFlags(0, flags | FrameQueue.FLAG_FRAGMENT);
+            mOpenLane = lane;
+        } else {
+            mFragmentOffset = 0;
+            lane.removeFirst();
+            if ((flags & FrameQueue.FLAG_POOLED) != 0) {
+                mBufferPool.release(frame);
+            }
+            mOpenLane = HybiParser.isFinalFrame(frame) ? null : lane;
+        }
+        return length;
+    }
+
+    /**
+     * Forgets the message that was being written when the last connection ended. The rest of a frame that was cut
+     * into fragments is dropped, since a new connection can't continue it.
+     */
+    private void dropPartialFrame() {
+        synchronized (mQueue) {
+            if (mFragmentOffset > 0) {
+                if ((mOpenLane.flags(0) & FrameQueue.FLAG_POOLED) != 0) {
+                    mBufferPool.release(mOpenLane.frame(0));
+                }
+                mOpenLane.removeFirst();
+            }
+            mOpenLane       = null;
+            mFragmentOffset = 0;
+        }
+    }
+
+    FrameQueue getBatch() {
+        return mBatch;
+    }
+
+    /**
+     * Releases the batch once it has been written or failed, waking blocked senders.
+     */
+    void finishBatch() {
+        mBatch.clear(mBufferPool);
+
+        boolean low = false;
+        long    buffered;
+        synchronized (mQueue) {
+            mInFlightBytes  = 0;
+            mInFlightFrames = 0;
+            buffered = queuedBytes();
+            if (mAboveHighWatermark && buffered <= mLowWatermark) {
+                mAboveHighWatermark = false;
+                low = true;
+            }
+            mQueue.notifyAll();
+        }
+
+        if (low && mListener instanceof FlowControlListener) {
+            ((FlowControlListener) mListener).onBufferedAmountLow(buffered);
+        }
+    }
+
+    /**
+     * Copies the batch into one buffer so that it goes out in as few writes as possible, then flushes once.
+     */
+    private void writeBatch() throws IOException {
+        synchronized (mSendLock) {
+            if (mSocket == null) {
+                throw new IllegalStateException("Socket not connected");
+            }
+            OutputStream outputStream = mSocket.getOutputStream();
+
+            if (mWriteBuffer == null) {
+                mWriteBuffer = new byte[MAX_WRITE_BUFFER_SIZE];
+            }
+            byte[] buffer   = mWriteBuffer;
+            int    buffered = 0;
+
+            for (int i = 0; i < mBatch.size(); i++) {
+                byte[] frame  = mBatch.frame(i);
+                int    length = mBatch.length(i);
+                if (length > buffer.length - buffered && buffered > 0) {
+                    outputStream.write(buffer, 0, buffered);
+                    buffered = 0;
+                }
+                if (length >= buffer.length) {
+                    outputStream.write(frame, 0, length);
+                } else {
+                    System.arraycopy(frame, 0, buffer, buffered, length);
+                    buffered += length;
+                }
+            }
+            if (buffered > 0) {
+                outputStream.write(buffer, 0, buffered);
+            }
+            outputStream.flush();
+        }
+        mMetrics.batchWritten(mBatch.size(), mBatch.bytes());
     }
 
     public interface Listener {
@@ -257,9 +1498,123 @@ public class WebSocketClient {
         public void onError(Exception error);
     }
 
-    private SSLSocketFactory getSSLSocketFactory() throws NoSuchAlgorithmException, KeyManagementException {
-        SSLContext context = SSLContext.getInstance("TLS");
-        context.init(null, sTrustManagers, null);
-        return context.getSocketFactory();
+    /**
+     * Opt-in variant of {@link Listener} that receives binary messages as a read-only view over the parser's
+     * internal storage instead of a freshly allocated array. The message is the data between the buffer's position
+     * and limit. The buffer is reused once the callback returns, copy anything that needs to outlive it.
+     */
+    public interface ByteBufferListener extends Listener {
+        public void onMessage(ByteBuffer data);
+    }
+
+    /**
+     * Opt-in variant of {@link Listener} that receives text and binary messages piece by piece as they arrive,
+     * instead of through {@code onMessage()} once complete. Each chunk is a read-only view that is reused once the
+     * callback returns. Text arrives as UTF-8 bytes and a chunk may end in the middle of a character.
+     */
+    public interface StreamingListener extends Listener {
+        public void onMessageStart(boolean binary);
+        public void onMessageChunk(ByteBuffer chunk);
+        public void onMessageEnd();
+    }
+
+    /**
+     * Opt-in variant of {@link Listener} that receives messages larger than the spill threshold as a file, see
+     * {@link #setSpillDirectory(File, int, long)}. The channel is positioned at the start of the message; map it
+     * to read it as a {@link java.nio.MappedByteBuffer}. The file has already been deleted, it
+     * takes up space until the channel is closed, which the listener must do.
+     */
+    public interface SpillListener extends Listener {
+        public void onMessage(FileChannel message, boolean binary);
+    }
+
+    /**
+     * Opt-in variant of {@link Listener} that receives data messages as objects decoded by a {@link MessageCodec},
+     * see {@link #setCodecs(MessageCodec[])}.
+     */
+    public interface CodecListener<T> extends Listener {
+        public void onDecoded(T message);
+    }
+
+    /**
+     * Opt-in variant of {@link Listener} that is told about each answered keepalive ping, see
+     * {@link #setKeepalive(long, int)}.
+     */
+    public interface PongListener extends Listener {
+        public void onPong(long roundTripMicros, RoundTripStats stats);
+    }
+
+    /**
+     * Opt-in variant of {@link Listener} that is told when a reconnect has been scheduled, see
+     * {@link #setReconnectPolicy(ReconnectPolicy)}. Called on the thread that noticed the connection was lost.
+     */
+    public interface ReconnectListener extends Listener {
+        public void onReconnecting(int attempt, long delayMillis);
+    }
+
+    /**
+     * Opt-in variant of {@link Listener} that is told when the send buffer fills up and drains, so that producers
+     * can throttle. See {@link #setBufferedAmountWatermarks(long, long)}.
+     */
+    public interface FlowControlListener extends Listener {
+        /** The buffered amount rose above the high watermark. Called on the sending thread. */
+        public void onBufferedAmountHigh(long bufferedAmount);
+        /** The buffered amount fell back to the low watermark. Called on the websocket thread. */
+        public void onBufferedAmountLow(long bufferedAmount);
+    }
+
+    /**
+     * Thrown when the server's response to the upgrade request isn't a valid websocket handshake.
+     */
+    public static class HandshakeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int mStatusCode;
+
+        public HandshakeException(String message) {
+            super(message);
+            mStatusCode = 0;
+        }
+
+        public HandshakeException(int statusCode, String reasonPhrase) {
+            super("Unexpected response: " + statusCode + " " + reasonPhrase);
+            mStatusCode = statusCode;
+        }
+
+        /**
+         * Returns the HTTP status code if the server refused the upgrade, otherwise 0.
+         */
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+    }
+
+    /**
+     * Thrown by {@code send()} when the send buffer is full and the overflow policy is
+     * {@link OverflowPolicy#FAIL_FAST}.
+     */
+    public static class SendBufferFullException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        public SendBufferFullException(long bufferedAmount) {
+            super("Send buffer full, " + bufferedAmount + " bytes buffered");
+        }
+    }
+
+    private SSLContext getSSLContext() throws NoSuchAlgorithmException, KeyManagementException {
+        SSLContext context = (mFactory != null) ? mFactory.getSSLContext() : null;
+        return (context != null) ? context : getDefaultSSLContext();
+    }
+
+    /**
+     * Returns the context shared by all clients, so that TLS sessions are resumed across connections.
+     */
+    private static synchronized SSLContext getDefaultSSLContext() throws NoSuchAlgorithmException, KeyManagementException {
+        if (sSSLContext == null) {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, sTrustManagers, null);
+            sSSLContext = context;
+        }
+        return sSSLContext;
     }
 }
@@ -0,0 +1,809 @@
+package com.codebutler.android_websockets;
+
+import android.util.Log;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many {@link WebSocketClient}s over non-blocking channels on a small, fixed number of selector threads,
+ * instead of two threads per client. Clients opt in with {@link WebSocketClient#setEngine(WebSocketEngine)}.
+ *
+ * Everything for a connection, including the listener callbacks, happens on the thread it was assigned to, so
+ * callbacks must return quickly or be moved with {@link WebSocketClient#setDispatchExecutor}. Host names that are
+ * not in the DNS cache are looked up on a thread of their own, so that a slow lookup doesn't hold up the others.
+ */
+public class WebSocketEngine {
+    private static final String TAG = "WebSocketEngine";
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private static final ByteBuffer[] NO_BUFFERS = new ByteBuffer[0];
+
+    private static final ThreadLocal<Loop> sCurrentLoop = new ThreadLocal<Loop>();
+
+    private final Loop[]        mLoops;
+    private final AtomicInteger mNextLoop = new AtomicInteger();
+
+    /**
+     * Starts {@code threads} selector threads.
+     */
+    public WebSocketEngine(int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Need at least one thread");
+        }
+        mLoops = new Loop[threads];
+        for (int i = 0; i < threads; i++) {
+            mLoops[i] = new Loop("websocket-engine-" + i);
+        }
+    }
+
+    /**
+     * Closes every connection and stops the threads. Clients that are still open see a disconnect.
+     */
+    public void shutdown() {
+        for (Loop loop : mLoops) {
+            loop.shutdown();
+        }
+    }
+
+    /**
+     * Returns whether the calling thread is a selector thread of any engine.
+     */
+    static boolean isEngineThread() {
+        return sCurrentLoop.get() != null;
+    }
+
+    Connection connect(WebSocketClient client, String host, int port, SSLEngine sslEngine,
+                       PerMessageDeflate perMessageDeflate) {
+        Loop       loop       = mLoops[(mNextLoop.getAndIncrement() & Integer.MAX_VALUE) % mLoops.length];
+        Connection connection = new Connection(loop, client, host, port, sslEngine, perMessageDeflate);
+        // Frames the client queues must find the connection, even if the handshake completes before we return.
+        client.setConnection(connection);
+        loop.execute(connection.mConnectTask);
+        return connection;
+    }
+
+    /**
+     * One selector thread and the connections registered with it.
+     */
+    private static class Loop implements Runnable {
+        private final Selector                        mSelector;
+        private final ConcurrentLinkedQueue<Connection.Task> mTasks = new ConcurrentLinkedQueue<Connection.Task>();
+        private final Thread                                 mThread;
+
+        private volatile boolean mShutdown;
+
+        Loop(String name) throws IOException {
+            mSelector = Selector.open();
+            mThread   = new Thread(this, name);
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+
+        /**
+         * Runs the task on this loop's thread. Tasks run in order, never inline.
+         */
+        void execute(Connection.Task task) {
+            mTasks.add(task);
+            mSelector.wakeup();
+        }
+
+        void shutdown() {
+            mShutdown = true;
+            mSelector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            sCurrentLoop.set(this);
+            try {
+                while (!mShutdown) {
+                    mSelector.select();
+
+                    Connection.Task task;
+                    while ((task = mTasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            task.getConnection().listenerFailed(e);
+                        }
+                    }
+
+                    Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid()) {
+                            Connection connection = (Connection) key.attachment();
+                            try {
+                                connection.process();
+                            } catch (RuntimeException e) {
+                                connection.listenerFailed(e);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Log.d(TAG, "Selector failed", e);
+            } catch (ClosedSelectorException e) {
+                Log.d(TAG, "Selector closed", e);
+            } finally {
+                List<Connection> connections = new ArrayList<Connection>();
+                for (SelectionKey key : mSelector.keys()) {
+                    connections.add((Connection) key.attachment());
+                }
+                for (Connection connection : connections) {
+                    try {
+                        connection.close(new EOFException("Engine shut down"));
+                    } catch (RuntimeException e) {
+                        connection.listenerFailed(e);
+                    }
+                }
+                try {
+                    mSelector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * A single client's socket. All methods other than {@link #wakeup()}, {@link #close()} and {@link #isOpen()}
+     * run on the loop thread.
+     */
+    static class Connection {
+        private static final int STATE_CONNECTING = 0;
+        private static final int STATE_HANDSHAKE  = 1;
+        private static final int STATE_OPEN       = 2;
+        private static final int STATE_CLOSED     = 3;
+
+        private final Loop              mLoop;
+        private final WebSocketClient   mClient;
+        private final String            mHost;
+        private final int               mPort;
+        private final PerMessageDeflate mPerMessageDeflate;
+        private final Transport         mTransport;
+
+        private SocketChannel             mChannel;
+        private SelectionKey              mKey;
+        private volatile int              mState = STATE_CONNECTING;
+        private String                    mSecret;
+        private ByteBuffer                mRequest;
+        private PerMessageDeflate.Session mDeflate;
+        private ScheduledFuture<?>        mConnectTimeout;
+
+        // The host's addresses, tried in turn until one accepts.
+        private InetAddress[] mAddresses;
+        private int           mNextAddress;
+
+        // When each phase of the setup ended, from System.nanoTime().
+        private long mStarted;
+        private long mResolved;
+        private long mConnected;
+        private long mRequestWritten;
+
+        // Plain text read from the socket, in write mode.
+        private ByteBuffer      mInput;
+        private HandshakeParser mResponse;
+
+        // The batch being written, one buffer per frame.
+        private ByteBuffer[] mPending = NO_BUFFERS;
+        private int          mPendingIndex;
+        private int          mPendingCount;
+
+        Connection(Loop loop, WebSocketClient client, String host, int port, SSLEngine sslEngine,
+                   PerMessageDeflate perMessageDeflate) {
+            mLoop              = loop;
+            mClient            = client;
+            mHost              = host;
+            mPort              = port;
+            mPerMessageDeflate = perMessageDeflate;
+            mTransport         = (sslEngine != null) ? new TlsTransport(sslEngine) : new Transport();
+        }
+
+        private final Task mConnectTask = new Task() {
+            @Override
+            public void run() {
+                if (mState == STATE_CLOSED) {
+                    return;
+                }
+                mStarted = System.nanoTime();
+                InetAddress[] addresses = DnsCache.cached(mHost);
+                if (addresses != null) {
+                    connect(addresses);
+                } else {
+                    DnsCache.getResolver().execute(mResolveTask);
+                }
+            }
+        };
+
+        // Runs on a resolver thread and goes back to the loop with the result.
+        private final Runnable mResolveTask = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final InetAddress[] addresses = DnsCache.resolve(mHost);
+                    mLoop.execute(new Task() {
+                        @Override
+                        public void run() {
+                            connect(addresses);
+                        }
+                    });
+                } catch (final IOException e) {
+                    mLoop.execute(new Task() {
+                        @Override
+                        public void run() {
+                            close(e);
+                        }
+                    });
+                }
+            }
+        };
+
+        private final Task mProcessTask = new Task() {
+            @Override
+            public void run() {
+                process();
+            }
+        };
+
+        private final Task mCloseTask = new Task() {
+            @Override
+            public void run() {
+                close(new EOFException());
+            }
+        };
+
+        boolean isOpen() {
+            return mState != STATE_CLOSED;
+        }
+
+        /**
+         * Fails this connection alone when its listener throws out of a callback made on the loop, so that the loop
+         * and the other connections on it carry on.
+         */
+        void listenerFailed(RuntimeException error) {
+            Log.e(TAG, "Listener failed", error);
+            if (mState != STATE_CLOSED) {
+                try {
+                    close(error);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Listener failed", e);
+                }
+            }
+        }
+
+        private void connect(InetAddress[] addresses) {
+            if (mState == STATE_CLOSED) {
+                return;
+            }
+            try {
+                mResolved  = System.nanoTime();
+                mAddresses = addresses;
+
+                mSecret   = mClient.createSecret();
+                mRequest  = ByteBuffer.wrap(mClient.createHandshake(mSecret, mPerMessageDeflate).getBytes("ISO-8859-1"));
+                mInput    = ByteBuffer.allocate(Math.max(READ_BUFFER_SIZE, mTransport.minReadSize()));
+                mResponse = new HandshakeParser();
+
+                connectNext(null);
+            } catch (Exception e) {
+                close(e);
+            }
+        }
+
+        /**
+         * Drops the attempt in progress, if any, and connects to the next address, with a connect timeout of its
+         * own like the client's threads do.
+         *
+         * @param failure why the previous attempt failed, thrown once there are no addresses left.
+         */
+        private void connectNext(IOException failure) throws IOException {
+            cancelConnectTimeout();
+            closeChannel();
+            if (mNextAddress == mAddresses.length) {
+                throw failure;
+            }
+            InetAddress address = mAddresses[mNextAddress++];
+
+            mChannel = SocketChannel.open();
+            mChannel.configureBlocking(false);
+            mClient.configureSocket(mChannel.socket());
+            mTransport.setChannel(mChannel);
+            mKey = mChannel.register(mLoop.mSelector, SelectionKey.OP_CONNECT, Connection.this);
+
+            int timeout = mClient.getConnectTimeout();
+            if (timeout > 0) {
+                final int attempt = mNextAddress;
+                mConnectTimeout = SharedScheduler.get().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        mLoop.execute(new Task() {
+                            @Override
+                            public void run() {
+                                connectTimedOut(attempt);
+                            }
+                        });
+                    }
+                }, timeout, TimeUnit.MILLISECONDS);
+            }
+            if (mChannel.connect(new InetSocketAddress(address, mPort))) {
+                process();
+            }
+        }
+
+        private void connectTimedOut(int attempt) {
+            if (mState != STATE_CONNECTING || mNextAddress != attempt) {
+                return;
+            }
+            try {
+                connectNext(new SocketTimeoutException("Connect timed out"));
+            } catch (Exception e) {
+                close(e);
+            }
+        }
+
+        private void closeChannel() {
+            if (mKey != null) {
+                mKey.cancel();
+                mKey = null;
+            }
+            if (mChannel != null) {
+                try {
+                    mChannel.close();
+                } catch (IOException e) {
+                    Log.d(TAG, "Error while closing", e);
+                }
+                mChannel = null;
+            }
+        }
+
+        /**
+         * Asks the loop to write whatever the client has queued.
+         */
+        void wakeup() {
+            mLoop.execute(mProcessTask);
+        }
+
+        void close() {
+            mLoop.execute(mCloseTask);
+        }
+
+        /**
+         * Makes as much progress as the socket allows, then waits for the events that allow more.
+         */
+        void process() {
+            try {
+                if (mState == STATE_CLOSED) {
+                    // Like writing to a closed socket, fail anything sent since.
+                    mClient.takeBatch();
+                    if (!mClient.getBatch().isEmpty()) {
+                        mClient.finishBatch();
+                        mClient.getDispatcher().onError(new IllegalStateException("Socket not connected"));
+                    }
+                    return;
+                }
+
+                if (mState == STATE_CONNECTING) {
+                    boolean connected;
+                    try {
+                        connected = mChannel != null && mChannel.finishConnect();
+                    } catch (IOException e) {
+                        connectNext(e);
+                        return;
+                    }
+                    if (!connected) {
+                        return;
+                    }
+                    mConnected = System.nanoTime();
+                    cancelConnectTimeout();
+                    mState = STATE_HANDSHAKE;
+                    mTransport.begin();
+                }
+
+                // Stop reading while the listener is behind, until the dispatcher wakes us up.
+                Dispatcher dispatcher = mClient.getDispatcher();
+                boolean    progress   = true;
+                while (progress && mState != STATE_CLOSED) {
+                    progress = write();
+                    if (!dispatcher.isBacklogged()) {
+                        progress |= read();
+                    }
+                }
+
+                if (mState != STATE_CLOSED) {
+                    int ops = dispatcher.isBacklogged() ? 0 : SelectionKey.OP_READ;
+                    if (mTransport.hasPendingOutput() || mRequest != null || mPendingIndex < mPendingCount) {
+                        ops |= SelectionKey.OP_WRITE;
+                    }
+                    mKey.interestOps(ops);
+                }
+            } catch (Exception e) {
+                close(e);
+            }
+        }
+
+        /**
+         * @return whether anything was written.
+         */
+        private boolean write() throws IOException {
+            if (mRequest != null) {
+                ByteBuffer[] request = { mRequest };
+                boolean progress = mTransport.write(request, 0, 1) > 0;
+                if (!mRequest.hasRemaining()) {
+                    // Over TLS the request can only go out once the TLS handshake is done.
+                    mRequest        = null;
+                    mRequestWritten = System.nanoTime();
+                }
+                return progress;
+            }
+            if (mState != STATE_OPEN) {
+                return mTransport.write(NO_BUFFERS, 0, 0) > 0;
+            }
+
+            boolean progress = false;
+            while (true) {
+                if (mPendingIndex == mPendingCount) {
+                    mClient.takeBatch();
+                    FrameQueue batch = mClient.getBatch();
+                    if (batch.isEmpty()) {
+                        mTransport.flush();
+                        return progress;
+                    }
+                    if (mPending.length < batch.size()) {
+                        mPending = new ByteBuffer[Math.max(batch.size(), mPending.length * 2)];
+                    }
+                    for (int i = 0; i < batch.size(); i++) {
+                        mPending[i] = ByteBuffer.wrap(batch.frame(i), 0, batch.length(i));
+                    }
+                    mPendingIndex = 0;
+                    mPendingCount = batch.size();
+                }
+
+                // One gathering write for the whole batch.
+                long written = mTransport.write(mPending, mPendingIndex, mPendingCount - mPendingIndex);
+                while (mPendingIndex < mPendingCount && !mPending[mPendingIndex].hasRemaining()) {
+                    mPending[mPendingIndex++] = null;
+                }
+                if (mPendingIndex < mPendingCount) {
+                    return progress || written > 0;
+                }
+
+                FrameQueue batch = mClient.getBatch();
+                mClient.getMetrics().batchWritten(batch.size(), batch.bytes());
+                mPendingIndex = 0;
+                mPendingCount = 0;
+                mClient.finishBatch();
+                progress = true;
+            }
+        }
+
+        /**
+         * @return whether anything was read.
+         */
+        private boolean read() throws Exception {
+            int read = mTransport.read(mInput);
+            if (read == -1) {
+                if (mState == STATE_HANDSHAKE) {
+                    throw new WebSocketClient.HandshakeException("Received no reply from server.");
+                }
+                throw new EOFException();
+            }
+            if (read == 0) {
+                return false;
+            }
+
+            if (mState == STATE_HANDSHAKE) {
+                readHandshake();
+            } else {
+                decode();
+            }
+            return true;
+        }
+
+        /**
+         * Collects the handshake response until the blank line that ends it, then hands anything after it to the
+         * parser.
+         */
+        private void readHandshake() throws Exception {
+            byte[] data  = mInput.array();
+            int    limit = mInput.position();
+            int    used  = mResponse.parse(data, 0, limit);
+            if (!mResponse.isComplete()) {
+                mInput.clear();
+                return;
+            }
+
+            // Frames sent right behind the response.
+            System.arraycopy(data, used, data, 0, limit - used);
+            mInput.position(limit - used);
+
+            mDeflate  = mClient.checkHandshake(mResponse, mSecret, mPerMessageDeflate);
+            mResponse = null;
+            mState    = STATE_OPEN;
+
+            boolean secure = mTransport instanceof TlsTransport;
+            mClient.handshakeComplete(mDeflate, new ConnectTimings(
+                    WebSocketClient.micros(mResolved - mStarted),
+                    WebSocketClient.micros(mConnected - mResolved),
+                    secure ? WebSocketClient.micros(mRequestWritten - mConnected) : -1,
+                    WebSocketClient.micros(System.nanoTime() - (secure ? mRequestWritten : mConnected))));
+            decode();
+        }
+
+        private void decode() throws IOException {
+            byte[] data     = mInput.array();
+            int    limit    = mInput.position();
+            int    consumed = mClient.getParser().decode(data, 0, limit);
+            if (consumed < limit) {
+                System.arraycopy(data, consumed, data, 0, limit - consumed);
+            }
+            mInput.position(limit - consumed);
+        }
+
+        /**
+         * Closes the socket and reports why to the listener, the same way a client with its own threads would.
+         */
+        void close(Exception reason) {
+            if (mState == STATE_CLOSED) {
+                return;
+            }
+            if (reason instanceof HybiParser.ProtocolError && mState == STATE_OPEN) {
+                // Try to get the close frame the parser queued out first.
+                try {
+                    write();
+                } catch (IOException ignored) {
+                }
+            }
+            if (mState == STATE_CONNECTING) {
+                DnsCache.invalidate(mHost);
+            }
+            mState = STATE_CLOSED;
+            cancelConnectTimeout();
+            closeChannel();
+
+            for (int i = mPendingIndex; i < mPendingCount; i++) {
+                mPending[i] = null;
+            }
+            if (mPendingCount > 0) {
+                mPendingIndex = 0;
+                mPendingCount = 0;
+                mClient.finishBatch();
+            }
+
+            if (mDeflate != null) {
+                mClient.getParser().setDeflate(null);
+                mDeflate.end();
+                mDeflate = null;
+            }
+
+            // The client learns the connection is gone even if the listener throws.
+            Dispatcher dispatcher = mClient.getDispatcher();
+            try {
+                if (reason instanceof EOFException) {
+                    Log.d(TAG, "WebSocket EOF!", reason);
+                    dispatcher.onDisconnect(0, "EOF");
+                } else if (reason instanceof SSLException) {
+                    Log.d(TAG, "Websocket SSL error!", reason);
+                    dispatcher.onDisconnect(0, "SSL");
+                } else {
+                    dispatcher.onError(reason);
+                }
+            } finally {
+                mClient.connectionClosed();
+            }
+        }
+
+        /**
+         * Work for this connection on the loop thread.
+         */
+        abstract class Task implements Runnable {
+            Connection getConnection() {
+                return Connection.this;
+            }
+        }
+
+        private void cancelConnectTimeout() {
+            if (mConnectTimeout != null) {
+                mConnectTimeout.cancel(false);
+                mConnectTimeout = null;
+            }
+        }
+    }
+
+    /**
+     * Moves plain bytes between the connection and its channel.
+     */
+    private static class Transport {
+        protected SocketChannel mChannel;
+
+        void setChannel(SocketChannel channel) {
+            mChannel = channel;
+        }
+
+        /** Called once the TCP connection is established. */
+        void begin() throws IOException {
+        }
+
+        /** Free space the read buffer must have for {@link #read(ByteBuffer)}. */
+        int minReadSize() {
+            return 0;
+        }
+
+        /**
+         * Reads into {@code dst}.
+         *
+         * @return the number of bytes read, or -1 at the end of the stream.
+         */
+        int read(ByteBuffer dst) throws IOException {
+            return mChannel.read(dst);
+        }
+
+        /**
+         * Writes as much of the buffers as the socket takes without blocking.
+         *
+         * @return the number of bytes taken from the buffers.
+         */
+        long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return (length == 0) ? 0 : mChannel.write(srcs, offset, length);
+        }
+
+        /**
+         * @return whether everything written so far has reached the socket.
+         */
+        boolean flush() throws IOException {
+            return true;
+        }
+
+        boolean hasPendingOutput() {
+            return false;
+        }
+    }
+
+    /**
+     * Runs the data through an {@link SSLEngine}. Delegated handshake tasks run inline on the loop thread.
+     */
+    private static class TlsTransport extends Transport {
+        private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+        private final SSLEngine  mEngine;
+        private final ByteBuffer mNetIn;
+        private final ByteBuffer mNetOut;
+
+        private boolean mEndOfStream;
+
+        TlsTransport(SSLEngine engine) {
+            mEngine = engine;
+            int packetSize = engine.getSession().getPacketBufferSize();
+            mNetIn  = ByteBuffer.allocate(packetSize);
+            mNetOut = ByteBuffer.allocate(packetSize);
+        }
+
+        @Override
+        void begin() throws IOException {
+            mEngine.beginHandshake();
+        }
+
+        @Override
+        int minReadSize() {
+            return mEngine.getSession().getApplicationBufferSize() + 64;
+        }
+
+        @Override
+        int read(ByteBuffer dst) throws IOException {
+            int produced = 0;
+            while (true) {
+                SSLEngineResult.HandshakeStatus status = mEngine.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                    continue;
+                }
+                if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    // The engine wants to answer before it reads on, let the write side do it.
+                    return produced;
+                }
+
+                mNetIn.flip();
+                SSLEngineResult result = mEngine.unwrap(mNetIn, dst);
+                mNetIn.compact();
+                produced += result.bytesProduced();
+
+                switch (result.getStatus()) {
+                    case BUFFER_UNDERFLOW:
+                        if (mEndOfStream || !mNetIn.hasRemaining()) {
+                            return (produced > 0 || !mEndOfStream) ? produced : -1;
+                        }
+                        int read = mChannel.read(mNetIn);
+                        if (read == -1) {
+                            mEndOfStream = true;
+                        } else if (read == 0) {
+                            return produced;
+                        }
+                        break;
+                    case BUFFER_OVERFLOW:
+                        return produced;
+                    case CLOSED:
+                        return (produced > 0) ? produced : -1;
+                    default:
+                        if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                                && mEngine.getHandshakeStatus() == status) {
+                            return produced;
+                        }
+                        break;
+                }
+            }
+        }
+
+        @Override
+        long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            long consumed = 0;
+            while (flush()) {
+                SSLEngineResult.HandshakeStatus status = mEngine.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                    continue;
+                }
+                if (status == SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
+                    return consumed;
+                }
+
+                SSLEngineResult result = (length == 0)
+                        ? mEngine.wrap(EMPTY, mNetOut)
+                        : mEngine.wrap(srcs, offset, length, mNetOut);
+                consumed += result.bytesConsumed();
+
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SSLException("SSLEngine closed");
+                }
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0
+                        && result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    return consumed;
+                }
+            }
+            return consumed;
+        }
+
+        @Override
+        boolean flush() throws IOException {
+            if (mNetOut.position() == 0) {
+                return true;
+            }
+            mNetOut.flip();
+            mChannel.write(mNetOut);
+            mNetOut.compact();
+            return mNetOut.position() == 0;
+        }
+
+        @Override
+        boolean hasPendingOutput() {
+            return mNetOut.position() > 0
+                    || mEngine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP;
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = mEngine.getDelegatedTask()) != null) {
+                task.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.codebutler.android_websockets;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import java.io.IOException;
+import java.net.URI;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Creates clients that share one {@link WebSocketEngine}, one {@link BufferPool} and one {@link SSLContext}, so
+ * that a client is only a small object and the number of threads stays the same however many are connected.
+ * Clients that are no longer referenced hold no threads and are simply collected. {@link #shutdown()} disconnects
+ * every client still around and stops the threads.
+ *
+ * <pre>
+ * WebSocketFactory factory = new WebSocketFactory(2);
+ * WebSocketClient  client  = factory.createClient(uri, listener);
+ * client.connect();
+ * </pre>
+ */
+public class WebSocketFactory {
+    private final WebSocketEngine      mEngine;
+    private final BufferPool           mBufferPool;
+    private final Set<WebSocketClient> mClients = Collections.newSetFromMap(new WeakHashMap<WebSocketClient, Boolean>());
+
+    private TrustManager[] mTrustManagers;
+    private SSLContext     mSSLContext;
+    private boolean        mShutdown;
+
+    /**
+     * Starts {@code threads} engine threads, with a buffer pool keeping up to 32 arrays per size class.
+     */
+    public WebSocketFactory(int threads) throws IOException {
+        this(threads, new BufferPool(32));
+    }
+
+    public WebSocketFactory(int threads, BufferPool bufferPool) throws IOException {
+        mEngine     = new WebSocketEngine(threads);
+        mBufferPool = bufferPool;
+    }
+
+    /**
+     * Trusts these managers for the {@code wss://} connections of this factory's clients only. By default they
+     * share the context of {@link WebSocketClient#setTrustManagers(TrustManager[])}.
+     */
+    public synchronized void setTrustManagers(TrustManager[] tm) {
+        mTrustManagers = tm;
+        mSSLContext    = null;
+    }
+
+    /**
+     * Returns a client that runs on this factory's engine. Everything else is set up as for a client of its own.
+     */
+    public synchronized WebSocketClient createClient(URI uri, WebSocketClient.Listener listener) {
+        if (mShutdown) {
+            throw new IllegalStateException("Factory is shut down");
+        }
+        WebSocketClient client = new WebSocketClient(uri, listener);
+        client.setFactory(this);
+        client.setEngine(mEngine);
+        mClients.add(client);
+        return client;
+    }
+
+    public WebSocketEngine getEngine() {
+        return mEngine;
+    }
+
+    public BufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    /**
+     * Disconnects every client created here that is still referenced, without reconnecting, and stops the engine.
+     * No more clients can be created.
+     */
+    public void shutdown() {
+        List<WebSocketClient> clients;
+        synchronized (this) {
+            if (mShutdown) {
+                return;
+            }
+            mShutdown = true;
+            clients   = new ArrayList<WebSocketClient>(mClients);
+            mClients.clear();
+        }
+        for (WebSocketClient client : clients) {
+            client.disconnect();
+        }
+        mEngine.shutdown();
+    }
+
+    /**
+     * Returns the context for this factory's clients, or null to use the one shared by all clients.
+     */
+    synchronized SSLContext getSSLContext() throws NoSuchAlgorithmException, KeyManagementException {
+        if (mTrustManagers == null) {
+            return null;
+        }
+        if (mSSLContext == null) {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, mTrustManagers, null);
+            mSSLContext = context;
+        }
+        return mSSLContext;
+    }
+}
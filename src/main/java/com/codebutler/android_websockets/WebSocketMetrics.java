@@ -0,0 +1,58 @@
+package com.codebutler.android_websockets;
+
+/**
+ * Receives measurements from a {@link WebSocketClient}, see {@link WebSocketClient#setMetrics(WebSocketMetrics)}.
+ * Every method does nothing here and subclasses override the ones they need. They are called on the sending and
+ * websocket threads in the middle of sending and decoding, so they must be cheap and must not block.
+ * {@link WebSocketStats} keeps counters and histograms of everything.
+ */
+public class WebSocketMetrics {
+    /**
+     * The default, which measures nothing. Timings are only taken when a client has other metrics.
+     */
+    public static final WebSocketMetrics NONE = new WebSocketMetrics();
+
+    /**
+     * A frame of {@code length} bytes, header included, was queued, leaving {@code bufferedAmount} bytes waiting
+     * to be written.
+     */
+    public void frameQueued(int opcode, int length, long bufferedAmount) {
+    }
+
+    /**
+     * A batch of frames was written to the socket.
+     */
+    public void batchWritten(int frames, long bytes) {
+    }
+
+    /**
+     * A frame of {@code length} bytes, header included, was received.
+     */
+    public void frameReceived(int opcode, long length) {
+    }
+
+    /**
+     * A text or binary message with a payload of {@code length} bytes was sent, as counted before compression.
+     */
+    public void messageSent(boolean binary, long length) {
+    }
+
+    /**
+     * A text or binary message with a payload of {@code length} bytes was received, as counted on the wire.
+     */
+    public void messageReceived(boolean binary, long length) {
+    }
+
+    /**
+     * {@code bytes} read from the socket were decoded in {@code nanos}, not counting the time spent in listener
+     * callbacks.
+     */
+    public void dataParsed(int bytes, long nanos) {
+    }
+
+    /**
+     * The listener took {@code nanos} to handle a message.
+     */
+    public void messageDispatched(long nanos) {
+    }
+}
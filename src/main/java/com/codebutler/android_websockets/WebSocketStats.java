@@ -0,0 +1,120 @@
+package com.codebutler.android_websockets;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics that count frames and bytes in each direction and keep histograms of message sizes, send buffer use and
+ * parse and dispatch times. Can be shared by several clients to get totals. Thread-safe.
+ */
+public class WebSocketStats extends WebSocketMetrics {
+    private final AtomicLong mFramesSent     = new AtomicLong();
+    private final AtomicLong mBytesSent      = new AtomicLong();
+    private final AtomicLong mFramesReceived = new AtomicLong();
+    private final AtomicLong mBytesReceived  = new AtomicLong();
+
+    private final Histogram mSentMessageSizes     = new Histogram();
+    private final Histogram mReceivedMessageSizes = new Histogram();
+    private final Histogram mBufferedAmounts      = new Histogram();
+    private final Histogram mParseTimes           = new Histogram();
+    private final Histogram mDispatchTimes        = new Histogram();
+
+    @Override
+    public void frameQueued(int opcode, int length, long bufferedAmount) {
+        mBufferedAmounts.record(bufferedAmount);
+    }
+
+    @Override
+    public void batchWritten(int frames, long bytes) {
+        mFramesSent.addAndGet(frames);
+        mBytesSent.addAndGet(bytes);
+    }
+
+    @Override
+    public void frameReceived(int opcode, long length) {
+        mFramesReceived.incrementAndGet();
+        mBytesReceived.addAndGet(length);
+    }
+
+    @Override
+    public void messageSent(boolean binary, long length) {
+        mSentMessageSizes.record(length);
+    }
+
+    @Override
+    public void messageReceived(boolean binary, long length) {
+        mReceivedMessageSizes.record(length);
+    }
+
+    @Override
+    public void dataParsed(int bytes, long nanos) {
+        mParseTimes.record(nanos);
+    }
+
+    @Override
+    public void messageDispatched(long nanos) {
+        mDispatchTimes.record(nanos);
+    }
+
+    /** Frames written to the socket. */
+    public long getFramesSent() {
+        return mFramesSent.get();
+    }
+
+    /** Bytes written to the socket, frame headers included. */
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    public long getFramesReceived() {
+        return mFramesReceived.get();
+    }
+
+    /** Bytes of frames received, headers included. */
+    public long getBytesReceived() {
+        return mBytesReceived.get();
+    }
+
+    /** Payload sizes of sent messages in bytes, before compression. */
+    public Histogram getSentMessageSizes() {
+        return mSentMessageSizes;
+    }
+
+    /** Payload sizes of received messages in bytes, as they arrived. */
+    public Histogram getReceivedMessageSizes() {
+        return mReceivedMessageSizes;
+    }
+
+    /** The buffered amount in bytes each time a frame is queued, see {@link WebSocketClient#getBufferedAmount()}. */
+    public Histogram getBufferedAmounts() {
+        return mBufferedAmounts;
+    }
+
+    /** Nanoseconds spent decoding each read from the socket. */
+    public Histogram getParseTimes() {
+        return mParseTimes;
+    }
+
+    /** Nanoseconds the listener took for each message. */
+    public Histogram getDispatchTimes() {
+        return mDispatchTimes;
+    }
+
+    public void reset() {
+        mFramesSent.set(0);
+        mBytesSent.set(0);
+        mFramesReceived.set(0);
+        mBytesReceived.set(0);
+        mSentMessageSizes.reset();
+        mReceivedMessageSizes.reset();
+        mBufferedAmounts.reset();
+        mParseTimes.reset();
+        mDispatchTimes.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "WebSocketStats[sent=" + getFramesSent() + " frames/" + getBytesSent() + " bytes received="
+                + getFramesReceived() + " frames/" + getBytesReceived() + " bytes parse=" + mParseTimes
+                + " dispatch=" + mDispatchTimes + "]";
+    }
+}
@@ -0,0 +1,21 @@
+package com.codebutler.android_websockets;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs every case of the {@link ConformanceSuite} against a loopback server, on the client's own threads and on a
+ * {@link WebSocketEngine}.
+ */
+public class ConformanceTest {
+    @Test
+    public void threadedClient() throws Exception {
+        assertEquals("failed cases", 0, new ConformanceSuite().run("", false));
+    }
+
+    @Test
+    public void engineClient() throws Exception {
+        assertEquals("failed cases", 0, new ConformanceSuite().run("", true));
+    }
+}
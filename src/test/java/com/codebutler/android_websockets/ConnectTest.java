@@ -0,0 +1,65 @@
+package com.codebutler.android_websockets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Connecting falls back through all of a host's addresses, on the client's own threads and on the engine.
+ */
+public class ConnectTest {
+    private LoopbackServer  mServer;
+    private WebSocketEngine mEngine;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new LoopbackServer();
+        mEngine = new WebSocketEngine(1);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.close();
+        mEngine.shutdown();
+    }
+
+    @Test
+    public void threadedClientTriesTheNextAddress() throws Exception {
+        assertConnects(null);
+    }
+
+    @Test
+    public void engineTriesTheNextAddress() throws Exception {
+        assertConnects(mEngine);
+    }
+
+    private void assertConnects(WebSocketEngine engine) throws Exception {
+        // Nothing listens on 127.0.0.2, so the first attempt is refused.
+        String host = "fallback-" + (engine != null ? "engine" : "threads") + ".test";
+        DnsCache.put(host, new InetAddress[] {
+                InetAddress.getByName("127.0.0.2"), InetAddress.getByName("127.0.0.1") });
+
+        final CountDownLatch connected = new CountDownLatch(1);
+        URI             uri    = URI.create("ws://" + host + ":" + mServer.getURI().getPort() + "/");
+        WebSocketClient client = new WebSocketClient(uri, new TestListener() {
+            @Override
+            public void onConnect() {
+                connected.countDown();
+            }
+        });
+        client.setEngine(engine);
+        client.connect();
+        try {
+            assertTrue("connected", connected.await(5, TimeUnit.SECONDS));
+        } finally {
+            client.disconnect();
+        }
+    }
+}
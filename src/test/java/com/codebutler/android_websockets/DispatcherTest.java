@@ -0,0 +1,145 @@
+package com.codebutler.android_websockets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Listeners see the same behavior whether they are called inline or on an executor.
+ */
+public class DispatcherTest {
+    private final BlockingQueue<Object> mEvents = new LinkedBlockingQueue<Object>();
+    private final CountDownLatch        mClosed = new CountDownLatch(1);
+
+    private LoopbackServer  mServer;
+    private ExecutorService mExecutor;
+    private WebSocketClient mClient;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new LoopbackServer() {
+            @Override
+            protected void serve(Connection connection) throws IOException {
+                try {
+                    super.serve(connection);
+                } finally {
+                    mClosed.countDown();
+                }
+            }
+        };
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        if (mClient != null) {
+            mClient.disconnect();
+        }
+        mServer.close();
+        mExecutor.shutdown();
+    }
+
+    @Test
+    public void inlineListenerThatThrowsFailsTheConnection() throws Exception {
+        assertListenerFailure(null);
+    }
+
+    @Test
+    public void executorListenerThatThrowsFailsTheConnection() throws Exception {
+        assertListenerFailure(mExecutor);
+    }
+
+    @Test
+    public void executorThatRefusesFailsTheConnection() throws Exception {
+        // Refuses the first callback, as a saturated executor would, and takes the rest.
+        final AtomicBoolean refused  = new AtomicBoolean();
+        Executor            executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (refused.compareAndSet(false, true)) {
+                    throw new RejectedExecutionException("Saturated");
+                }
+                mExecutor.execute(command);
+            }
+        };
+        mClient = new WebSocketClient(mServer.getURI(), new TestListener() {
+            @Override
+            public void onError(Exception error) {
+                mEvents.add(error);
+            }
+        });
+        mClient.setDispatchExecutor(executor, 0);
+        mClient.connect();
+
+        Object event = mEvents.poll(5, TimeUnit.SECONDS);
+        assertTrue("expected the refusal, got " + event, event instanceof RejectedExecutionException);
+        assertTrue("connection closed", mClosed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void copiedBuffersAreReadOnly() throws Exception {
+        mClient = new WebSocketClient(mServer.getURI(), new ByteBufferTestListener());
+        mClient.setDispatchExecutor(mExecutor, 0);
+        mClient.connect();
+        assertSame("connected", Boolean.TRUE, mEvents.poll(5, TimeUnit.SECONDS));
+
+        mClient.send(new byte[] { 1, 2, 3 });
+        Object event = mEvents.poll(5, TimeUnit.SECONDS);
+        assertTrue("expected a buffer, got " + event, event instanceof ByteBuffer);
+        assertTrue("read-only", ((ByteBuffer) event).isReadOnly());
+    }
+
+    private void assertListenerFailure(ExecutorService executor) throws Exception {
+        final RuntimeException failure = new IllegalStateException("listener failed");
+        mClient = new WebSocketClient(mServer.getURI(), new TestListener() {
+            @Override
+            public void onConnect() {
+                mEvents.add(Boolean.TRUE);
+            }
+
+            @Override
+            public void onMessage(String message) {
+                throw failure;
+            }
+
+            @Override
+            public void onError(Exception error) {
+                mEvents.add(error);
+            }
+        });
+        mClient.setDispatchExecutor(executor, 0);
+        mClient.connect();
+        assertSame("connected", Boolean.TRUE, mEvents.poll(5, TimeUnit.SECONDS));
+
+        mClient.send("boom");
+        assertSame(failure, mEvents.poll(5, TimeUnit.SECONDS));
+        assertTrue("connection closed", mClosed.await(5, TimeUnit.SECONDS));
+    }
+
+    private class ByteBufferTestListener extends TestListener implements WebSocketClient.ByteBufferListener {
+        @Override
+        public void onConnect() {
+            mEvents.add(Boolean.TRUE);
+        }
+
+        @Override
+        public void onMessage(ByteBuffer data) {
+            mEvents.add(data);
+        }
+    }
+}
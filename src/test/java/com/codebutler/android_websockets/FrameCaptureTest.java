@@ -0,0 +1,97 @@
+package com.codebutler.android_websockets;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class FrameCaptureTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final BlockingQueue<Object> mEvents = new LinkedBlockingQueue<Object>();
+
+    private LoopbackServer  mServer;
+    private WebSocketClient mClient;
+
+    @After
+    public void tearDown() {
+        if (mClient != null) {
+            mClient.disconnect();
+        }
+        mServer.close();
+    }
+
+    @Test
+    public void stoppingMidFrameFinishesTheFrameInProgress() throws Exception {
+        final byte[]         payload  = new byte[200];
+        final CountDownLatch halfSent = new CountDownLatch(1);
+        final CountDownLatch stopped  = new CountDownLatch(1);
+        Arrays.fill(payload, (byte) 7);
+        mServer = new LoopbackServer() {
+            @Override
+            protected void serve(Connection connection) throws IOException {
+                connection.writeRaw(new byte[] { (byte) 0x82, 126, 0, (byte) 200 }, 0, 4);
+                connection.writeRaw(payload, 0, 100);
+                halfSent.countDown();
+                try {
+                    stopped.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                connection.writeRaw(payload, 100, 100);
+                super.serve(connection);
+            }
+        };
+        File         file    = mFolder.newFile("capture");
+        FrameCapture capture = new FrameCapture(file);
+        mClient = new WebSocketClient(mServer.getURI(), new TestListener() {
+            @Override
+            public void onMessage(byte[] data) {
+                mEvents.add(data);
+            }
+
+            @Override
+            public void onError(Exception error) {
+                mEvents.add(error);
+            }
+        });
+        mClient.setFrameCapture(capture);
+        mClient.connect();
+
+        // Give the client time to read the first half before the capture goes away.
+        assertTrue(halfSent.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        mClient.setFrameCapture(null);
+        stopped.countDown();
+
+        Object event = mEvents.poll(5, TimeUnit.SECONDS);
+        assertTrue("expected the message, got " + event, event instanceof byte[]);
+        assertArrayEquals(payload, (byte[]) event);
+
+        capture.close();
+        FrameCapture.Reader reader = new FrameCapture.Reader(file);
+        try {
+            assertEquals(FrameCapture.Record.CONNECTED, reader.read().getType());
+            FrameCapture.Record record = reader.read();
+            assertNotNull(record);
+            assertEquals(FrameCapture.Record.INBOUND, record.getType());
+            assertArrayEquals(payload, record.getPayload());
+        } finally {
+            reader.close();
+        }
+    }
+}
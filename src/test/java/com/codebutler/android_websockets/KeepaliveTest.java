@@ -0,0 +1,93 @@
+package com.codebutler.android_websockets;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KeepaliveTest {
+    private static final int MESSAGE_SIZE = 1024 * 1024;
+    private static final int CHUNK_SIZE   = 8 * 1024;
+
+    private final BlockingQueue<Object> mEvents = new LinkedBlockingQueue<Object>();
+
+    private LoopbackServer  mServer;
+    private WebSocketClient mClient;
+
+    @After
+    public void tearDown() {
+        if (mClient != null) {
+            mClient.disconnect();
+        }
+        mServer.close();
+    }
+
+    @Test
+    public void largeFrameArrivingSlowlyKeepsTheConnectionAlive() throws Exception {
+        // Writes one large frame over more than a second without answering pings meanwhile.
+        mServer = new LoopbackServer() {
+            @Override
+            protected void serve(Connection connection) throws IOException {
+                connection.writeRaw(ConformanceSuite.header(true, OP_BINARY, MESSAGE_SIZE), 0, 10);
+                byte[] chunk = new byte[CHUNK_SIZE];
+                for (int sent = 0; sent < MESSAGE_SIZE; sent += CHUNK_SIZE) {
+                    connection.writeRaw(chunk, 0, CHUNK_SIZE);
+                    sleep(10);
+                }
+                super.serve(connection);
+            }
+        };
+        connect();
+
+        Object event = mEvents.poll(10, TimeUnit.SECONDS);
+        assertTrue("expected the message, got " + event, event instanceof byte[]);
+        assertEquals(MESSAGE_SIZE, ((byte[]) event).length);
+    }
+
+    @Test
+    public void unansweredPingsFailTheConnection() throws Exception {
+        mServer = new LoopbackServer() {
+            @Override
+            protected void serve(Connection connection) throws IOException {
+                while (true) {
+                    connection.readFrame();
+                }
+            }
+        };
+        connect();
+
+        Object event = mEvents.poll(5, TimeUnit.SECONDS);
+        assertTrue("expected a timeout, got " + event, event instanceof SocketTimeoutException);
+    }
+
+    private void connect() {
+        mClient = new WebSocketClient(mServer.getURI(), new TestListener() {
+            @Override
+            public void onMessage(byte[] data) {
+                mEvents.add(data);
+            }
+
+            @Override
+            public void onError(Exception error) {
+                mEvents.add(error);
+            }
+        });
+        mClient.setKeepalive(100, 2);
+        mClient.connect();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.codebutler.android_websockets;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LengthPrefixedCodecTest {
+    private final LengthPrefixedCodec mCodec = new LengthPrefixedCodec(null);
+
+    @Test
+    public void roundTripsRecords() throws Exception {
+        List<ByteBuffer> records = Arrays.asList(
+                ByteBuffer.wrap(new byte[] { 1, 2, 3 }), ByteBuffer.allocate(0), ByteBuffer.wrap(new byte[] { 4 }));
+        ByteBuffer encoded = ByteBuffer.allocate(mCodec.encodedLength(records));
+        mCodec.encode(records, encoded);
+        encoded.flip();
+
+        assertEquals(records, mCodec.decode(encoded, true));
+    }
+
+    @Test
+    public void recordsAreReadOnlyViewsOfThePayload() throws Exception {
+        byte[]     array   = { 0, 0, 0, 2, 7, 8, 0, 0, 0, 1, 9 };
+        ByteBuffer payload = ByteBuffer.wrap(array, 0, array.length);
+
+        List<ByteBuffer> records = mCodec.decode(payload, true);
+        assertEquals(2, records.size());
+        assertTrue(records.get(0).isReadOnly());
+        assertEquals(ByteBuffer.wrap(new byte[] { 7, 8 }), records.get(0));
+
+        array[4] = 42;
+        assertEquals(42, records.get(0).get(0));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedLength() throws Exception {
+        mCodec.decode(ByteBuffer.wrap(new byte[] { 0, 0, 1 }), true);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsRecordPastTheEnd() throws Exception {
+        mCodec.decode(ByteBuffer.wrap(new byte[] { 0, 0, 0, 5, 1 }), true);
+    }
+}
@@ -0,0 +1,77 @@
+package com.codebutler.android_websockets;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class MaskTest {
+    private static final int KEY = 0x37FA213D;
+
+    @Test
+    public void matchesBytewiseMaskingAtEveryAlignment() {
+        Random random = new Random(1);
+        for (int length = 0; length < 70; length++) {
+            for (int offset = 0; offset < 9; offset++) {
+                for (int maskOffset = 0; maskOffset < 4; maskOffset++) {
+                    byte[] data = new byte[offset + length + 3];
+                    random.nextBytes(data);
+                    byte[] expected = data.clone();
+                    naiveMask(expected, offset, length, KEY, maskOffset);
+
+                    HybiParser.mask(data, offset, length, KEY, maskOffset);
+                    assertArrayEquals("length " + length + " offset " + offset + " mask offset " + maskOffset,
+                            expected, data);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void unmasksInPieces() {
+        byte[] payload = new byte[1000];
+        new Random(2).nextBytes(payload);
+        byte[] masked = payload.clone();
+        HybiParser.mask(masked, 0, masked.length, KEY, 0);
+
+        int[] pieces = { 1, 7, 16, 3, 100, 873 };
+        int   offset = 0;
+        for (int piece : pieces) {
+            HybiParser.mask(masked, offset, piece, KEY, offset);
+            offset += piece;
+        }
+        assertArrayEquals(payload, masked);
+    }
+
+    @Test
+    public void masksDirectBuffersInEitherByteOrder() {
+        byte[] payload = new byte[67];
+        new Random(3).nextBytes(payload);
+        for (ByteOrder order : new ByteOrder[] { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN }) {
+            for (int maskOffset = 0; maskOffset < 4; maskOffset++) {
+                byte[] expected = payload.clone();
+                naiveMask(expected, 5, expected.length - 5, KEY, maskOffset);
+
+                ByteBuffer buffer = ByteBuffer.allocateDirect(payload.length).order(order);
+                buffer.put(payload).position(5);
+                HybiParser.mask(buffer, KEY, maskOffset);
+
+                byte[] actual = new byte[payload.length];
+                buffer.position(0);
+                buffer.get(actual);
+                assertArrayEquals(order + " mask offset " + maskOffset, expected, actual);
+            }
+        }
+    }
+
+    private static void naiveMask(byte[] data, int offset, int length, int mask, int maskOffset) {
+        byte[] key = ByteBuffer.allocate(4).putInt(mask).array();
+        for (int i = 0; i < length; i++) {
+            data[offset + i] ^= key[(maskOffset + i) & 3];
+        }
+    }
+}
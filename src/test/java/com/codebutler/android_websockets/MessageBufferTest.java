@@ -0,0 +1,71 @@
+package com.codebutler.android_websockets;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MessageBufferTest {
+    @Test
+    public void growsAsWritten() {
+        MessageBuffer buffer = new MessageBuffer();
+        byte[]        data   = bytes(1000);
+        for (int offset = 0; offset < data.length; offset += 100) {
+            buffer.write(data, offset, 100);
+        }
+        assertEquals(1000, buffer.size());
+        assertArrayEquals(data, buffer.toByteArray());
+    }
+
+    @Test
+    public void reserveAndCommitWriteInPlace() {
+        MessageBuffer buffer = new MessageBuffer();
+        buffer.write(bytes(3), 0, 3);
+        byte[] array = buffer.reserve(2);
+        array[buffer.size()]     = 9;
+        array[buffer.size() + 1] = 8;
+        buffer.commit(2);
+        assertArrayEquals(new byte[] { 0, 1, 2, 9, 8 }, buffer.toByteArray());
+    }
+
+    @Test
+    public void keepsSmallStorageAcrossReset() {
+        MessageBuffer buffer = new MessageBuffer();
+        buffer.write(bytes(1000), 0, 1000);
+        byte[] array = buffer.array();
+        buffer.reset();
+        assertEquals(0, buffer.size());
+        buffer.write(bytes(10), 0, 10);
+        assertSame(array, buffer.array());
+    }
+
+    @Test
+    public void releasesLargeStorageOnReset() {
+        MessageBuffer buffer = new MessageBuffer();
+        buffer.write(new byte[2 * 1024 * 1024], 0, 2 * 1024 * 1024);
+        buffer.reset();
+        assertEquals(0, buffer.array().length);
+    }
+
+    @Test
+    public void stopsDoublingAtMaxCapacity() {
+        MessageBuffer buffer = new MessageBuffer();
+        buffer.setMaxCapacity(1500);
+        buffer.write(bytes(1000), 0, 1000);
+        buffer.write(bytes(400), 0, 400);
+        assertEquals(1500, buffer.array().length);
+        buffer.write(bytes(200), 0, 200);
+        assertTrue(buffer.array().length >= 1600);
+        assertEquals(1600, buffer.size());
+    }
+
+    static byte[] bytes(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+}
@@ -0,0 +1,237 @@
+package com.codebutler.android_websockets;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Channels over the loopback server, which echoes each frame back: data comes back on the channel it was sent on,
+ * and credit a channel hands back refills its own window.
+ */
+public class MultiplexerTest {
+    private final BlockingQueue<Object> mEvents   = new LinkedBlockingQueue<Object>();
+    private final BlockingQueue<Object> mMessages = new LinkedBlockingQueue<Object>();
+
+    private LoopbackServer mServer;
+    private Multiplexer    mMux;
+
+    @After
+    public void tearDown() {
+        if (mMux != null) {
+            mMux.getClient().disconnect();
+        }
+        mServer.close();
+    }
+
+    @Test
+    public void messagesComeBackOnTheirChannel() throws Exception {
+        mServer = new LoopbackServer();
+        mMux    = createMultiplexer();
+        Multiplexer.Channel text   = mMux.openChannel(1, new ChannelListener("text"));
+        Multiplexer.Channel binary = mMux.openChannel(40, new ChannelListener("binary"));
+        connect();
+
+        byte[] large = MessageBufferTest.bytes(100 * 1024);
+        binary.send(large);
+        text.send("hello");
+
+        // The text may overtake the chunks of the large message, or not, depending on how fast they are written.
+        Object first  = take();
+        Object second = take();
+        assertEquals("text: hello", (first instanceof String) ? first : second);
+        assertArrayEquals(large, (byte[]) ((first instanceof byte[]) ? first : second));
+        assertEquals(0, binary.getBufferedAmount());
+    }
+
+    @Test
+    public void sendingStopsAtTheWindowUntilCreditArrives() throws Exception {
+        final BlockingQueue<LoopbackServer.Frame> frames = new LinkedBlockingQueue<LoopbackServer.Frame>();
+        mServer = new LoopbackServer() {
+            @Override
+            protected void serve(Connection connection) throws IOException {
+                // Keeps what arrives and hands back credit for it only when asked to.
+                while (true) {
+                    Frame frame = connection.readFrame();
+                    if (frame.opcode == OP_BINARY && frame.payload[0] == 0) {
+                        connection.writeFrame(true, OP_BINARY, new byte[] {
+                                (byte) ((1 << Multiplexer.ID_SHIFT) | Multiplexer.KIND_CREDIT), (byte) 0x80, 8 });
+                    } else {
+                        frames.add(frame);
+                    }
+                }
+            }
+        };
+        mMux = createMultiplexer();
+        mMux.setInitialWindow(1024);
+        mMux.setChunkSize(256);
+        Multiplexer.Channel channel = mMux.openChannel(1, new ChannelListener("binary"));
+        Multiplexer.Channel control = mMux.openChannel(0, new ChannelListener("control"));
+        connect();
+
+        channel.send(new byte[3000]);
+        assertEquals(1024, payloadBytes(frames));
+        assertEquals(3000 - 1024, channel.getBufferedAmount());
+
+        // 1024 bytes of credit, a varint of 0x80 0x08.
+        control.send(new byte[0]);
+        assertEquals(1024, payloadBytes(frames));
+        assertEquals(3000 - 2048, channel.getBufferedAmount());
+    }
+
+    @Test
+    public void pausedChannelHoldsBackCredit() throws Exception {
+        mServer = new LoopbackServer();
+        mMux    = createMultiplexer();
+        mMux.setInitialWindow(1024);
+        mMux.setChunkSize(256);
+        Multiplexer.Channel channel = mMux.openChannel(1, new ChannelListener("binary"));
+        connect();
+
+        // Echoed messages are consumed, but without credit going back the echoes use up the window for good.
+        channel.pause();
+        for (int i = 0; i < 4; i++) {
+            channel.send(new byte[512]);
+        }
+        assertTrue(take() instanceof byte[]);
+        assertTrue(take() instanceof byte[]);
+        assertNull(mMessages.poll(300, TimeUnit.MILLISECONDS));
+        assertEquals(1024, channel.getBufferedAmount());
+
+        channel.resume();
+        assertTrue(take() instanceof byte[]);
+        assertTrue(take() instanceof byte[]);
+        assertEquals(0, channel.getBufferedAmount());
+    }
+
+    @Test
+    public void queuedMessagesGoOutAfterAFailedConnectionComesBack() throws Exception {
+        final AtomicInteger connections = new AtomicInteger();
+        mServer = new LoopbackServer() {
+            @Override
+            protected void serve(Connection connection) throws IOException {
+                if (connections.incrementAndGet() > 1) {
+                    super.serve(connection);
+                    return;
+                }
+                // Answers the first message with a reserved opcode, which fails the connection with an error.
+                connection.readFrame();
+                connection.writeFrame(true, 3, new byte[0]);
+                while (true) {
+                    connection.readFrame();
+                }
+            }
+        };
+        mMux = createMultiplexer();
+        Multiplexer.Channel channel = mMux.openChannel(1, new ChannelListener("text"));
+        mMux.getClient().setReconnectPolicy(new ReconnectPolicy(200, 200, 3));
+        connect();
+
+        channel.send("lost");
+        Object error = mEvents.poll(5, TimeUnit.SECONDS);
+        assertTrue("expected an error, got " + error, error instanceof HybiParser.ProtocolError);
+        channel.send("queued");
+
+        assertEquals("connected", mEvents.poll(5, TimeUnit.SECONDS));
+        assertEquals("text: queued", take());
+        assertEquals(0, channel.getBufferedAmount());
+    }
+
+    @Test
+    public void invalidTextIsReportedAndDropped() throws Exception {
+        mServer = new LoopbackServer() {
+            @Override
+            protected void serve(Connection connection) throws IOException {
+                // An overlong '/' in a text message on channel 1.
+                connection.writeFrame(true, OP_BINARY, new byte[] {
+                        (byte) ((1 << Multiplexer.ID_SHIFT) | Multiplexer.KIND_TEXT), (byte) 0xc0, (byte) 0xaf });
+                super.serve(connection);
+            }
+        };
+        mMux = createMultiplexer();
+        Multiplexer.Channel channel = mMux.openChannel(1, new ChannelListener("text"));
+        connect();
+
+        Object error = mEvents.poll(5, TimeUnit.SECONDS);
+        assertTrue("expected an error, got " + error, error instanceof IOException);
+        channel.send("valid");
+        assertEquals("text: valid", take());
+    }
+
+    private Multiplexer createMultiplexer() {
+        return new Multiplexer(mServer.getURI(), new Multiplexer.Listener() {
+            @Override
+            public void onConnect() {
+                mEvents.add("connected");
+            }
+
+            @Override
+            public void onDisconnect(int code, String reason) {
+                mEvents.add("disconnected");
+            }
+
+            @Override
+            public void onError(Exception error) {
+                mEvents.add(error);
+            }
+        });
+    }
+
+    private void connect() throws InterruptedException {
+        mMux.getClient().connect();
+        assertEquals("connected", mEvents.poll(5, TimeUnit.SECONDS));
+    }
+
+    private Object take() throws InterruptedException {
+        Object message = mMessages.poll(5, TimeUnit.SECONDS);
+        assertTrue("timed out", message != null);
+        return message;
+    }
+
+    // Adds up the channel payload of the frames that arrive until none has for a while.
+    private static int payloadBytes(BlockingQueue<LoopbackServer.Frame> frames) throws InterruptedException {
+        int                  total = 0;
+        LoopbackServer.Frame frame;
+        while ((frame = frames.poll(300, TimeUnit.MILLISECONDS)) != null) {
+            ByteBuffer payload = ByteBuffer.wrap(frame.payload);
+            while (payload.get() < 0) {
+                // Skips the channel header.
+            }
+            total += payload.remaining();
+        }
+        return total;
+    }
+
+    private class ChannelListener implements Multiplexer.ChannelListener {
+        private final String mName;
+
+        ChannelListener(String name) {
+            mName = name;
+        }
+
+        @Override
+        public void onMessage(Multiplexer.Channel channel, String message) {
+            mMessages.add(mName + ": " + message);
+        }
+
+        @Override
+        public void onMessage(Multiplexer.Channel channel, byte[] data) {
+            mMessages.add(data);
+        }
+
+        @Override
+        public void onClose(Multiplexer.Channel channel) {
+            mMessages.add(mName + " closed");
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.codebutler.android_websockets;
+
+import org.junit.Test;
+
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PerMessageDeflateTest {
+    @Test
+    public void largeMessagesKeepTheirMatchesWithTheFullWindow() throws Exception {
+        PerMessageDeflate.Session session = new PerMessageDeflate.Session(false, 15, Deflater.DEFAULT_COMPRESSION, 0);
+        byte[]                    message = json(40000);
+
+        MessageBuffer compressed = session.deflate(message, 0, message.length);
+        assertTrue("compressed to " + compressed.size(), compressed.size() < message.length / 4);
+        assertArrayEquals(message, roundTrip(session, compressed));
+        session.end();
+    }
+
+    @Test
+    public void messagesLargerThanASmallWindowStillRoundTrip() throws Exception {
+        PerMessageDeflate.Session session = new PerMessageDeflate.Session(false, 9, Deflater.DEFAULT_COMPRESSION, 0);
+        byte[]                    small   = json(400);
+        byte[]                    large   = json(4000);
+
+        assertArrayEquals(small, roundTrip(session, session.deflate(small, 0, small.length)));
+        assertArrayEquals(large, roundTrip(session, session.deflate(large, 0, large.length)));
+        session.end();
+    }
+
+    private static byte[] roundTrip(PerMessageDeflate.Session session, MessageBuffer compressed) throws Exception {
+        MessageBuffer out = new MessageBuffer();
+        session.inflate(compressed.array(), 0, compressed.size(), out, Long.MAX_VALUE);
+        session.endMessage(out, Long.MAX_VALUE);
+        return out.toByteArray();
+    }
+
+    private static byte[] json(int length) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; json.length() < length; i++) {
+            json.append("{\"id\":").append(i).append(",\"name\":\"item\",\"active\":true},");
+        }
+        json.setLength(length);
+        return json.toString().getBytes(Utf8Decoder.UTF_8);
+    }
+}
@@ -0,0 +1,68 @@
+package com.codebutler.android_websockets;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SpillBufferTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void staysInMemoryUpToTheThreshold() throws IOException {
+        SpillBuffer spill = new SpillBuffer(mFolder.getRoot(), 100, 1000);
+        spill.write(MessageBufferTest.bytes(100), 0, 100);
+        assertFalse(spill.isSpilled());
+        assertArrayEquals(MessageBufferTest.bytes(100), spill.getMemory().toByteArray());
+        assertEquals(0, mFolder.getRoot().list().length);
+    }
+
+    @Test
+    public void movesToAFileOnceOverTheThreshold() throws IOException {
+        SpillBuffer spill = new SpillBuffer(mFolder.getRoot(), 100, 1000);
+        byte[]      data  = MessageBufferTest.bytes(250);
+        spill.write(data, 0, 60);
+        spill.write(data, 60, 60);
+        spill.write(data, 120, 130);
+        assertTrue(spill.isSpilled());
+        assertEquals(0, spill.getMemory().size());
+
+        FileChannel channel = spill.finish();
+        try {
+            assertEquals(250, channel.size());
+            ByteBuffer read = ByteBuffer.allocate(250);
+            while (read.hasRemaining() && channel.read(read) >= 0) {
+            }
+            assertArrayEquals(data, read.array());
+        } finally {
+            channel.close();
+        }
+        // The file was deleted as soon as it was created.
+        assertEquals(0, mFolder.getRoot().list().length);
+        assertFalse(spill.isSpilled());
+    }
+
+    @Test
+    public void refusesMessagesOverTheLimit() throws IOException {
+        SpillBuffer spill = new SpillBuffer(mFolder.getRoot(), 100, 1000);
+        spill.write(new byte[600], 0, 600);
+        try {
+            spill.write(new byte[600], 0, 600);
+            fail();
+        } catch (HybiParser.ProtocolError e) {
+            assertEquals(HybiParser.CLOSE_TOO_LARGE, e.getCloseCode());
+        }
+        spill.reset();
+        assertFalse(spill.isSpilled());
+    }
+}
@@ -0,0 +1,114 @@
+package com.codebutler.android_websockets;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Messages below the spill threshold arrive as arrays of their own, even when they were assembled in the spill
+ * buffer.
+ */
+public class SpillListenerTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final BlockingQueue<Object> mEvents = new LinkedBlockingQueue<Object>();
+
+    private LoopbackServer  mServer;
+    private WebSocketClient mClient;
+
+    @After
+    public void tearDown() {
+        if (mClient != null) {
+            mClient.disconnect();
+        }
+        mServer.close();
+    }
+
+    @Test
+    public void messagesFromTheSpillBufferAreNotOverwritten() throws Exception {
+        final byte[] first  = filled(200, 1);
+        final byte[] second = filled(128, 2);
+        final byte[] third  = filled(128, 3);
+        mServer = new LoopbackServer() {
+            @Override
+            protected void serve(Connection connection) throws IOException {
+                // A frame split across two reads, so its payload gets an array of its own.
+                connection.writeRaw(new byte[] { (byte) 0x82, 126, 0, (byte) 200 }, 0, 4);
+                connection.writeRaw(first, 0, 100);
+                sleep(50);
+                connection.writeRaw(first, 100, 100);
+                sleep(50);
+
+                // Fragmented messages, assembled in the spill buffer's memory.
+                connection.writeFrame(false, OP_BINARY, second);
+                connection.writeFrame(true, OP_CONTINUATION, second);
+                connection.writeFrame(false, OP_BINARY, third);
+                connection.writeFrame(true, OP_CONTINUATION, third);
+                super.serve(connection);
+            }
+        };
+        mClient = new WebSocketClient(mServer.getURI(), new Listener());
+        mClient.setSpillDirectory(mFolder.getRoot(), 4096, 1 << 20);
+        mClient.connect();
+
+        byte[][] received = { take(), take(), take() };
+        assertArrayEquals(first, received[0]);
+        assertArrayEquals(concat(second, second), received[1]);
+        assertArrayEquals(concat(third, third), received[2]);
+    }
+
+    private byte[] take() throws InterruptedException {
+        Object event = mEvents.poll(5, TimeUnit.SECONDS);
+        assertTrue("expected a message, got " + event, event instanceof byte[]);
+        return (byte[]) event;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static byte[] filled(int length, int value) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class Listener extends TestListener implements WebSocketClient.SpillListener {
+        @Override
+        public void onMessage(byte[] data) {
+            mEvents.add(data);
+        }
+
+        @Override
+        public void onMessage(FileChannel message, boolean binary) {
+            mEvents.add(message);
+        }
+
+        @Override
+        public void onError(Exception error) {
+            mEvents.add(error);
+        }
+    }
+}
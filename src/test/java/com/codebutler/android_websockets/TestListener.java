@@ -0,0 +1,26 @@
+package com.codebutler.android_websockets;
+
+/**
+ * A listener that ignores everything, for tests to override what they need.
+ */
+class TestListener implements WebSocketClient.Listener {
+    @Override
+    public void onConnect() {
+    }
+
+    @Override
+    public void onMessage(String message) {
+    }
+
+    @Override
+    public void onMessage(byte[] data) {
+    }
+
+    @Override
+    public void onDisconnect(int code, String reason) {
+    }
+
+    @Override
+    public void onError(Exception error) {
+    }
+}
@@ -0,0 +1,77 @@
+package com.codebutler.android_websockets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A listener that throws fails its own client, while the loop and the other clients on it carry on.
+ */
+public class WebSocketEngineTest {
+    private final BlockingQueue<String> mEvents = new LinkedBlockingQueue<String>();
+
+    private LoopbackServer  mServer;
+    private WebSocketEngine mEngine;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new LoopbackServer();
+        mEngine = new WebSocketEngine(1);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.close();
+        mEngine.shutdown();
+    }
+
+    @Test
+    public void listenerThrowingOnDisconnectLeavesTheOthersConnected() throws Exception {
+        WebSocketClient failing = connect("failing", true);
+        WebSocketClient other   = connect("other", false);
+
+        failing.disconnect();
+        assertEquals("failing: disconnected", take());
+
+        other.send("still here");
+        assertEquals("other: still here", take());
+        other.disconnect();
+    }
+
+    private WebSocketClient connect(final String name, final boolean throwOnDisconnect) throws Exception {
+        WebSocketClient client = new WebSocketClient(mServer.getURI(), new TestListener() {
+            @Override
+            public void onConnect() {
+                mEvents.add(name + ": connected");
+            }
+
+            @Override
+            public void onMessage(String message) {
+                mEvents.add(name + ": " + message);
+            }
+
+            @Override
+            public void onDisconnect(int code, String reason) {
+                mEvents.add(name + ": disconnected");
+                if (throwOnDisconnect) {
+                    throw new IllegalStateException("Listener bug");
+                }
+            }
+        });
+        client.setEngine(mEngine);
+        client.connect();
+        assertEquals(name + ": connected", take());
+        return client;
+    }
+
+    private String take() throws InterruptedException {
+        String event = mEvents.poll(5, TimeUnit.SECONDS);
+        return (event != null) ? event : "timed out";
+    }
+}